@@ -15,11 +15,19 @@ dependencies {
     // Only Paper API, no external shit
     compileOnly("io.papermc.paper:paper-api:1.20.4-R0.1-SNAPSHOT")
     
+    // Netty ships with the server, we just compile against it for the injector
+    compileOnly("io.netty:netty-all:4.1.97.Final")
+    
     // Rhino for JavaScript packet filters - we bundle this
     implementation("org.mozilla:rhino:1.7.14")
     
     // Gson for webhook logging - also bundled
     implementation("com.google.code.gson:gson:2.10.1")
+    
+    // Tests only, none of this ends up in the jar
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 java {
@@ -36,6 +44,14 @@ tasks {
         options.encoding = "UTF-8"
     }
     
+    compileTestJava {
+        options.encoding = "UTF-8"
+    }
+    
+    test {
+        useJUnitPlatform()
+    }
+    
     processResources {
         filesMatching("plugin.yml") {
             expand("version" to project.version)
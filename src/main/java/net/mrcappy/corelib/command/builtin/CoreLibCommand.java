@@ -22,7 +22,7 @@ public class CoreLibCommand {
     private boolean debugMode = false;
     
     public CoreLibCommand(CoreLibPlugin plugin) {
-        this.plugin = plugin;        
+        this.plugin = plugin;
         registerCommands();
     }
     
@@ -62,10 +62,11 @@ public class CoreLibCommand {
             // Reload main config
             plugin.reloadConfig();
             plugin.getConfigManager().reloadAll();
+            plugin.getProtocolManager().loadScriptFilters(); // Bindings live in config.yml
             
             long time = System.currentTimeMillis() - start;
             ctx.reply("§aConfiguration reloaded in " + time + "ms");
-            
+        
         } catch (Exception e) {
             ctx.reply("§cFailed to reload config: " + e.getMessage());
             if (debugMode) {
@@ -0,0 +1,137 @@
+package net.mrcappy.corelib.protocol;
+
+import net.mrcappy.corelib.protocol.listener.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Numbers for one script filter.
+ * 
+ * Survives recompiles - editing the script doesn't wipe its
+ * history, so you can see whether your "optimization" actually
+ * moved the p99. Lives next to the compiled script, so a filter
+ * run doesn't pay a second map lookup to get at it.
+ */
+public final class FilterMetrics {
+    
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder budgetKills = new LongAdder();
+    private final LongAdder compiles = new LongAdder();
+    private final LongAdder compileFailures = new LongAdder();
+    private volatile String lastError;
+    private volatile long lastCompiled;
+    
+    FilterMetrics(String name) {
+        this.name = name;
+    }
+    
+    void recordRun(long nanos, boolean allowed) {
+        latency.record(nanos);
+        if (!allowed) {
+            blocked.increment();
+        }
+    }
+    
+    void recordError(String message) {
+        errors.increment();
+        lastError = message;
+    }
+    
+    void recordBudgetKill(String message) {
+        budgetKills.increment();
+        lastError = message;
+    }
+    
+    void recordCompile() {
+        compiles.increment();
+        lastCompiled = System.currentTimeMillis();
+    }
+    
+    void recordCompileFailure(String message) {
+        compileFailures.increment();
+        lastError = message;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Times the filter ran, errors and kills included.
+     */
+    public long getEvaluations() {
+        return latency.getCount();
+    }
+    
+    public double getMeanNanos() {
+        return latency.getMeanNanos();
+    }
+    
+    public long getPercentileNanos(double percentile) {
+        return latency.getPercentileNanos(percentile);
+    }
+    
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+    
+    /**
+     * Runs that cancelled the packet.
+     */
+    public long getBlocked() {
+        return blocked.sum();
+    }
+    
+    /**
+     * Runs that threw. The packet went through.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+    
+    /**
+     * Runs killed for going over the instruction or time budget.
+     */
+    public long getBudgetKills() {
+        return budgetKills.sum();
+    }
+    
+    /**
+     * Successful compiles, the first load included.
+     */
+    public long getCompiles() {
+        return compiles.sum();
+    }
+    
+    /**
+     * Reloads that didn't compile. The previous version kept running.
+     */
+    public long getCompileFailures() {
+        return compileFailures.sum();
+    }
+    
+    /**
+     * Last runtime or compile error, null if there never was one.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+    
+    public long getLastCompiled() {
+        return lastCompiled;
+    }
+    
+    /**
+     * Zero the counters. Compile history stays.
+     */
+    public void reset() {
+        latency.reset();
+        blocked.reset();
+        errors.reset();
+        budgetKills.reset();
+        lastError = null;
+    }
+}
\ No newline at end of file
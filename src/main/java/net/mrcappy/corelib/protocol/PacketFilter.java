@@ -0,0 +1,638 @@
+package net.mrcappy.corelib.protocol;
+
+import net.mrcappy.corelib.protocol.packet.PacketContainer;
+import net.mrcappy.corelib.protocol.packet.PacketType;
+import net.mrcappy.corelib.protocol.reflect.FieldAccessor;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Packet filter expressions, for when JavaScript is overkill.
+ * 
+ * Most script filters are "is this field bigger than that", and
+ * paying for Rhino, a scope and a boxed Integer per packet to
+ * answer that is dumb. This compiles an expression once into a
+ * tree of plain Java predicates that read fields through the
+ * packet's StructureTemplate accessors - primitives stay
+ * primitives, nothing gets wrapped, nothing gets interpreted.
+ * 
+ * type == PLAY_CLIENT_CHAT && strings[0] matches "(?i)free v-?bucks"
+ * ints[0] > 1000 || !(booleans[0])
+ * player == "Notch" && type == USE_ENTITY
+ * 
+ * What you get:
+ * - Fields: bytes, shorts, ints (or integers), longs, floats,
+ *   doubles, strings, booleans, uuids - [n] is the n-th field of
+ *   that type, same as the StructureModifier getters.
+ * - type == / != a PacketType. Full name or the tail of one, so
+ *   CHAT matches every type ending in _CHAT.
+ * - player, the player's name, as a string.
+ * - Numbers: == != < <= > >=. Strings: == != matches contains.
+ *   matches is a regex search, anchor it with ^...$ if you want
+ *   the whole string. Booleans on their own or == true/false.
+ *   UUIDs == / != "the-uuid".
+ * - && || ! and parentheses.
+ * 
+ * A field the packet doesn't have (strings[3] on a packet with
+ * two strings) never matches, whatever the operator.
+ * 
+ * Compiled filters are immutable, share them between threads.
+ */
+public final class PacketFilter {
+    
+    private final String source;
+    private final Node root;
+    private final Set<PacketType> types;
+    
+    private PacketFilter(String source, Node root, Set<PacketType> types) {
+        this.source = source;
+        this.root = root;
+        this.types = types;
+    }
+    
+    /**
+     * Parse and compile an expression.
+     * 
+     * @throws FilterException if it doesn't parse, with the column it gave up at
+     */
+    public static PacketFilter compile(String source) throws FilterException {
+        Parser parser = new Parser(source);
+        Parsed parsed = parser.expression();
+        parser.expectEnd();
+        if (parsed.types != null && parsed.types.isEmpty()) {
+            throw new FilterException("The type checks contradict each other, this can never match: " + source);
+        }
+        return new PacketFilter(source, parsed.node, parsed.types == null
+            ? Collections.emptySet() : Collections.unmodifiableSet(parsed.types));
+    }
+    
+    /**
+     * Does this packet match?
+     */
+    public boolean test(Player player, PacketContainer packet) {
+        return root.test(player, packet);
+    }
+    
+    /**
+     * The only types this can ever match, worked out from the
+     * type checks it can't match without. Empty = could be anything.
+     * Register listeners for just these and the rest never get here.
+     */
+    public Set<PacketType> getTypes() {
+        return types;
+    }
+    
+    public String getSource() {
+        return source;
+    }
+    
+    @Override
+    public String toString() {
+        return source;
+    }
+    
+    /**
+     * The expression doesn't parse.
+     */
+    public static class FilterException extends Exception {
+        public FilterException(String message) {
+            super(message);
+        }
+    }
+    
+    // ---- Compiled form ----
+    
+    private interface Node {
+        boolean test(Player player, PacketContainer packet);
+    }
+    
+    /**
+     * A node plus the types it's limited to (null = any).
+     */
+    private static final class Parsed {
+        final Node node;
+        final EnumSet<PacketType> types;
+        
+        Parsed(Node node, EnumSet<PacketType> types) {
+            this.node = node;
+            this.types = types;
+        }
+    }
+    
+    private enum Op {
+        EQ("=="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">="), MATCHES("matches"), CONTAINS("contains");
+        
+        final String symbol;
+        
+        Op(String symbol) {
+            this.symbol = symbol;
+        }
+        
+        boolean test(int cmp) {
+            switch (this) {
+                case EQ: return cmp == 0;
+                case NE: return cmp != 0;
+                case LT: return cmp < 0;
+                case LE: return cmp <= 0;
+                case GT: return cmp > 0;
+                case GE: return cmp >= 0;
+                default: throw new IllegalStateException(symbol + " isn't a comparison");
+            }
+        }
+        
+        boolean isOrdering() {
+            return this != MATCHES && this != CONTAINS;
+        }
+    }
+    
+    /**
+     * Field kinds by their name in expressions.
+     */
+    private enum Field {
+        BYTES(byte.class), SHORTS(short.class), INTS(int.class), LONGS(long.class),
+        FLOATS(float.class), DOUBLES(double.class), STRINGS(String.class),
+        BOOLEANS(boolean.class), UUIDS(UUID.class);
+        
+        final Class<?> type;
+        
+        Field(Class<?> type) {
+            this.type = type;
+        }
+        
+        boolean isIntegral() {
+            return this == BYTES || this == SHORTS || this == INTS || this == LONGS;
+        }
+        
+        boolean isNumeric() {
+            return isIntegral() || this == FLOATS || this == DOUBLES;
+        }
+        
+        static Field byName(String name) {
+            switch (name) {
+                case "bytes": return BYTES;
+                case "shorts": return SHORTS;
+                case "ints":
+                case "integers": return INTS;
+                case "longs": return LONGS;
+                case "floats": return FLOATS;
+                case "doubles": return DOUBLES;
+                case "strings": return STRINGS;
+                case "booleans": return BOOLEANS;
+                case "uuids": return UUIDS;
+                default: return null;
+            }
+        }
+    }
+    
+    /**
+     * The accessor for the index-th field of a type, or null if
+     * this packet class doesn't have that many.
+     */
+    private static FieldAccessor<?> accessor(PacketContainer packet, Class<?> type, int index) {
+        FieldAccessor<?>[] accessors = packet.getTemplate().accessors(type);
+        return index < accessors.length ? accessors[index] : null;
+    }
+    
+    private static long readLong(Field field, FieldAccessor<?> accessor, Object handle) {
+        switch (field) {
+            case BYTES: return accessor.getByte(handle);
+            case SHORTS: return accessor.getShort(handle);
+            case INTS: return accessor.getInt(handle);
+            default: return accessor.getLong(handle);
+        }
+    }
+    
+    private static double readDouble(Field field, FieldAccessor<?> accessor, Object handle) {
+        switch (field) {
+            case FLOATS: return accessor.getFloat(handle);
+            case DOUBLES: return accessor.getDouble(handle);
+            default: return readLong(field, accessor, handle);
+        }
+    }
+    
+    // ---- Parser ----
+    
+    /**
+     * Recursive descent, straight to nodes. No AST, nothing to walk later.
+     * 
+     * expression := and ('||' and)*
+     * and        := unary ('&&' unary)*
+     * unary      := '!' unary | '(' expression ')' | test
+     * test       := 'type' ('==' | '!=') NAME
+     *             | 'player' op STRING
+     *             | field '[' INT ']' (op literal)?
+     */
+    private static final class Parser {
+        private final String source;
+        private int pos;
+        
+        Parser(String source) {
+            this.source = source;
+        }
+        
+        Parsed expression() throws FilterException {
+            Parsed left = and();
+            while (accept("||")) {
+                Parsed right = and();
+                Node a = left.node, b = right.node;
+                EnumSet<PacketType> types = null;
+                if (left.types != null && right.types != null) {
+                    types = EnumSet.copyOf(left.types);
+                    types.addAll(right.types);
+                }
+                left = new Parsed((player, packet) -> a.test(player, packet) || b.test(player, packet), types);
+            }
+            return left;
+        }
+        
+        private Parsed and() throws FilterException {
+            Parsed left = unary();
+            while (accept("&&")) {
+                Parsed right = unary();
+                Node a = left.node, b = right.node;
+                EnumSet<PacketType> types;
+                if (left.types == null || right.types == null) {
+                    types = left.types != null ? left.types : right.types;
+                } else {
+                    types = EnumSet.copyOf(left.types);
+                    types.retainAll(right.types);
+                }
+                left = new Parsed((player, packet) -> a.test(player, packet) && b.test(player, packet), types);
+            }
+            return left;
+        }
+        
+        private Parsed unary() throws FilterException {
+            if (accept("!")) {
+                Node inner = unary().node;
+                return new Parsed((player, packet) -> !inner.test(player, packet), null);
+            }
+            if (accept("(")) {
+                Parsed inner = expression();
+                expect(")");
+                return inner;
+            }
+            return test();
+        }
+        
+        private Parsed test() throws FilterException {
+            int start = skipSpace();
+            String name = identifier();
+            if (name == null) {
+                throw error("Expected a field, type or player", start);
+            }
+            
+            if (name.equals("type")) {
+                return typeTest();
+            }
+            if (name.equals("player")) {
+                int opAt = skipSpace();
+                Op op = operator();
+                if (op == null || (op.isOrdering() && op != Op.EQ && op != Op.NE)) {
+                    throw error("player takes == != matches contains", opAt);
+                }
+                Node node = stringTest(op, string(), null, 0);
+                return new Parsed(node, null);
+            }
+            
+            Field field = Field.byName(name);
+            if (field == null) {
+                throw error("Unknown field '" + name + "'", start);
+            }
+            expect("[");
+            int index = index();
+            expect("]");
+            return new Parsed(fieldTest(field, index), null);
+        }
+        
+        private Parsed typeTest() throws FilterException {
+            int opAt = skipSpace();
+            Op op = operator();
+            if (op != Op.EQ && op != Op.NE) {
+                throw error("type takes == or !=", opAt);
+            }
+            int nameAt = skipSpace();
+            String name = identifier();
+            if (name == null) {
+                throw error("Expected a packet type", nameAt);
+            }
+            
+            EnumSet<PacketType> matches = matchTypes(name);
+            if (matches.isEmpty()) {
+                throw error("Unknown packet type '" + name + "'", nameAt);
+            }
+            
+            if (op == Op.EQ) {
+                return new Parsed((player, packet) -> matches.contains(packet.getType()), matches);
+            }
+            return new Parsed((player, packet) -> !matches.contains(packet.getType()), null);
+        }
+        
+        private Node fieldTest(Field field, int index) throws FilterException {
+            Class<?> type = field.type;
+            int opAt = skipSpace();
+            Op op = operator();
+            
+            if (field == Field.BOOLEANS) {
+                boolean expected = true;
+                if (op != null) {
+                    if (op != Op.EQ && op != Op.NE) {
+                        throw error("booleans take == or !=", opAt);
+                    }
+                    expected = bool() == (op == Op.EQ);
+                }
+                boolean want = expected;
+                return (player, packet) -> {
+                    FieldAccessor<?> accessor = accessor(packet, type, index);
+                    return accessor != null && accessor.getBoolean(packet.getHandle()) == want;
+                };
+            }
+            if (op == null) {
+                throw error("Expected an operator", opAt);
+            }
+            
+            if (field == Field.STRINGS) {
+                if (op.isOrdering() && op != Op.EQ && op != Op.NE) {
+                    throw error("strings take == != matches contains", opAt);
+                }
+                return stringTest(op, string(), type, index);
+            }
+            
+            if (field == Field.UUIDS) {
+                if (op != Op.EQ && op != Op.NE) {
+                    throw error("uuids take == or !=", opAt);
+                }
+                int at = skipSpace();
+                UUID expected;
+                try {
+                    expected = UUID.fromString(string());
+                } catch (IllegalArgumentException e) {
+                    throw error("Not a UUID", at);
+                }
+                boolean equal = op == Op.EQ;
+                return (player, packet) -> {
+                    FieldAccessor<?> accessor = accessor(packet, type, index);
+                    return accessor != null && expected.equals(accessor.get(packet.getHandle())) == equal;
+                };
+            }
+            
+            // Numbers from here on
+            if (!op.isOrdering()) {
+                throw error(op.symbol + " is for strings", opAt);
+            }
+            int at = skipSpace();
+            String literal = number();
+            if (literal == null) {
+                throw error("Expected a number", at);
+            }
+            
+            boolean integral = literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0;
+            if (field.isIntegral() && integral) {
+                long expected;
+                try {
+                    expected = Long.parseLong(literal);
+                } catch (NumberFormatException e) {
+                    throw error("Number out of range", at);
+                }
+                return (player, packet) -> {
+                    FieldAccessor<?> accessor = accessor(packet, type, index);
+                    return accessor != null && op.test(Long.compare(readLong(field, accessor, packet.getHandle()), expected));
+                };
+            }
+            
+            double expected = Double.parseDouble(literal);
+            return (player, packet) -> {
+                FieldAccessor<?> accessor = accessor(packet, type, index);
+                return accessor != null && op.test(Double.compare(readDouble(field, accessor, packet.getHandle()), expected));
+            };
+        }
+        
+        /**
+         * String comparison against a field, or the player's name if type is null.
+         */
+        private Node stringTest(Op op, String literal, Class<?> type, int index) throws FilterException {
+            StringReader reader = type == null
+                ? (player, packet) -> player.getName()
+                : (player, packet) -> {
+                    FieldAccessor<?> accessor = accessor(packet, type, index);
+                    return accessor != null ? accessor.get(packet.getHandle()) : MISSING;
+                };
+            
+            switch (op) {
+                case EQ:
+                    return (player, packet) -> {
+                        Object value = reader.read(player, packet);
+                        return value != MISSING && literal.equals(value);
+                    };
+                case NE:
+                    return (player, packet) -> {
+                        Object value = reader.read(player, packet);
+                        return value != MISSING && !literal.equals(value);
+                    };
+                case CONTAINS:
+                    return (player, packet) -> {
+                        Object value = reader.read(player, packet);
+                        return value instanceof String s && s.contains(literal);
+                    };
+                case MATCHES:
+                    Pattern pattern;
+                    try {
+                        pattern = Pattern.compile(literal);
+                    } catch (PatternSyntaxException e) {
+                        throw new FilterException("Bad regex \"" + literal + "\": " + e.getDescription());
+                    }
+                    return (player, packet) -> {
+                        Object value = reader.read(player, packet);
+                        return value instanceof String s && pattern.matcher(s).find();
+                    };
+                default:
+                    throw new FilterException("Strings don't do " + op.symbol);
+            }
+        }
+        
+        // ---- Tokens ----
+        
+        void expectEnd() throws FilterException {
+            int at = skipSpace();
+            if (at < source.length()) {
+                throw error("Unexpected '" + source.substring(at) + "'", at);
+            }
+        }
+        
+        private int skipSpace() {
+            while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+                pos++;
+            }
+            return pos;
+        }
+        
+        private boolean accept(String symbol) {
+            skipSpace();
+            if (source.startsWith(symbol, pos)) {
+                // Don't read the ! of != as a not
+                if (symbol.equals("!") && source.startsWith("!=", pos)) {
+                    return false;
+                }
+                pos += symbol.length();
+                return true;
+            }
+            return false;
+        }
+        
+        private void expect(String symbol) throws FilterException {
+            if (!accept(symbol)) {
+                throw error("Expected '" + symbol + "'", pos);
+            }
+        }
+        
+        private String identifier() {
+            skipSpace();
+            int start = pos;
+            while (pos < source.length()
+                && (Character.isLetterOrDigit(source.charAt(pos)) || source.charAt(pos) == '_')) {
+                pos++;
+            }
+            if (pos == start || Character.isDigit(source.charAt(start))) {
+                pos = start;
+                return null;
+            }
+            return source.substring(start, pos);
+        }
+        
+        private Op operator() {
+            skipSpace();
+            // Longest first so <= doesn't read as <
+            for (String symbol : new String[]{"==", "!=", "<=", ">=", "<", ">"}) {
+                if (source.startsWith(symbol, pos)) {
+                    pos += symbol.length();
+                    for (Op op : Op.values()) {
+                        if (op.symbol.equals(symbol)) {
+                            return op;
+                        }
+                    }
+                }
+            }
+            int start = pos;
+            String word = identifier();
+            if ("matches".equals(word)) {
+                return Op.MATCHES;
+            }
+            if ("contains".equals(word)) {
+                return Op.CONTAINS;
+            }
+            pos = start;
+            return null;
+        }
+        
+        private int index() throws FilterException {
+            int at = skipSpace();
+            String number = number();
+            try {
+                int index = number != null ? Integer.parseInt(number) : -1;
+                if (index >= 0) {
+                    return index;
+                }
+            } catch (NumberFormatException e) {
+                // Fall through
+            }
+            throw error("Expected a field index", at);
+        }
+        
+        private String number() {
+            skipSpace();
+            int start = pos;
+            if (pos < source.length() && (source.charAt(pos) == '-' || source.charAt(pos) == '+')) {
+                pos++;
+            }
+            while (pos < source.length()) {
+                char c = source.charAt(pos);
+                boolean exponentSign = (c == '-' || c == '+') && pos > start
+                    && (source.charAt(pos - 1) == 'e' || source.charAt(pos - 1) == 'E');
+                if (!Character.isDigit(c) && c != '.' && c != 'e' && c != 'E' && !exponentSign) {
+                    break;
+                }
+                pos++;
+            }
+            String number = source.substring(start, pos);
+            try {
+                Double.parseDouble(number);
+                return number;
+            } catch (NumberFormatException e) {
+                pos = start;
+                return null;
+            }
+        }
+        
+        private boolean bool() throws FilterException {
+            int at = skipSpace();
+            String word = identifier();
+            if ("true".equals(word)) {
+                return true;
+            }
+            if ("false".equals(word)) {
+                return false;
+            }
+            throw error("Expected true or false", at);
+        }
+        
+        /**
+         * "double quoted", with \" and \\ escapes. Anything else
+         * after a backslash is kept as is, so regexes survive.
+         */
+        private String string() throws FilterException {
+            int at = skipSpace();
+            if (pos >= source.length() || source.charAt(pos) != '"') {
+                throw error("Expected a \"string\"", at);
+            }
+            pos++;
+            StringBuilder sb = new StringBuilder();
+            while (pos < source.length()) {
+                char c = source.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c == '\\' && pos < source.length()) {
+                    char next = source.charAt(pos);
+                    if (next == '"' || next == '\\') {
+                        sb.append(next);
+                        pos++;
+                        continue;
+                    }
+                }
+                sb.append(c);
+            }
+            throw error("Unterminated string", at);
+        }
+        
+        private FilterException error(String message, int at) {
+            return new FilterException(message + " at column " + (at + 1) + ": " + source);
+        }
+    }
+    
+    // Field the packet doesn't have, as opposed to a null one
+    private static final Object MISSING = new Object();
+    
+    private interface StringReader {
+        Object read(Player player, PacketContainer packet);
+    }
+    
+    /**
+     * Exact enum name, or every type ending in _NAME.
+     */
+    private static EnumSet<PacketType> matchTypes(String name) {
+        String upper = name.toUpperCase();
+        EnumSet<PacketType> matches = EnumSet.noneOf(PacketType.class);
+        for (PacketType type : PacketType.values()) {
+            if (type.name().equals(upper)) {
+                return EnumSet.of(type);
+            }
+            if (type.name().endsWith("_" + upper)) {
+                matches.add(type);
+            }
+        }
+        return matches;
+    }
+}
\ No newline at end of file
@@ -3,14 +3,18 @@ package net.mrcappy.corelib.protocol;
 import net.mrcappy.corelib.protocol.packet.PacketContainer;
 import net.mrcappy.corelib.protocol.packet.PacketType;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
 
 /**
  * Tracks packet history for debugging.
  * 
  * Ever had a player complain about lag and you have no
- * fucking clue what's happening? This class is your 
+ * fucking clue what's happening? This class is your
  * forensic evidence. It's like a black box recorder for
  * packets, except instead of plane crashes it's for when
  * xXx_MinecraftGod_xXx claims the server is eating his inputs.
@@ -21,41 +25,78 @@ import java.util.concurrent.ConcurrentLinkedDeque;
  * 
  * It's a circular buffer because we're not storing the entire
  * internet's worth of packets. Your RAM will thank me.
+ * 
+ * An actual one now: preallocated parallel arrays (type ordinal,
+ * nanoTime, packet reference) and one atomic cursor per direction.
+ * Recording is a getAndIncrement and three array stores - no
+ * objects, no reflection, no trimming. Summaries get built from
+ * the stored packet only when someone actually looks.
+ * 
+ * Since we keep the packet itself, a summary shows the packet
+ * as it is when you read it. For the packets you'd care about
+ * that's the same thing.
+ * 
+ * Two indexes ride along for PacketQuery, both updated on write
+ * for a couple of extra stores:
+ * - per type: every slot links to the previous slot of the same
+ *   type, so "all BLOCK_DIG" walks only BLOCK_DIG entries
+ * - per time bucket (~1s of nanoTime): the first sequence written
+ *   in that bucket, so "last 30s" jumps straight to where it starts
+ * 
+ * Both assume one writer per direction, which is what you get -
+ * everything is recorded on the player's event loop. A second
+ * writer can't corrupt anything, it just makes the indexes a
+ * little optimistic, and the query double checks every entry.
  */
 public class PacketHistory {
     
+    private static final PacketType[] TYPES = PacketType.values();
+    
+    private static final VarHandle STAMPS = MethodHandles.arrayElementVarHandle(long[].class);
+    
+    // nanoTime >> 30 = buckets of ~1.07s
+    private static final int BUCKET_SHIFT = 30;
+    private static final int BUCKETS = 64;
+    
+    private final UUID playerId;
     private final int maxSize;
-    private final Deque<PacketEntry> incoming;
-    private final Deque<PacketEntry> outgoing;
+    private final Ring incoming;
+    private final Ring outgoing;
+    
+    // Wall clock anchor so nanoTime stamps can be shown as real times
+    private final long baseMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
     
     public PacketHistory(int maxSize) {
+        this(null, maxSize);
+    }
+    
+    public PacketHistory(UUID playerId, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("History size must be positive");
+        }
+        this.playerId = playerId;
         this.maxSize = maxSize;
-        this.incoming = new ConcurrentLinkedDeque<>();
-        this.outgoing = new ConcurrentLinkedDeque<>();
+        
+        // Round up so slot = sequence & mask
+        int capacity = Integer.highestOneBit(Math.max(1, maxSize - 1)) << 1;
+        this.incoming = new Ring(capacity, false);
+        this.outgoing = new Ring(capacity, true);
     }
     
     /**
      * Add an incoming packet to history.
-     * Oldest packet gets yeeted when we hit max size.
+     * Oldest packet gets overwritten, no trimming needed.
      */
     public void addIncoming(PacketContainer packet) {
-        incoming.addLast(new PacketEntry(packet, System.currentTimeMillis()));
-        
-        // Trim to size like a responsible adult
-        while (incoming.size() > maxSize) {
-            incoming.removeFirst();
-        }
+        incoming.add(packet.getType().ordinal(), System.nanoTime(), packet.getHandle());
     }
     
     /**
      * Add an outgoing packet to history.
      */
     public void addOutgoing(PacketContainer packet) {
-        outgoing.addLast(new PacketEntry(packet, System.currentTimeMillis()));
-        
-        while (outgoing.size() > maxSize) {
-            outgoing.removeFirst();
-        }
+        outgoing.add(packet.getType().ordinal(), System.nanoTime(), packet.getHandle());
     }
     
     /**
@@ -63,32 +104,53 @@ public class PacketHistory {
      * Most recent last because that's how time works.
      */
     public List<PacketEntry> getIncoming(int limit) {
-        List<PacketEntry> result = new ArrayList<>();
-        Iterator<PacketEntry> it = incoming.descendingIterator();
-        
-        int count = 0;
-        while (it.hasNext() && count++ < limit) {
-            result.add(0, it.next()); // Add to front to maintain order
-        }
-        
-        return result;
+        return incoming.snapshot(Math.min(limit, maxSize));
     }
     
     /**
      * Get recent outgoing packets.
      */
     public List<PacketEntry> getOutgoing(int limit) {
+        return outgoing.snapshot(Math.min(limit, maxSize));
+    }
+    
+    /**
+     * Everything in this history matching the query's type, direction,
+     * time and field filters, oldest first. The player filter is the
+     * caller's job, a history only knows one player.
+     */
+    public List<PacketEntry> query(PacketQuery query) {
         List<PacketEntry> result = new ArrayList<>();
-        Iterator<PacketEntry> it = outgoing.descendingIterator();
-        
-        int count = 0;
-        while (it.hasNext() && count++ < limit) {
-            result.add(0, it.next());
+        if (query.matchesDirection(false)) {
+            incoming.query(query, result);
+        }
+        if (query.matchesDirection(true)) {
+            outgoing.query(query, result);
+        }
+        if (query.matchesDirection(false) && query.matchesDirection(true)) {
+            result.sort(Comparator.comparingLong(PacketEntry::getNanoTime));
         }
-        
         return result;
     }
     
+    /**
+     * The player this history belongs to, null if nobody said.
+     */
+    public UUID getPlayerId() {
+        return playerId;
+    }
+    
+    /**
+     * Total packets ever recorded, including ones that got overwritten.
+     */
+    public long getIncomingCount() {
+        return incoming.cursor.get();
+    }
+    
+    public long getOutgoingCount() {
+        return outgoing.cursor.get();
+    }
+    
     /**
      * Clear all history.
      * For when you want to forget the past.
@@ -98,27 +160,231 @@ public class PacketHistory {
         outgoing.clear();
     }
     
+    /**
+     * One direction's ring.
+     * 
+     * Each slot has a stamp holding the sequence number written
+     * into it. Writers set it last, readers check it before and
+     * after reading the slot - if it moved, the slot got lapped
+     * mid-read and we skip it. Seqlock without the lock.
+     */
+    private final class Ring {
+        private final boolean outgoing;
+        private final int mask;
+        private final AtomicLong cursor = new AtomicLong();
+        private final long[] stamps;
+        private final int[] types;
+        private final long[] times;
+        private final Object[] handles;
+        
+        // Type index: newest sequence per type, and per slot the
+        // sequence of the previous packet with the same type
+        private final AtomicLongArray lastByType = new AtomicLongArray(TYPES.length);
+        private final long[] previousSameType;
+        
+        // Time index: first sequence written in each nanoTime bucket
+        private final long[] bucketIds = new long[BUCKETS];
+        private final long[] bucketFirst = new long[BUCKETS];
+        
+        Ring(int capacity, boolean outgoing) {
+            this.outgoing = outgoing;
+            this.mask = capacity - 1;
+            this.stamps = new long[capacity];
+            this.types = new int[capacity];
+            this.times = new long[capacity];
+            this.handles = new Object[capacity];
+            this.previousSameType = new long[capacity];
+            Arrays.fill(stamps, -1);
+            Arrays.fill(bucketIds, Long.MIN_VALUE);
+            for (int i = 0; i < TYPES.length; i++) {
+                lastByType.set(i, -1);
+            }
+        }
+        
+        void add(int type, long nanos, Object handle) {
+            long seq = cursor.getAndIncrement();
+            int slot = (int) (seq & mask);
+            
+            STAMPS.setVolatile(stamps, slot, -1L); // Busy, keep out
+            types[slot] = type;
+            times[slot] = nanos;
+            handles[slot] = handle;
+            previousSameType[slot] = lastByType.getAndSet(type, seq);
+            STAMPS.setRelease(stamps, slot, seq);
+            
+            long bucket = nanos >> BUCKET_SHIFT;
+            int index = (int) (bucket & (BUCKETS - 1));
+            if (bucketIds[index] != bucket) {
+                bucketFirst[index] = seq;
+                bucketIds[index] = bucket;
+            }
+        }
+        
+        List<PacketEntry> snapshot(int limit) {
+            long head = cursor.get();
+            long from = Math.max(0, head - Math.min(limit, mask + 1));
+            
+            List<PacketEntry> result = new ArrayList<>((int) (head - from));
+            for (long seq = from; seq < head; seq++) {
+                int slot = (int) (seq & mask);
+                if ((long) STAMPS.getAcquire(stamps, slot) != seq) {
+                    continue; // Still being written or already lapped
+                }
+                
+                int type = types[slot];
+                long nanos = times[slot];
+                Object handle = handles[slot];
+                
+                VarHandle.acquireFence();
+                if ((long) STAMPS.getVolatile(stamps, slot) != seq) {
+                    continue; // Lapped while we were reading
+                }
+                
+                result.add(entry(type, nanos, handle));
+            }
+            return result;
+        }
+        
+        /**
+         * Type filter: walk each type's chain backwards until it drops
+         * below the start of the time range. No type filter: scan from
+         * the start of the time range to the head.
+         */
+        void query(PacketQuery query, List<PacketEntry> out) {
+            long head = cursor.get();
+            long start = Math.max(startOf(query.getFromNanos(), head), Math.max(0, head - maxSize));
+            
+            Set<PacketType> wanted = query.getTypes();
+            if (wanted == null) {
+                for (long seq = start; seq < head; seq++) {
+                    read(seq, query, out);
+                }
+                return;
+            }
+            
+            int before = out.size();
+            for (PacketType type : wanted) {
+                long seq = lastByType.get(type.ordinal());
+                while (seq >= start) {
+                    int slot = (int) (seq & mask);
+                    long previous = previousSameType[slot];
+                    if (!read(seq, query, out) && (long) STAMPS.getVolatile(stamps, slot) != seq) {
+                        break; // Lapped, everything older is gone too
+                    }
+                    seq = previous;
+                }
+            }
+            // Chains come out newest first and one type at a time
+            out.subList(before, out.size()).sort(Comparator.comparingLong(PacketEntry::getNanoTime));
+        }
+        
+        /**
+         * First sequence that can be at or after fromNanos, according
+         * to the bucket index. Conservative: never skips a match.
+         */
+        private long startOf(long fromNanos, long head) {
+            if (fromNanos == Long.MIN_VALUE) {
+                return 0;
+            }
+            long from = fromNanos >> BUCKET_SHIFT;
+            long now = System.nanoTime() >> BUCKET_SHIFT;
+            if (now - from >= BUCKETS) {
+                return 0; // Older than the index reaches, just bound by capacity
+            }
+            for (long bucket = from; bucket <= now; bucket++) {
+                int index = (int) (bucket & (BUCKETS - 1));
+                if (bucketIds[index] == bucket) {
+                    return bucketFirst[index];
+                }
+            }
+            return head; // Nothing recorded since
+        }
+        
+        /**
+         * Read one slot and add it if it matches.
+         * Returns false if it was lapped or didn't match.
+         */
+        private boolean read(long seq, PacketQuery query, List<PacketEntry> out) {
+            int slot = (int) (seq & mask);
+            if ((long) STAMPS.getAcquire(stamps, slot) != seq) {
+                return false;
+            }
+            
+            int type = types[slot];
+            long nanos = times[slot];
+            Object handle = handles[slot];
+            
+            VarHandle.acquireFence();
+            if ((long) STAMPS.getVolatile(stamps, slot) != seq) {
+                return false;
+            }
+            
+            if (!query.inRange(nanos)) {
+                return false;
+            }
+            
+            PacketEntry entry = entry(type, nanos, handle);
+            Predicate<PacketContainer> predicate = query.getPredicate();
+            if (predicate != null) {
+                try {
+                    if (!predicate.test(new PacketContainer(entry.type, handle))) {
+                        return false;
+                    }
+                } catch (Exception e) {
+                    return false; // Broken predicate = no match
+                }
+            }
+            
+            out.add(entry);
+            return true;
+        }
+        
+        private PacketEntry entry(int type, long nanos, Object handle) {
+            long timestamp = baseMillis + (nanos - baseNanos) / 1_000_000;
+            return new PacketEntry(TYPES[type], timestamp, nanos, handle, playerId, outgoing);
+        }
+        
+        void clear() {
+            // Stamps that never match a future sequence = empty
+            for (int i = 0; i <= mask; i++) {
+                STAMPS.setVolatile(stamps, i, -1L);
+                handles[i] = null;
+            }
+            // Stale chains and buckets point at dead stamps now,
+            // and every read checks the stamp
+        }
+    }
+    
     /**
      * Single packet entry with timestamp.
-     * Immutable because thread safety is important or whatever.
+     * Built when someone reads the history, never on the hot path.
      */
     public static class PacketEntry {
         private final PacketType type;
         private final long timestamp;
-        private final String summary;
+        private final long nanoTime;
+        private final Object handle;
+        private final UUID playerId;
+        private final boolean outgoing;
+        private String summary;
         
-        PacketEntry(PacketContainer packet, long timestamp) {
-            this.type = packet.getType();
+        PacketEntry(PacketType type, long timestamp, long nanoTime, Object handle,
+                    UUID playerId, boolean outgoing) {
+            this.type = type;
             this.timestamp = timestamp;
-            this.summary = generateSummary(packet);
+            this.nanoTime = nanoTime;
+            this.handle = handle;
+            this.playerId = playerId;
+            this.outgoing = outgoing;
         }
         
         /**
          * Generate a summary of the packet for debugging.
          * Shows the first few fields so you know what's in it.
          */
-        private String generateSummary(PacketContainer packet) {
+        private String generateSummary() {
             try {
+                PacketContainer packet = new PacketContainer(type, handle);
                 StringBuilder sb = new StringBuilder();
                 sb.append(type.name()).append(" [");
                 
@@ -145,7 +411,38 @@ public class PacketHistory {
             return timestamp;
         }
         
+        /**
+         * Raw System.nanoTime() stamp, for measuring gaps between packets.
+         */
+        public long getNanoTime() {
+            return nanoTime;
+        }
+        
+        /**
+         * Whose history this came from, null if the history doesn't know.
+         */
+        public UUID getPlayerId() {
+            return playerId;
+        }
+        
+        public boolean isOutgoing() {
+            return outgoing;
+        }
+        
+        /**
+         * The NMS packet itself.
+         */
+        public Object getHandle() {
+            return handle;
+        }
+        
+        /**
+         * Rendered on first call, cached after that.
+         */
         public String getSummary() {
+            if (summary == null) {
+                summary = generateSummary();
+            }
             return summary;
         }
     }
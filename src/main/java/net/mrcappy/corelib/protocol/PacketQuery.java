@@ -0,0 +1,195 @@
+package net.mrcappy.corelib.protocol;
+
+import net.mrcappy.corelib.protocol.packet.PacketContainer;
+import net.mrcappy.corelib.protocol.packet.PacketType;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A question to ask the packet history.
+ * 
+ * "All BLOCK_DIG from Steve and Alex in the last 30 seconds":
+ * PacketQuery.create()
+ *     .players(steve, alex)
+ *     .types(PacketType.PLAY_CLIENT_BLOCK_DIG)
+ *     .incoming()
+ *     .since(30, TimeUnit.SECONDS)
+ * 
+ * Run it with ProtocolManager.queryHistory(). Types and time
+ * range go through PacketHistory's indexes, so they're cheap.
+ * The field predicate wraps every candidate in a PacketContainer
+ * and reflects over it, so narrow things down with the other
+ * filters first or it's a full scan with extra steps.
+ * 
+ * Leave a filter out and it matches everything.
+ */
+public class PacketQuery {
+    
+    private Set<UUID> players;
+    private EnumSet<PacketType> types;
+    private Boolean outgoing;
+    private long fromNanos = Long.MIN_VALUE;
+    private long toNanos = Long.MAX_VALUE;
+    private Predicate<PacketContainer> predicate;
+    private int page = 1;
+    private int pageSize = 10;
+    
+    public static PacketQuery create() {
+        return new PacketQuery();
+    }
+    
+    public PacketQuery players(Player... players) {
+        Set<UUID> ids = new HashSet<>();
+        for (Player player : players) {
+            ids.add(player.getUniqueId());
+        }
+        return playerIds(ids);
+    }
+    
+    public PacketQuery playerIds(Collection<UUID> ids) {
+        if (this.players == null) {
+            this.players = new HashSet<>();
+        }
+        this.players.addAll(ids);
+        return this;
+    }
+    
+    public PacketQuery types(PacketType... types) {
+        return types(Arrays.asList(types));
+    }
+    
+    public PacketQuery types(Collection<PacketType> types) {
+        if (this.types == null) {
+            this.types = EnumSet.noneOf(PacketType.class);
+        }
+        this.types.addAll(types);
+        return this;
+    }
+    
+    public PacketQuery incoming() {
+        this.outgoing = false;
+        return this;
+    }
+    
+    public PacketQuery outgoing() {
+        this.outgoing = true;
+        return this;
+    }
+    
+    /**
+     * Only packets from the last this-long.
+     */
+    public PacketQuery since(long duration, TimeUnit unit) {
+        this.fromNanos = System.nanoTime() - unit.toNanos(duration);
+        return this;
+    }
+    
+    /**
+     * Only packets between two wall clock times (epoch millis).
+     */
+    public PacketQuery between(long fromMillis, long toMillis) {
+        // Histories index by nanoTime, so translate once up front
+        long nowMillis = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        this.fromNanos = nowNanos - TimeUnit.MILLISECONDS.toNanos(nowMillis - fromMillis);
+        this.toNanos = nowNanos - TimeUnit.MILLISECONDS.toNanos(nowMillis - toMillis);
+        return this;
+    }
+    
+    /**
+     * Only packets whose fields pass this check. Runs last, and
+     * a predicate that throws counts as a miss.
+     */
+    public PacketQuery where(Predicate<PacketContainer> predicate) {
+        this.predicate = this.predicate == null ? predicate : this.predicate.and(predicate);
+        return this;
+    }
+    
+    /**
+     * Which page of results, newest first. Pages start at 1.
+     */
+    public PacketQuery page(int page, int pageSize) {
+        if (page < 1 || pageSize < 1) {
+            throw new IllegalArgumentException("Page and page size must be positive");
+        }
+        this.page = page;
+        this.pageSize = pageSize;
+        return this;
+    }
+    
+    public Set<UUID> getPlayers() {
+        return players;
+    }
+    
+    public Set<PacketType> getTypes() {
+        return types;
+    }
+    
+    boolean matchesDirection(boolean outgoing) {
+        return this.outgoing == null || this.outgoing == outgoing;
+    }
+    
+    long getFromNanos() {
+        return fromNanos;
+    }
+    
+    /**
+     * Inside the time range? Compares by difference like nanoTime
+     * wants, with the open ends special cased so they don't overflow.
+     */
+    boolean inRange(long nanos) {
+        return (fromNanos == Long.MIN_VALUE || nanos - fromNanos >= 0)
+            && (toNanos == Long.MAX_VALUE || nanos - toNanos <= 0);
+    }
+    
+    Predicate<PacketContainer> getPredicate() {
+        return predicate;
+    }
+    
+    public int getPage() {
+        return page;
+    }
+    
+    public int getPageSize() {
+        return pageSize;
+    }
+    
+    /**
+     * One page of matches plus enough to render "page 2 of 7".
+     */
+    public static class Result {
+        private final List<PacketHistory.PacketEntry> entries;
+        private final int total;
+        private final int page;
+        private final int pageSize;
+        
+        Result(List<PacketHistory.PacketEntry> entries, int total, int page, int pageSize) {
+            this.entries = Collections.unmodifiableList(entries);
+            this.total = total;
+            this.page = page;
+            this.pageSize = pageSize;
+        }
+        
+        /**
+         * This page's matches, newest first.
+         */
+        public List<PacketHistory.PacketEntry> getEntries() {
+            return entries;
+        }
+        
+        public int getTotal() {
+            return total;
+        }
+        
+        public int getPage() {
+            return page;
+        }
+        
+        public int getPages() {
+            return Math.max(1, (total + pageSize - 1) / pageSize);
+        }
+    }
+}
\ No newline at end of file
@@ -1,25 +1,42 @@
 package net.mrcappy.corelib.protocol;
 
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
 import net.mrcappy.corelib.CoreLibPlugin;
+import net.mrcappy.corelib.protocol.export.CaptureFilter;
+import net.mrcappy.corelib.protocol.export.FlightRecorder;
 import net.mrcappy.corelib.protocol.export.PCAPExporter;
+import net.mrcappy.corelib.protocol.injector.PacketBroadcaster;
 import net.mrcappy.corelib.protocol.injector.PlayerInjector;
 import net.mrcappy.corelib.protocol.listener.AnnotationProcessor;
+import net.mrcappy.corelib.protocol.listener.JavaScriptPacketListener;
+import net.mrcappy.corelib.protocol.listener.ListenerPriority;
 import net.mrcappy.corelib.protocol.listener.PacketListener;
 import net.mrcappy.corelib.protocol.listener.PacketListenerManager;
+import net.mrcappy.corelib.protocol.listener.RawPacketListener;
 import net.mrcappy.corelib.protocol.logging.WebhookLogger;
 import net.mrcappy.corelib.protocol.packet.PacketContainer;
+import net.mrcappy.corelib.protocol.packet.PacketContainerPool;
+import net.mrcappy.corelib.protocol.packet.RawPacket;
 import net.mrcappy.corelib.protocol.util.PacketEffects;
 import net.mrcappy.corelib.protocol.packet.PacketType;
+import net.mrcappy.corelib.protocol.reflect.StructureTemplate;
 import net.mrcappy.corelib.version.MinecraftVersion;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerKickEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 
 /**
@@ -48,22 +65,34 @@ public class ProtocolManager implements Listener {
     // Player injectors - one per player
     private final Map<UUID, PlayerInjector> injectors = new ConcurrentHashMap<>();
     
+    // Shared-encode multi-player sends
+    private final PacketBroadcaster broadcaster;
+    
     // Listener management
     private final PacketListenerManager listenerManager;
     
+    // Observers for encoded outgoing bytes
+    private final List<RawPacketListener> rawListeners = new CopyOnWriteArrayList<>();
+    
     // Packet history tracking
     private final Map<UUID, PacketHistory> histories = new ConcurrentHashMap<>();
+    private volatile int historySize = 100;
     
     // Rate limiting
     private final RateLimiter rateLimiter;
+    private final ViolationTracker violationTracker;
     
     // JavaScript engine for filters
     private final ScriptEngine scriptEngine;
     
+    // Hot reload for scripts/*.js, and the listeners config.yml binds to them
+    private final ScriptWatcher scriptWatcher;
+    private final List<JavaScriptPacketListener> scriptFilterListeners = new ArrayList<>();
+    
     // Fake entity manager
     private final FakeEntityManager fakeEntityManager;
     
-    // Fake block manager  
+    // Fake block manager
     private final FakeBlockManager fakeBlockManager;
     
     // Packet scheduler
@@ -78,12 +107,20 @@ public class ProtocolManager implements Listener {
     // Annotation processor
     private final AnnotationProcessor annotationProcessor;
     
-    // Optional components - package private for injector access
-    WebhookLogger webhookLogger;
-    PCAPExporter pcapExporter;
+    // Optional components - volatile because the injector reads them on Netty threads
+    volatile WebhookLogger webhookLogger;
+    volatile PCAPExporter pcapExporter;
+    volatile FlightRecorder flightRecorder;
+    
+    // What the PCAP exporter keeps. Outlives the exporter, so a
+    // restarted capture keeps the same filter.
+    private volatile CaptureFilter captureFilter = CaptureFilter.ALL;
     
     // Debug mode
-    private boolean debugMode = false;
+    private volatile boolean debugMode = false;
+    
+    // Reuse PacketContainers on the injector hot path (opt-in)
+    private volatile boolean containerPooling = false;
     
     public ProtocolManager(Plugin plugin) {
         this.plugin = plugin;
@@ -92,7 +129,9 @@ public class ProtocolManager implements Listener {
         
         // Initialize subsystems
         this.listenerManager = new PacketListenerManager(this);
+        this.broadcaster = new PacketBroadcaster(this);
         this.rateLimiter = new RateLimiter();
+        this.violationTracker = new ViolationTracker(plugin);
         this.scriptEngine = new ScriptEngine(plugin);
         this.fakeEntityManager = new FakeEntityManager(this);
         this.fakeBlockManager = new FakeBlockManager(this);
@@ -101,6 +140,36 @@ public class ProtocolManager implements Listener {
         this.capabilityDetector = new ClientCapabilityDetector();
         this.annotationProcessor = new AnnotationProcessor(this);
         
+        // Script filters: compile what's in scripts/, watch it, bind what config asks for
+        this.scriptWatcher = new ScriptWatcher(plugin, scriptEngine, new File(plugin.getDataFolder(), "scripts"));
+        try {
+            scriptWatcher.start();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "Script hot reload unavailable", e);
+        }
+        loadScriptFilters();
+        
+        // Black box, on by default. protocol.flight-recorder.enabled: false
+        // turns it off, protocol.flight-recorder.slots resizes the ring,
+        // max-dumps and triggers-per-minute keep kick floods off the disk.
+        if (plugin.getConfig().getBoolean("protocol.flight-recorder.enabled", true)) {
+            try {
+                startFlightRecorder(new File(plugin.getDataFolder(), "flight.ring"),
+                    plugin.getConfig().getInt("protocol.flight-recorder.slots", FlightRecorder.DEFAULT_SLOTS));
+                flightRecorder.setMaxDumpFiles(plugin.getConfig().getInt("protocol.flight-recorder.max-dumps", 50));
+                flightRecorder.setMaxTriggersPerMinute(
+                    plugin.getConfig().getInt("protocol.flight-recorder.triggers-per-minute", 10));
+            } catch (IOException | IllegalArgumentException e) {
+                plugin.getLogger().log(Level.WARNING, "Flight recorder unavailable", e);
+            }
+        }
+        violationTracker.setIncidentHandler(incident -> {
+            FlightRecorder recorder = flightRecorder;
+            if (recorder != null) {
+                logDump(recorder.trigger("ratelimit", incident.getPlayerId()));
+            }
+        });
+        
         // Register events
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
         
@@ -110,7 +179,7 @@ public class ProtocolManager implements Listener {
         }
         
         plugin.getLogger().info("Protocol Manager initialized for " + version);
-    }    
+    }
     /**
      * Inject into a player's network channel.
      * This is where we hook into their packet stream.
@@ -125,7 +194,7 @@ public class ProtocolManager implements Listener {
                 plugin.getLogger().info("Injected into " + player.getName());
             }
         } catch (Exception e) {
-            plugin.getLogger().log(Level.SEVERE, 
+            plugin.getLogger().log(Level.SEVERE,
                 "Failed to inject into player: " + player.getName(), e);
         }
     }
@@ -150,8 +219,11 @@ public class ProtocolManager implements Listener {
         fakeEntityManager.clearPlayer(player);
         fakeBlockManager.clearPlayer(player);
         
-        // Clean up rate limits
-        rateLimiter.clearPlayer(player.getUniqueId());
+        // Drop their async lane
+        listenerManager.getAsyncDispatcher().removePlayer(player.getUniqueId());
+        
+        // Not the flight recorder's trigger cooldown - that one has to
+        // survive a kick and reconnect, and expires on its own
     }
     
     @EventHandler
@@ -167,6 +239,33 @@ public class ProtocolManager implements Listener {
         uninjectPlayer(event.getPlayer());
     }
     
+    /**
+     * Kicks get their last minute of packets saved. The player is
+     * still connected at this point, so nothing's missing yet.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerKick(PlayerKickEvent event) {
+        FlightRecorder recorder = flightRecorder;
+        if (recorder != null) {
+            logDump(recorder.trigger("kick-" + event.getPlayer().getName(), event.getPlayer().getUniqueId()));
+        }
+    }
+    
+    /**
+     * Push out everything flush consolidation held back this tick.
+     */
+    @EventHandler
+    public void onTickEnd(ServerTickEndEvent event) {
+        for (PlayerInjector injector : injectors.values()) {
+            injector.flushPending();
+            injector.releaseDelayed();
+        }
+        
+        // Adaptive rate limits follow the server's load
+        rateLimiter.updateLoad(event.getTickDuration());
+        violationTracker.tick();
+    }
+    
     /**
      * Send a packet to a player.
      * This bypasses normal sending and injects directly.
@@ -184,11 +283,12 @@ public class ProtocolManager implements Listener {
     
     /**
      * Send a packet to multiple players.
+     * 
+     * Encodes once and shares the bytes between everyone when
+     * nothing's listening to this packet type. See PacketBroadcaster.
      */
     public void sendPacket(Collection<? extends Player> players, PacketContainer packet) {
-        for (Player player : players) {
-            sendPacket(player, packet);
-        }
+        broadcaster.send(players, packet);
     }
     
     /**
@@ -196,7 +296,208 @@ public class ProtocolManager implements Listener {
      */
     public void broadcastPacket(PacketContainer packet) {
         sendPacket(plugin.getServer().getOnlinePlayers(), packet);
-    }    
+    }
+    
+    /**
+     * Does anything care about this packet type?
+     * 
+     * Called by the injector for every single packet before it
+     * wraps anything, so this has to stay dirt cheap: a few
+     * volatile reads and a bitset check. No allocation, ever.
+     */
+    public boolean isIntercepting(PacketType type, boolean outgoing) {
+        if (debugMode || webhookLogger != null) {
+            return true; // Something wants to see everything
+        }
+        if (!outgoing && pcapExporter != null && captureFilter.accepts(type, false)) {
+            return true; // Outgoing capture comes from the raw tap instead
+        }
+        
+        if (outgoing) {
+            return listenerManager.hasSendingListeners(type);
+        }
+        return listenerManager.hasReceivingListeners(type) || rateLimiter.hasLimit(type);
+    }
+    
+    /**
+     * Slow path for an incoming packet somebody cares about.
+     * Rate limits, wraps, runs listeners and feeds the debug tooling.
+     * 
+     * @return true to let the packet through, false to drop it
+     */
+    public boolean handleIncoming(PlayerInjector injector, PacketType type, Object handle) {
+        Player player = injector.getPlayer();
+        if (!injector.isReplaying() && rateLimiter.shouldLimit(injector.getRateLimitState(), type)) {
+            onRateLimited(injector, type, handle);
+            return false; // Slow down, cowboy
+        }
+        
+        PacketContainerPool pool = injector.getContainerPool();
+        PacketContainer packet = wrap(pool, type, handle);
+        try {
+            boolean allowed = listenerManager.handleIncoming(player, packet);
+            
+            recordPacket(player, packet, false);
+            return allowed;
+        } finally {
+            pool.release(packet);
+        }
+    }
+    
+    /**
+     * Slow path for an outgoing packet somebody cares about.
+     * 
+     * @return true to let the packet through, false to drop it
+     */
+    public boolean handleOutgoing(PlayerInjector injector, PacketType type, Object handle) {
+        Player player = injector.getPlayer();
+        PacketContainerPool pool = injector.getContainerPool();
+        PacketContainer packet = wrap(pool, type, handle);
+        try {
+            boolean allowed = listenerManager.handleOutgoing(player, packet);
+            
+            recordPacket(player, packet, true);
+            return allowed;
+        } finally {
+            pool.release(packet);
+        }
+    }
+    
+    /**
+     * A packet went over its limit. The tracker counts it and says
+     * what to do; for DELAY the injector parks it until next tick.
+     * Either way it doesn't go through right now.
+     */
+    private void onRateLimited(PlayerInjector injector, PacketType type, Object handle) {
+        ViolationTracker.Record record = injector.getViolationRecord();
+        if (violationTracker.onViolation(record, type) == RateLimitPolicy.Action.DELAY
+                && !injector.delayIncoming(handle)) {
+            violationTracker.onDelayOverflow(record);
+        }
+    }
+    
+    /**
+     * Does this packet have to wait for async listeners?
+     * Only asked after isIntercepting() said yes.
+     */
+    public boolean hasAsyncListeners(PacketType type, boolean outgoing) {
+        return outgoing
+            ? listenerManager.hasAsyncSendingListeners(type)
+            : listenerManager.hasAsyncReceivingListeners(type);
+    }
+    
+    /**
+     * Incoming packet with async listeners on it.
+     * 
+     * Rate limit and sync listeners run right here like normal.
+     * If they let it through, the async listeners get their turn
+     * and the injector holds the packet until the verdict lands.
+     */
+    public CompletableFuture<Boolean> handleIncomingAsync(PlayerInjector injector, PacketType type, Object handle) {
+        Player player = injector.getPlayer();
+        if (!injector.isReplaying() && rateLimiter.shouldLimit(injector.getRateLimitState(), type)) {
+            onRateLimited(injector, type, handle);
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        // Never pooled, it has to outlive this call
+        PacketContainer packet = new PacketContainer(type, handle);
+        boolean allowed = listenerManager.handleIncoming(player, packet);
+        recordPacket(player, packet, false);
+        
+        if (!allowed) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return listenerManager.dispatchAsync(player, packet, false);
+    }
+    
+    /**
+     * Outgoing packet with async listeners on it.
+     */
+    public CompletableFuture<Boolean> handleOutgoingAsync(Player player, PacketType type, Object handle) {
+        PacketContainer packet = new PacketContainer(type, handle);
+        boolean allowed = listenerManager.handleOutgoing(player, packet);
+        recordPacket(player, packet, true);
+        
+        if (!allowed) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return listenerManager.dispatchAsync(player, packet, true);
+    }
+    
+    /**
+     * Wrap a packet for dispatch, from the pool if pooling is on.
+     * Releasing a non-pooled container is a no-op, so callers
+     * can always release without checking.
+     */
+    private PacketContainer wrap(PacketContainerPool pool, PacketType type, Object handle) {
+        if (containerPooling) {
+            return pool.acquire(type, handle);
+        }
+        return new PacketContainer(type, handle);
+    }
+    
+    /**
+     * Does anything want the encoded outgoing bytes as a RawPacket?
+     * Checked by the raw tap for every encoded packet. The flight
+     * recorder isn't in here, it copies from the ByteBuf itself.
+     */
+    public boolean isRawTapping() {
+        return !rawListeners.isEmpty()
+            || (pcapExporter != null && captureFilter.acceptsAny(true));
+    }
+    
+    /**
+     * Encoded bytes of an outgoing packet, straight from the encoder.
+     * The view dies when this returns, so everything here either
+     * reads it in place or copies what it needs.
+     */
+    public void handleRawOutgoing(Player player, RawPacket packet) {
+        PCAPExporter exporter = pcapExporter;
+        if (exporter != null && captureFilter.test(packet.getType(), true, player.getUniqueId())) {
+            exporter.exportRaw(packet, player.getName());
+            packet.rewind();
+        }
+        
+        for (RawPacketListener listener : rawListeners) {
+            try {
+                listener.onRawPacket(player, packet);
+            } catch (Exception e) {
+                plugin.getLogger().severe(
+                    "Error in raw packet listener " + listener.getClass().getName() +
+                    ": " + e.getMessage()
+                );
+            }
+            packet.rewind();
+        }
+    }
+    
+    /**
+     * Feed a packet to history, PCAP and webhook if they're on.
+     */
+    private void recordPacket(Player player, PacketContainer packet, boolean outgoing) {
+        if (debugMode) {
+            PacketHistory history = getHistory(player);
+            if (outgoing) {
+                history.addOutgoing(packet);
+            } else {
+                history.addIncoming(packet);
+            }
+        }
+        
+        // Outgoing packets get captured from the encoder's output
+        // in handleRawOutgoing, no point serializing them twice
+        PCAPExporter exporter = pcapExporter;
+        if (exporter != null && !outgoing && captureFilter.test(packet.getType(), false, player.getUniqueId())) {
+            exporter.exportPacket(packet, false, player.getName());
+        }
+        
+        WebhookLogger logger = webhookLogger;
+        if (logger != null) {
+            // Snapshots the fields right here, so pooled containers are fine
+            logger.logPacket(player, packet, outgoing);
+        }
+    }
     /**
      * Register a packet listener.
      */
@@ -211,21 +512,88 @@ public class ProtocolManager implements Listener {
         listenerManager.unregister(listener);
     }
     
+    /**
+     * Register an observer for encoded outgoing packets.
+     */
+    public void registerRawListener(RawPacketListener listener) {
+        rawListeners.add(listener);
+    }
+    
+    /**
+     * Unregister a raw packet observer.
+     */
+    public void unregisterRawListener(RawPacketListener listener) {
+        rawListeners.remove(listener);
+    }
+    
     /**
      * Get packet history for a player.
      */
     public PacketHistory getHistory(Player player) {
         return histories.computeIfAbsent(
-            player.getUniqueId(), 
-            uuid -> new PacketHistory(100) // Keep last 100 packets
+            player.getUniqueId(),
+            uuid -> new PacketHistory(uuid, historySize)
         );
     }
     
+    /**
+     * Packets kept per player per direction. Default 100.
+     * Only affects histories created after this call.
+     */
+    public void setHistorySize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("History size must be positive");
+        }
+        this.historySize = size;
+    }
+    
+    /**
+     * Search the recorded packet history.
+     * 
+     * Each player's history answers from its own indexes, then the
+     * matches get merged newest first and cut down to the page.
+     * Only debug mode records history, so with it off this finds
+     * whatever was recorded before it got switched off.
+     */
+    public PacketQuery.Result queryHistory(PacketQuery query) {
+        List<PacketHistory.PacketEntry> matches = new ArrayList<>();
+        Set<UUID> players = query.getPlayers();
+        if (players == null) {
+            for (PacketHistory history : histories.values()) {
+                matches.addAll(history.query(query));
+            }
+        } else {
+            for (UUID player : players) {
+                PacketHistory history = histories.get(player);
+                if (history != null) {
+                    matches.addAll(history.query(query));
+                }
+            }
+        }
+        
+        matches.sort(Comparator.comparingLong(PacketHistory.PacketEntry::getNanoTime).reversed());
+        
+        int from = (int) Math.min((long) (query.getPage() - 1) * query.getPageSize(), matches.size());
+        int to = Math.min(from + query.getPageSize(), matches.size());
+        return new PacketQuery.Result(new ArrayList<>(matches.subList(from, to)),
+            matches.size(), query.getPage(), query.getPageSize());
+    }
+    
+    /**
+     * Give a player a rate limit multiplier.
+     * 2.0 lets them send twice as much, 0.5 half. 1.0 is normal.
+     */
+    public void setRateLimitReputation(Player player, double multiplier) {
+        RateLimiter.setReputation(requireInjector(player).getRateLimitState(), multiplier);
+    }
+    
     /**
      * Check if a packet should be rate limited.
+     * Takes a token if it isn't, same as a real packet would.
      */
     public boolean shouldRateLimit(Player player, PacketType type) {
-        return rateLimiter.shouldLimit(player.getUniqueId(), type);
+        PlayerInjector injector = injectors.get(player.getUniqueId());
+        return injector != null && rateLimiter.shouldLimit(injector.getRateLimitState(), type);
     }
     
     /**
@@ -235,6 +603,82 @@ public class ProtocolManager implements Listener {
         return scriptEngine;
     }
     
+    public ScriptWatcher getScriptWatcher() {
+        return scriptWatcher;
+    }
+    
+    /**
+     * (Re)bind script filters to listeners, from config.yml:
+     * 
+     * protocol:
+     *   script-filters:
+     *     anti-spam:                  # runs scripts/anti-spam.js
+     *       types: [PLAY_CLIENT_CHAT] # leave it out to run on EVERY packet, good luck
+     *       priority: HIGH            # optional, NORMAL by default
+     *       script: other-name        # optional, the key by default
+     * 
+     * Replaces whatever the last call bound. Scripts themselves are
+     * the watcher's business: a binding whose script isn't there yet
+     * lets everything through, and picks the script up the moment
+     * it's saved.
+     */
+    public synchronized void loadScriptFilters() {
+        for (JavaScriptPacketListener listener : scriptFilterListeners) {
+            unregisterListener(listener);
+        }
+        scriptFilterListeners.clear();
+        
+        ConfigurationSection section = plugin.getConfig().getConfigurationSection("protocol.script-filters");
+        if (section == null) {
+            return;
+        }
+        
+        for (String key : section.getKeys(false)) {
+            ConfigurationSection entry = section.getConfigurationSection(key);
+            if (entry == null) {
+                continue;
+            }
+            String script = entry.getString("script", key);
+            
+            ListenerPriority priority;
+            try {
+                priority = ListenerPriority.valueOf(entry.getString("priority", "NORMAL").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning("Script filter " + key + ": unknown priority " + entry.getString("priority"));
+                continue;
+            }
+            
+            List<String> typeNames = entry.getStringList("types");
+            Set<PacketType> types = EnumSet.noneOf(PacketType.class);
+            for (String typeName : typeNames) {
+                try {
+                    types.add(PacketType.valueOf(typeName.toUpperCase()));
+                } catch (IllegalArgumentException e) {
+                    plugin.getLogger().warning("Script filter " + key + ": unknown packet type " + typeName);
+                }
+            }
+            if (!typeNames.isEmpty() && types.isEmpty()) {
+                // Empty means everything, and that's not what they asked for
+                plugin.getLogger().warning("Script filter " + key + " has no valid types, not binding it");
+                continue;
+            }
+            
+            // Same set both ways, a serverbound type just never matches a sent packet
+            JavaScriptPacketListener listener = new JavaScriptPacketListener(
+                plugin, scriptEngine, script, priority, types, types);
+            registerListener(listener);
+            scriptFilterListeners.add(listener);
+            
+            if (!scriptEngine.hasFilter(script)) {
+                plugin.getLogger().warning("Script filter " + key + " is waiting for scripts/" + script + ".js");
+            }
+        }
+        
+        if (!scriptFilterListeners.isEmpty()) {
+            plugin.getLogger().info("Bound " + scriptFilterListeners.size() + " script filter(s)");
+        }
+    }
+    
     /**
      * Get the fake entity manager.
      */
@@ -284,6 +728,13 @@ public class ProtocolManager implements Listener {
         return rateLimiter;
     }
     
+    /**
+     * Violation policies (drop/delay/kick/notify) and incident reports.
+     */
+    public ViolationTracker getViolationTracker() {
+        return violationTracker;
+    }
+    
     /**
      * Get the packet effects utility.
      */
@@ -310,10 +761,40 @@ public class ProtocolManager implements Listener {
      * Start PCAP export to file.
      */
     public void startPCAPExport(java.io.File file) throws java.io.IOException {
+        startPCAPExport(file, PCAPExporter.Format.PCAP);
+    }
+    
+    /**
+     * Start export in a specific format. PCAPNG gives every player
+     * their own interface and nanosecond timestamps.
+     */
+    public void startPCAPExport(File file, PCAPExporter.Format format) throws IOException {
         if (pcapExporter != null) {
             pcapExporter.close();
         }
-        pcapExporter = new PCAPExporter(file);
+        pcapExporter = new PCAPExporter(file, format, PCAPExporter.DEFAULT_QUEUE_CAPACITY, plugin.getLogger());
+    }
+    
+    /**
+     * The running PCAP exporter, for rotation settings and drop
+     * counters. Null when export is off.
+     */
+    public PCAPExporter getPCAPExporter() {
+        return pcapExporter;
+    }
+    
+    /**
+     * Narrow down what PCAP export keeps: types, direction, players,
+     * 1-in-N sampling. Checked before anything gets serialized, so a
+     * tight filter makes it cheap enough to leave running.
+     * Null goes back to capturing everything.
+     */
+    public void setCaptureFilter(CaptureFilter filter) {
+        this.captureFilter = filter != null ? filter : CaptureFilter.ALL;
+    }
+    
+    public CaptureFilter getCaptureFilter() {
+        return captureFilter;
     }
     
     /**
@@ -326,6 +807,72 @@ public class ProtocolManager implements Listener {
         }
     }
     
+    /**
+     * Start the flight recorder on a ring file. Already started by
+     * default on plugin/flight.ring (unless config turned it off),
+     * this is for moving or resizing it.
+     */
+    public void startFlightRecorder(File file) throws IOException {
+        startFlightRecorder(file, FlightRecorder.DEFAULT_SLOTS);
+    }
+    
+    public void startFlightRecorder(File file, int slots) throws IOException {
+        stopFlightRecorder();
+        FlightRecorder recorder = new FlightRecorder(file, slots);
+        flightRecorder = recorder;
+        
+        CompletableFuture<File> recovered = recorder.getRecoveryDump();
+        if (recovered != null) {
+            plugin.getLogger().warning("Flight recorder wasn't closed cleanly last run, saving what it had");
+            logDump(recovered);
+        }
+    }
+    
+    /**
+     * Stop the flight recorder. The ring file stays, marked clean.
+     */
+    public void stopFlightRecorder() {
+        FlightRecorder recorder = flightRecorder;
+        if (recorder != null) {
+            flightRecorder = null;
+            recorder.close();
+        }
+    }
+    
+    /**
+     * The flight recorder, or null if it's off.
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+    
+    /**
+     * Snapshot the flight recorder's window to disk.
+     * 
+     * @param player only this player, or null for everyone
+     * @return the dump file once written, or null if the recorder is off
+     */
+    public CompletableFuture<File> dumpFlightRecorder(String reason, Player player) {
+        FlightRecorder recorder = flightRecorder;
+        if (recorder == null) {
+            return null;
+        }
+        return logDump(recorder.dump(reason, player != null ? player.getUniqueId() : null));
+    }
+    
+    private CompletableFuture<File> logDump(CompletableFuture<File> dump) {
+        if (dump != null) {
+            dump.whenComplete((file, error) -> {
+                if (error != null) {
+                    plugin.getLogger().log(Level.WARNING, "Flight recorder dump failed", error);
+                } else {
+                    plugin.getLogger().info("Flight recorder dumped to " + file.getPath());
+                }
+            });
+        }
+        return dump;
+    }
+    
     /**
      * Get packet effects utility.
      */
@@ -344,10 +891,68 @@ public class ProtocolManager implements Listener {
         return debugMode;
     }
     
+    /**
+     * Enable or disable PacketContainer pooling on the injector path.
+     * 
+     * Off by default. When on, containers passed to listeners are
+     * recycled as soon as dispatch finishes, so listeners that hang
+     * on to them have to call retain() or detach() first.
+     */
+    public void setContainerPooling(boolean pooling) {
+        this.containerPooling = pooling;
+    }
+    
+    public boolean isContainerPooling() {
+        return containerPooling;
+    }
+    
+    /**
+     * Enable or disable flush consolidation for one player.
+     * 
+     * When on, packets sent through sendPacket() are flushed once
+     * at tick end (or early past the byte threshold) instead of
+     * one flush per packet. Adds up to a tick of latency to those
+     * sends, so leave it off for anything timing-sensitive.
+     */
+    public void setFlushConsolidation(Player player, boolean enabled) {
+        requireInjector(player).setFlushConsolidation(enabled);
+    }
+    
+    public boolean isFlushConsolidation(Player player) {
+        PlayerInjector injector = injectors.get(player.getUniqueId());
+        return injector != null && injector.isFlushConsolidation();
+    }
+    
+    /**
+     * Set how many encoded bytes can wait before a player's channel flushes early.
+     */
+    public void setFlushThreshold(Player player, int bytes) {
+        requireInjector(player).setFlushThreshold(bytes);
+    }
+    
+    private PlayerInjector requireInjector(Player player) {
+        PlayerInjector injector = injectors.get(player.getUniqueId());
+        if (injector == null) {
+            throw new IllegalStateException("Player not injected: " + player.getName());
+        }
+        return injector;
+    }
+    
     public Plugin getPlugin() {
         return plugin;
     }
     
+    /**
+     * Get a player's injector, or null if they aren't injected.
+     */
+    public PlayerInjector getInjector(Player player) {
+        return injectors.get(player.getUniqueId());
+    }
+    
+    public PacketBroadcaster getBroadcaster() {
+        return broadcaster;
+    }
+    
     public static ProtocolManager getInstance() {
         if (instance == null) {
             throw new IllegalStateException(
@@ -371,7 +976,13 @@ public class ProtocolManager implements Listener {
         injectors.clear();
         histories.clear();
         listenerManager.clear();
+        listenerManager.getAsyncDispatcher().shutdown();
+        violationTracker.flush(); // Last words
+        rawListeners.clear();
+        broadcaster.shutdown(); // Frees the Deflaters
+        scriptWatcher.stop();
         scriptEngine.shutdown();
+        StructureTemplate.clearCache(); // Let go of the NMS classes
         
         // Shutdown optional components
         if (webhookLogger != null) {
@@ -380,6 +991,7 @@ public class ProtocolManager implements Listener {
         if (pcapExporter != null) {
             pcapExporter.close();
         }
+        stopFlightRecorder(); // Marks the ring clean, no crash dump next start
         
         // Clear packet scheduler
         packetScheduler.clear();
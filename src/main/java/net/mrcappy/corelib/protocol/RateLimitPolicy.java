@@ -0,0 +1,109 @@
+package net.mrcappy.corelib.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happens when a player blows through a rate limit.
+ * 
+ * Every over-limit packet is either dropped or delayed to the
+ * next tick. On top of that you can kick after N violations in
+ * a time window, and/or have staff notified in the incident
+ * summaries.
+ * 
+ * Immutable, the with-style methods return a copy:
+ * RateLimitPolicy.delay()
+ *     .kickAfter(200, 10, TimeUnit.SECONDS)
+ *     .notifyStaff()
+ */
+public final class RateLimitPolicy {
+    
+    /**
+     * What to do with the packet itself.
+     */
+    public enum Action {
+        /** Throw it away. */
+        DROP,
+        /** Hold it and let it through once its bucket refills. Bounded, overflow gets dropped. */
+        DELAY
+    }
+    
+    public static final RateLimitPolicy DEFAULT = drop();
+    
+    private final Action action;
+    private final int kickThreshold;
+    private final long kickWindowNanos;
+    private final boolean notify;
+    private final String kickMessage;
+    
+    private RateLimitPolicy(Action action, int kickThreshold, long kickWindowNanos,
+                            boolean notify, String kickMessage) {
+        this.action = action;
+        this.kickThreshold = kickThreshold;
+        this.kickWindowNanos = kickWindowNanos;
+        this.notify = notify;
+        this.kickMessage = kickMessage;
+    }
+    
+    /**
+     * Drop over-limit packets. The default.
+     */
+    public static RateLimitPolicy drop() {
+        return new RateLimitPolicy(Action.DROP, 0, 0, false, "Sending packets too fast");
+    }
+    
+    /**
+     * Queue over-limit packets until their bucket has room instead of
+     * dropping them. Still the same rate, just nothing lost to a burst.
+     * Good for stuff like block placing where a drop means a ghost block.
+     */
+    public static RateLimitPolicy delay() {
+        return new RateLimitPolicy(Action.DELAY, 0, 0, false, "Sending packets too fast");
+    }
+    
+    /**
+     * Kick after this many violations inside the window.
+     */
+    public RateLimitPolicy kickAfter(int violations, long window, TimeUnit unit) {
+        if (violations <= 0 || window <= 0) {
+            throw new IllegalArgumentException("Kick threshold and window must be positive");
+        }
+        return new RateLimitPolicy(action, violations, unit.toNanos(window), notify, kickMessage);
+    }
+    
+    /**
+     * Include this type in staff notifications.
+     */
+    public RateLimitPolicy notifyStaff() {
+        return new RateLimitPolicy(action, kickThreshold, kickWindowNanos, true, kickMessage);
+    }
+    
+    /**
+     * What the kicked player sees.
+     */
+    public RateLimitPolicy kickMessage(String message) {
+        return new RateLimitPolicy(action, kickThreshold, kickWindowNanos, notify, message);
+    }
+    
+    public Action getAction() {
+        return action;
+    }
+    
+    /**
+     * Violations in the window before a kick, 0 = never kick.
+     */
+    public int getKickThreshold() {
+        return kickThreshold;
+    }
+    
+    public long getKickWindowNanos() {
+        return kickWindowNanos;
+    }
+    
+    public boolean isNotify() {
+        return notify;
+    }
+    
+    public String getKickMessage() {
+        return kickMessage;
+    }
+}
\ No newline at end of file
@@ -2,10 +2,13 @@ package net.mrcappy.corelib.protocol;
 
 import net.mrcappy.corelib.protocol.packet.PacketType;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Rate limiter for packets.
@@ -17,18 +20,71 @@ import java.util.concurrent.TimeUnit;
  * "bUt I nEeD 500 cLiCkS pEr SeCoNd" - No you fucking don't,
  * you're not Technoblade (RIP), you're just lagging everyone.
  * 
- * Uses a sliding window because I'm too lazy to implement
- * token bucket and this works good enough.
+ * Token bucket, finally. Each packet type has a refill rate and
+ * a burst size, both fractional if you want (0.5/s with a burst
+ * of 2.5 works fine).
+ * 
+ * The trick: a bucket is stored as ONE long, the (virtual) moment
+ * it was last empty. Tokens right now = (now - emptyAt) / interval,
+ * capped at burst. Taking a token pushes emptyAt forward by one
+ * interval. Fractional tokens come for free because time is in
+ * nanoseconds, and one long means one CAS - no locks, no objects.
+ * 
+ * Every player gets a long[] indexed by PacketType.ordinal(),
+ * hanging off their injector. Movement spam from 500 players is
+ * an array index and a CAS, no hashing anywhere.
+ * 
+ * Adaptive mode: when the server is struggling (high MSPT) every
+ * limit gets scaled down so floods get shed exactly when they hurt
+ * most, and when there's headroom limits relax a bit. The scaled
+ * limits are rebuilt at tick end only when the scale actually
+ * moves, so the hot path never sees any of this.
+ * 
+ * Reputation: each player can carry a multiplier (trusted staff
+ * get 2x, that one guy who keeps flooding gets 0.5x). Stored as
+ * fixed-point in the last slot of their state array.
  */
 public class RateLimiter {
     
-    // Player -> PacketType -> RateLimit
-    private final Map<UUID, Map<PacketType, RateLimit>> limits = new ConcurrentHashMap<>();
+    private static final PacketType[] TYPES = PacketType.values();
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    // Fresh bucket. Anything this old reads as "full".
+    private static final long FULL = Long.MIN_VALUE;
+    
+    // Reputation lives after the buckets, as a multiplier * 1024
+    private static final int REPUTATION_SLOT = TYPES.length;
+    private static final long REPUTATION_ONE = 1024;
+    
+    // Scale changes smaller than this don't trigger a rebuild
+    private static final double SCALE_STEP = 1.0 / 16;
+    
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
     
-    // Default limits per packet type (per second)
-    private final Map<PacketType, Integer> defaultLimits = new ConcurrentHashMap<>();
+    // Configured limits per packet type, indexed by ordinal. Null = unlimited.
+    private Limit[] configured = new Limit[TYPES.length];
+    
+    // What the hot path actually uses: configured * load scale.
+    // Copy-on-write so the hot path reads a plain array.
+    private volatile Limit[] limits = new Limit[TYPES.length];
+    
+    // Drops per packet type
+    private final LongAdder[] drops = new LongAdder[TYPES.length];
+    
+    // Adaptive mode
+    private volatile boolean adaptive = false;
+    private double smoothedMspt = 0;
+    private double scale = 1.0;
+    private double relaxBelowMspt = 30;
+    private double targetMspt = 50;
+    private double minScale = 0.25;
+    private double maxScale = 1.5;
     
     public RateLimiter() {
+        for (int i = 0; i < drops.length; i++) {
+            drops[i] = new LongAdder();
+        }
+        
         // Set some sensible defaults
         setDefaultLimit(PacketType.PLAY_CLIENT_CHAT, 3); // 3 messages per second max
         setDefaultLimit(PacketType.PLAY_CLIENT_ARM_ANIMATION, 20); // 20 swings per second
@@ -43,79 +99,323 @@ public class RateLimiter {
     /**
      * Set default limit for a packet type.
      * 0 = unlimited (no rate limiting)
+     * 
+     * Burst is one second's worth, same as the old sliding window allowed.
      */
     public void setDefaultLimit(PacketType type, int perSecond) {
         if (perSecond > 0) {
-            defaultLimits.put(type, perSecond);
+            setLimit(type, perSecond, perSecond);
         } else {
-            defaultLimits.remove(type);
+            removeLimit(type);
+        }
+    }
+    
+    /**
+     * Set a token bucket for a packet type.
+     * 
+     * @param refillPerSecond Tokens added per second, fractions welcome
+     * @param burst Bucket size - how many can arrive back to back. At least 1.
+     */
+    public synchronized void setLimit(PacketType type, double refillPerSecond, double burst) {
+        if (refillPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException(
+                "Need refill > 0 and burst >= 1, got " + refillPerSecond + " / " + burst
+            );
+        }
+        
+        Limit[] updated = configured.clone();
+        updated[type.ordinal()] = new Limit(refillPerSecond, burst);
+        configured = updated;
+        rebuild();
+    }
+    
+    /**
+     * Remove the limit for a packet type.
+     */
+    public synchronized void removeLimit(PacketType type) {
+        Limit[] updated = configured.clone();
+        updated[type.ordinal()] = null;
+        configured = updated;
+        rebuild();
+    }
+    
+    /**
+     * Get the configured limit for a packet type, or null if it's unlimited.
+     */
+    public synchronized Limit getLimit(PacketType type) {
+        return configured[type.ordinal()];
+    }
+    
+    /**
+     * Get the limit actually enforced right now, after load scaling.
+     */
+    public Limit getEffectiveLimit(PacketType type) {
+        return limits[type.ordinal()];
+    }
+    
+    /**
+     * Does this packet type have a limit at all?
+     * Cheap enough for the injector to call on every packet.
+     */
+    public boolean hasLimit(PacketType type) {
+        return limits[type.ordinal()] != null;
+    }
+    
+    /**
+     * Fresh per-player state: one full bucket per packet type.
+     * The injector allocates this once when it's created.
+     */
+    public static long[] newState() {
+        long[] state = new long[TYPES.length + 1];
+        Arrays.fill(state, FULL);
+        state[REPUTATION_SLOT] = REPUTATION_ONE;
+        return state;
+    }
+    
+    /**
+     * Set a player's reputation multiplier.
+     * 2.0 = twice the rate and burst, 0.5 = half. 1.0 is normal.
+     */
+    public static void setReputation(long[] state, double multiplier) {
+        if (multiplier <= 0) {
+            throw new IllegalArgumentException("Reputation must be positive, got " + multiplier);
         }
+        SLOTS.setVolatile(state, REPUTATION_SLOT, Math.max(1, Math.round(multiplier * REPUTATION_ONE)));
+    }
+    
+    public static double getReputation(long[] state) {
+        return (long) SLOTS.getVolatile(state, REPUTATION_SLOT) / (double) REPUTATION_ONE;
     }
     
     /**
      * Check if a packet should be rate limited.
+     * Lock-free, allocation-free, safe from any thread.
      * 
+     * @param state The player's bucket array from newState()
      * @return true if packet should be dropped, false if allowed
      */
-    public boolean shouldLimit(UUID player, PacketType type) {
-        Integer limit = defaultLimits.get(type);
-        if (limit == null || limit == 0) {
-            return false; // No limit for this type
+    public boolean shouldLimit(long[] state, PacketType type) {
+        if (tryAcquire(state, type)) {
+            return false;
+        }
+        drops[type.ordinal()].increment();
+        return true; // Less than one token left, eat shit
+    }
+    
+    /**
+     * Take a token if there is one. Same as shouldLimit, except a
+     * miss isn't counted as a drop - for packets that get to wait
+     * and try again, like the ones parked by a DELAY policy.
+     * 
+     * @return true if the packet can go, false if the bucket's empty
+     */
+    public boolean tryAcquire(long[] state, PacketType type) {
+        int ordinal = type.ordinal();
+        Limit limit = limits[ordinal];
+        if (limit == null) {
+            return true; // No limit for this type
+        }
+        
+        long interval = limit.intervalNanos;
+        
+        long reputation = (long) SLOTS.getVolatile(state, REPUTATION_SLOT);
+        if (reputation != REPUTATION_ONE) {
+            // Shorter interval = faster refill AND more tokens in the
+            // same burst window, so this one change scales both
+            interval = Math.max(1, interval * REPUTATION_ONE / reputation);
+        }
+        
+        long now = System.nanoTime();
+        // Can't be emptier than "full". A bad enough reputation shrinks the
+        // burst under one token, which would never refill - so full is
+        // always at least one (scaled) token
+        long floor = now - Math.max(limit.burstNanos, interval);
+        
+        while (true) {
+            long emptyAt = (long) SLOTS.getVolatile(state, ordinal);
+            long next = Math.max(emptyAt, floor) + interval;
+            if (next - now > 0) {
+                return false; // Less than one token left
+            }
+            if (SLOTS.compareAndSet(state, ordinal, emptyAt, next)) {
+                return true;
+            }
+            // Lost a race with another thread, go again
+        }
+    }
+    
+    /**
+     * How many tokens a player has right now for a type.
+     * Mostly for debugging. Returns infinity for unlimited types.
+     */
+    public double getTokens(long[] state, PacketType type) {
+        int ordinal = type.ordinal();
+        Limit limit = limits[ordinal];
+        if (limit == null) {
+            return Double.POSITIVE_INFINITY;
         }
         
-        // Get or create rate limit for this player/type combo
-        RateLimit rateLimit = limits
-            .computeIfAbsent(player, k -> new ConcurrentHashMap<>())
-            .computeIfAbsent(type, k -> new RateLimit(limit));
+        double interval = limit.intervalNanos / getReputation(state);
         
-        return !rateLimit.tryAcquire();
+        long now = System.nanoTime();
+        long window = Math.max(limit.burstNanos, (long) interval); // Same floor as shouldLimit
+        long emptyAt = Math.max((long) SLOTS.getVolatile(state, ordinal), now - window);
+        return (now - emptyAt) / interval;
     }
     
+    // Adaptive mode
+    
     /**
-     * Clear limits for a player.
-     * Call when they disconnect.
+     * Turn load-aware scaling on or off.
+     * Off snaps every limit straight back to its configured value.
      */
-    public void clearPlayer(UUID player) {
-        limits.remove(player);
+    public synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        if (!adaptive) {
+            scale = 1.0;
+            rebuild();
+        }
+    }
+    
+    public boolean isAdaptive() {
+        return adaptive;
     }
     
     /**
-     * Simple rate limit implementation.
-     * Tracks packet count in a sliding window.
+     * Tune the adaptive curve.
+     * 
+     * Below relaxBelowMspt limits scale up towards maxScale, between
+     * that and targetMspt they head back to 1.0, and past targetMspt
+     * they shrink until minScale at twice the target.
      */
-    private static class RateLimit {
-        private final int maxPerSecond;
-        private final long windowNanos = TimeUnit.SECONDS.toNanos(1);
-        private long windowStart = System.nanoTime();
-        private int count = 0;
-        
-        RateLimit(int maxPerSecond) {
-            this.maxPerSecond = maxPerSecond;
+    public synchronized void setAdaptiveCurve(double relaxBelowMspt, double targetMspt,
+                                              double minScale, double maxScale) {
+        if (relaxBelowMspt <= 0 || targetMspt <= relaxBelowMspt
+                || minScale <= 0 || minScale > 1 || maxScale < 1) {
+            throw new IllegalArgumentException("Nonsense adaptive curve, check your numbers");
+        }
+        this.relaxBelowMspt = relaxBelowMspt;
+        this.targetMspt = targetMspt;
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+    }
+    
+    /**
+     * Feed in how long the last tick took.
+     * Called at tick end, main thread only.
+     */
+    public synchronized void updateLoad(double tickMillis) {
+        // EWMA, roughly the last 10 ticks. One lag spike shouldn't
+        // strangle everyone, a sustained slowdown should.
+        smoothedMspt = smoothedMspt == 0 ? tickMillis : smoothedMspt * 0.9 + tickMillis * 0.1;
+        if (!adaptive) {
+            return;
         }
         
-        /**
-         * Try to acquire a permit to send a packet.
-         * 
-         * @return true if allowed, false if rate limited
-         */
-        synchronized boolean tryAcquire() {
-            long now = System.nanoTime();
-            long elapsed = now - windowStart;
-            
-            // Reset window if it's expired
-            if (elapsed > windowNanos) {
-                windowStart = now;
-                count = 1;
-                return true;
+        double target = scaleFor(smoothedMspt);
+        target = Math.round(target / SCALE_STEP) * SCALE_STEP;
+        if (target != scale) {
+            scale = target;
+            rebuild();
+        }
+    }
+    
+    private double scaleFor(double mspt) {
+        if (mspt <= relaxBelowMspt) {
+            return maxScale;
+        }
+        if (mspt <= targetMspt) {
+            double t = (mspt - relaxBelowMspt) / (targetMspt - relaxBelowMspt);
+            return maxScale + (1.0 - maxScale) * t;
+        }
+        double t = Math.min(1.0, (mspt - targetMspt) / targetMspt);
+        return 1.0 + (minScale - 1.0) * t;
+    }
+    
+    /**
+     * Current load multiplier on every limit. 1.0 = as configured.
+     */
+    public synchronized double getLoadScale() {
+        return scale;
+    }
+    
+    /**
+     * Smoothed milliseconds per tick, as the adaptive mode sees it.
+     */
+    public synchronized double getSmoothedMspt() {
+        return smoothedMspt;
+    }
+    
+    /**
+     * Recompute the effective limits from configured * scale.
+     * Caller holds the lock.
+     */
+    private void rebuild() {
+        Limit[] effective = new Limit[TYPES.length];
+        for (int i = 0; i < TYPES.length; i++) {
+            Limit base = configured[i];
+            if (base == null) {
+                continue;
             }
-            
-            // Check if we're over the limit
-            if (count >= maxPerSecond) {
-                return false; // Rate limited, eat shit
+            effective[i] = scale == 1.0
+                ? base
+                : new Limit(base.getRefillPerSecond() * scale, Math.max(1, base.getBurst() * scale));
+        }
+        limits = effective;
+    }
+    
+    // Metrics
+    
+    /**
+     * How many packets of a type got dropped for going over the limit.
+     */
+    public long getDropCount(PacketType type) {
+        return drops[type.ordinal()].sum();
+    }
+    
+    /**
+     * Drop counts for every type that's dropped anything.
+     */
+    public Map<PacketType, Long> getDropCounts() {
+        Map<PacketType, Long> counts = new EnumMap<>(PacketType.class);
+        for (PacketType type : TYPES) {
+            long count = drops[type.ordinal()].sum();
+            if (count > 0) {
+                counts.put(type, count);
             }
-            
-            count++;
-            return true;
+        }
+        return counts;
+    }
+    
+    public void resetDropCounts() {
+        for (LongAdder counter : drops) {
+            counter.reset();
+        }
+    }
+    
+    /**
+     * Token bucket settings for one packet type.
+     * Stored as nanoseconds so the hot path never touches a double.
+     */
+    public static final class Limit {
+        private final double refillPerSecond;
+        private final double burst;
+        final long intervalNanos;
+        final long burstNanos;
+        
+        Limit(double refillPerSecond, double burst) {
+            this.refillPerSecond = refillPerSecond;
+            this.burst = burst;
+            this.intervalNanos = Math.max(1, Math.round(NANOS_PER_SECOND / refillPerSecond));
+            this.burstNanos = Math.round(burst * intervalNanos);
+        }
+        
+        public double getRefillPerSecond() {
+            return refillPerSecond;
+        }
+        
+        public double getBurst() {
+            return burst;
         }
     }
 }
\ No newline at end of file
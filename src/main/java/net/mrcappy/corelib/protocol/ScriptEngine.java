@@ -5,8 +5,13 @@ import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 import org.mozilla.javascript.*;
 
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 
 /**
  * JavaScript engine for packet filtering.
@@ -21,33 +26,91 @@ import java.util.concurrent.ConcurrentHashMap;
  * 
  * Example filter that definitely won't cause problems:
  * ```js
- * while(true) { 
+ * while(true) {
  *   // Your CPU goes brrrrrrr
  * }
  * ```
  * 
  * Please don't actually do that. I'm begging you.
+ * 
+ * Well, you can now, it just won't get far. Every filter runs on
+ * an instruction and a wall clock budget, and blowing either one
+ * kills the script and lets the packet through.
+ * 
+ * Filters get called from every Netty event loop at once, and a
+ * Rhino Context belongs to one thread at a time. So Contexts live
+ * in a pool the engine owns: a run takes one, enters it, exits it
+ * and hands it back. Nothing gets parked on the calling thread -
+ * Netty's threads outlive this plugin, and the async dispatcher's
+ * virtual threads come and go by the million. Each Context keeps
+ * its own execution scope where only packet and player get
+ * rebound. The standard
+ * objects live in one shared scope that gets sealed after setup,
+ * so threads can share it without stepping on each other - and
+ * scripts can't mess with it for everyone else.
+ * 
+ * Recompiling a filter that's already loaded swaps the new script
+ * in atomically: a run that already started finishes on the old
+ * one, the next run gets the new one. If the new source doesn't
+ * compile the old one just keeps going. Each filter keeps its
+ * FilterMetrics across recompiles.
  */
 public class ScriptEngine {
     
+    // How often Rhino checks the budget, in instructions. Compiled
+    // into the scripts, so budgets are only as precise as this.
+    private static final int OBSERVE_EVERY = 10_000;
+    
     private final Plugin plugin;
-    private final Context context;
-    private final ScriptableObject scope;
-    private final Map<String, Script> compiledScripts = new ConcurrentHashMap<>();
+    private final FilterContextFactory contextFactory = new FilterContextFactory();
+    private final ScriptableObject sharedScope;
+    // Contexts nobody's running right now. Grows to however many
+    // threads ever ran filters at the same time, no further
+    private final Deque<FilterContext> idle = new ConcurrentLinkedDeque<>();
+    private final Map<String, CompiledFilter> compiledScripts = new ConcurrentHashMap<>();
+    private final Set<String> warnedUnknown = ConcurrentHashMap.newKeySet();
+    
+    // 0 = no limit
+    private volatile long instructionBudget = 1_000_000;
+    private volatile long timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private volatile boolean shutdown;
     
     public ScriptEngine(Plugin plugin) {
         this.plugin = plugin;
         
-        // Initialize Rhino context
-        this.context = Context.enter();
-        context.setLanguageVersion(Context.VERSION_ES6);
-        context.setOptimizationLevel(9); // Maximum optimization because speed
-        
-        // Create global scope
-        this.scope = context.initStandardObjects();
-        
-        // Add some useful globals
-        ScriptableObject.putProperty(scope, "console", new ConsoleObject());
+        FilterContext context = enter();
+        try {
+            // Create global scope, standard objects sealed
+            this.sharedScope = context.initStandardObjects(null, true);
+            
+            // Add some useful globals
+            ConsoleObject console = new ConsoleObject();
+            console.sealObject();
+            ScriptableObject.putProperty(sharedScope, "console", console);
+            
+            // The LiveConnect stuff loads lazily, which is a race once
+            // threads share the scope. Load it all now, then seal.
+            context.evaluateString(sharedScope, "RegExp; getClass; java; Packages; JavaAdapter;", "lazyLoad", 0, null);
+            sharedScope.sealObject();
+        } finally {
+            exit(context);
+        }
+    }
+    
+    /**
+     * Most instructions one filter run gets. 0 = no limit.
+     * Checked every 10k instructions, so it rounds up to that.
+     */
+    public void setInstructionBudget(long instructions) {
+        this.instructionBudget = Math.max(0, instructions);
+    }
+    
+    /**
+     * Longest one filter run gets. 0 = no limit. Only checked between
+     * instructions, so a script stuck inside a Java call won't notice.
+     */
+    public void setTimeBudget(long time, TimeUnit unit) {
+        this.timeBudgetNanos = Math.max(0, unit.toNanos(time));
     }
     
     /**
@@ -58,69 +121,227 @@ public class ScriptEngine {
      * @throws ScriptException if the script is fucked
      */
     public void compileFilter(String name, String source) throws ScriptException {
+        // Compiled with our context so the budget checks get compiled in
+        FilterContext context = enter();
+        Script script;
         try {
-            Script script = context.compileString(source, name, 1, null);
-            compiledScripts.put(name, script);
+            script = context.compileString(source, name, 1, null);
         } catch (Exception e) {
+            CompiledFilter current = compiledScripts.get(name);
+            if (current != null) {
+                current.metrics.recordCompileFailure(e.getMessage());
+            }
             throw new ScriptException("Failed to compile script: " + e.getMessage());
+        } finally {
+            exit(context);
         }
+        
+        // Swap, keeping the metrics if there's an old version
+        CompiledFilter compiled = compiledScripts.compute(name, (key, old) ->
+            new CompiledFilter(script, old != null ? old.metrics : new FilterMetrics(name)));
+        compiled.metrics.recordCompile();
+        warnedUnknown.remove(name);
     }
     
     /**
-     * Execute a filter on a packet.
+     * Execute a filter on a packet. Safe from any thread.
      * 
      * @return true to allow packet, false to cancel
      */
     public boolean executeFilter(String name, Player player, PacketContainer packet) {
-        Script script = compiledScripts.get(name);
-        if (script == null) {
-            plugin.getLogger().warning("Unknown script filter: " + name);
+        CompiledFilter compiled = compiledScripts.get(name);
+        if (compiled == null) {
+            // Once per name, a filter on movement packets would flood the log
+            if (warnedUnknown.add(name)) {
+                plugin.getLogger().warning("Unknown script filter: " + name + ", letting its packets through");
+            }
             return true; // Allow by default
         }
+        FilterMetrics metrics = compiled.metrics;
+        
+        FilterContext context = enter();
+        
+        // A filter that ends up running another filter on the same
+        // thread is handed the same Context back, so it gets a scope of
+        // its own, and the outer budget back after
+        boolean nested = context.running;
+        long outerDeadline = context.deadline;
+        long outerInstructions = context.instructions;
+        ScriptableObject executionScope = nested ? newExecutionScope() : context.executionScope;
+        if (executionScope == null) {
+            executionScope = context.executionScope = newExecutionScope(); // First run on this Context
+        }
+        
+        context.running = true;
+        context.instructions = 0;
+        long timeBudget = timeBudgetNanos;
+        long start = System.nanoTime();
+        context.deadline = timeBudget > 0 ? start + timeBudget : 0;
+        boolean allowed = true;
         
         try {
-            // Create a new scope for this execution
-            Scriptable executionScope = context.newObject(scope);
-            executionScope.setPrototype(scope);
-            executionScope.setParentScope(null);
-            
-            // Add packet and player to scope
-            ScriptableObject.putProperty(executionScope, "packet", 
+            // Rebind packet and player, everything else stays put
+            ScriptableObject.putProperty(executionScope, "packet",
                 Context.javaToJS(packet, executionScope));
-            ScriptableObject.putProperty(executionScope, "player", 
+            ScriptableObject.putProperty(executionScope, "player",
                 Context.javaToJS(player, executionScope));
             
             // Execute the script
-            Object result = script.exec(context, executionScope);
+            Object result = compiled.script.exec(context, executionScope);
             
             // Convert result to boolean
             if (result instanceof Boolean) {
-                return (Boolean) result;
+                allowed = (Boolean) result;
             } else if (result instanceof Number) {
-                return ((Number) result).intValue() != 0;
-            } else {
-                return true; // Default to allow
-            }
-            
+                allowed = ((Number) result).intValue() != 0;
+            } // Anything else, default to allow
+            return allowed;
+        
+        } catch (BudgetExceeded e) {
+            metrics.recordBudgetKill(e.getMessage());
+            plugin.getLogger().warning("Script filter " + name + " " + e.getMessage() + ", killed it");
+            return true; // Allow on error
         } catch (Exception e) {
+            metrics.recordError(e.getMessage());
             plugin.getLogger().severe("Error executing script filter " + name + ": " + e.getMessage());
             return true; // Allow on error
+        } finally {
+            metrics.recordRun(System.nanoTime() - start, allowed);
+            // Declared something (var x, function f)? Those can't be deleted,
+            // so the next run gets a clean scope instead of this one's leftovers
+            if (!nested && executionScope.size() != 2) {
+                context.executionScope = newExecutionScope();
+            }
+            context.running = nested;
+            context.deadline = outerDeadline;
+            context.instructions = outerInstructions;
+            exit(context);
         }
-    }    
+    }
+    
     /**
-     * Remove a compiled filter.
+     * Enter a Context for this thread. One that's already running
+     * here (a filter calling a filter) gets entered again, otherwise
+     * an idle one comes out of the pool, or a new one if they're all
+     * busy.
+     */
+    private FilterContext enter() {
+        Context current = Context.getCurrentContext();
+        FilterContext context;
+        if (current instanceof FilterContext && current.getFactory() == contextFactory) {
+            context = (FilterContext) current;
+        } else {
+            context = idle.poll();
+            if (context == null) {
+                context = (FilterContext) contextFactory.makeContext();
+            }
+        }
+        contextFactory.enterContext(context);
+        return context;
+    }
+    
+    /**
+     * Exit a Context from enter(). Once the outermost call is out
+     * it's free for any thread, so it goes back in the pool.
+     */
+    private void exit(FilterContext context) {
+        Context.exit();
+        if (Context.getCurrentContext() != context && !shutdown) {
+            idle.push(context);
+        }
+    }
+    
+    /**
+     * Empty scope on top of the shared one. Writes land here,
+     * reads fall through to the standard objects.
+     */
+    private ScriptableObject newExecutionScope() {
+        ScriptableObject executionScope = new NativeObject();
+        executionScope.setPrototype(sharedScope);
+        executionScope.setParentScope(null);
+        return executionScope;
+    }
+    /**
+     * Compile an inline filter (like a @PacketHandler's) once and
+     * get back the name to run it by.
+     * 
+     * The name comes from a hash of the source, so every handler with
+     * the same filter string shares one compiled script. They stay for
+     * the engine's lifetime - it's a handful of annotation strings,
+     * not worth refcounting.
+     */
+    public String compileInline(String source) throws ScriptException {
+        String name = "inline_" + sha256(source);
+        if (!compiledScripts.containsKey(name)) {
+            compileFilter(name, source); // Two threads racing here both compile the same thing, whatever
+        }
+        return name;
+    }
+    
+    private static String sha256(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("No SHA-256, this JVM is cursed", e);
+        }
+    }
+    
+    /**
+     * Remove a compiled filter. Its metrics go with it.
      */
     public void removeFilter(String name) {
         compiledScripts.remove(name);
     }
     
+    public boolean hasFilter(String name) {
+        return compiledScripts.containsKey(name);
+    }
+    
+    /**
+     * Metrics for a loaded filter, or null if there's no such filter.
+     */
+    public FilterMetrics getMetrics(String name) {
+        CompiledFilter compiled = compiledScripts.get(name);
+        return compiled != null ? compiled.metrics : null;
+    }
+    
+    /**
+     * Metrics for every loaded filter, by name.
+     */
+    public List<FilterMetrics> getAllMetrics() {
+        List<FilterMetrics> all = new ArrayList<>();
+        for (CompiledFilter compiled : compiledScripts.values()) {
+            all.add(compiled.metrics);
+        }
+        all.sort(Comparator.comparing(FilterMetrics::getName));
+        return all;
+    }
+    
     /**
      * Shutdown the script engine.
-     * Cleans up Rhino context.
+     * Nothing stays entered between calls, so this is the scripts
+     * and the pooled Contexts. A run still going drops its Context
+     * instead of handing it back.
      */
     public void shutdown() {
+        shutdown = true;
         compiledScripts.clear();
-        Context.exit();
+        idle.clear();
+    }
+    
+    /**
+     * A compiled script and the metrics that outlive it.
+     * Immutable, a recompile swaps in a new one.
+     */
+    private static final class CompiledFilter {
+        final Script script;
+        final FilterMetrics metrics;
+        
+        CompiledFilter(Script script, FilterMetrics metrics) {
+            this.script = script;
+            this.metrics = metrics;
+        }
     }
     
     /**
@@ -133,6 +354,63 @@ public class ScriptEngine {
         }
     }
     
+    /**
+     * Makes the pooled Contexts, with the budget check hooked in.
+     * Private to this engine - the global factory is everyone's.
+     */
+    private final class FilterContextFactory extends ContextFactory {
+        @Override
+        protected Context makeContext() {
+            FilterContext context = new FilterContext(this);
+            context.setLanguageVersion(Context.VERSION_ES6);
+            context.setOptimizationLevel(9); // Maximum optimization because speed
+            context.setInstructionObserverThreshold(OBSERVE_EVERY);
+            return context;
+        }
+        
+        @Override
+        protected void observeInstructionCount(Context cx, int instructionCount) {
+            FilterContext context = (FilterContext) cx;
+            if (!context.running) {
+                return; // Setup or compiling, not a filter run
+            }
+            
+            context.instructions += instructionCount;
+            long budget = instructionBudget;
+            if (budget > 0 && context.instructions > budget) {
+                throw new BudgetExceeded("went over " + budget + " instructions");
+            }
+            if (context.deadline != 0 && System.nanoTime() - context.deadline > 0) {
+                throw new BudgetExceeded("ran out of time");
+            }
+        }
+    }
+    
+    /**
+     * A pooled Context plus its budget bookkeeping. Only touched
+     * by the thread that has it entered.
+     */
+    private final class FilterContext extends Context {
+        ScriptableObject executionScope;
+        boolean running;
+        long instructions;
+        long deadline; // nanoTime, 0 = none
+        
+        FilterContext(ContextFactory factory) {
+            super(factory);
+        }
+    }
+    
+    /**
+     * Thrown out of a script that blew its budget. An Error on
+     * purpose - a JS try/catch can't swallow it.
+     */
+    private static final class BudgetExceeded extends Error {
+        BudgetExceeded(String message) {
+            super(message, null, false, false); // No stack trace, it's not a bug
+        }
+    }
+    
     /**
      * Fake console object for JavaScript.
      * So script kiddies can console.log() to their heart's content.
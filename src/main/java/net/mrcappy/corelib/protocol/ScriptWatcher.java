@@ -0,0 +1,220 @@
+package net.mrcappy.corelib.protocol;
+
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Hot reload for script filters.
+ * 
+ * Every foo.js in the scripts directory is the filter "foo".
+ * Save the file and the new version is compiled on the watcher
+ * thread and swapped into the ScriptEngine - packets never wait
+ * on Rhino's compiler, and a run already in progress finishes on
+ * the old version. Save something that doesn't compile and the
+ * old version keeps running while the log yells at you. Delete
+ * the file and the filter's gone.
+ * 
+ * Editors don't save files, they save them three times: truncate,
+ * write, touch, maybe a rename through a temp file for fun. So
+ * events get collected until the directory has been quiet for a
+ * moment, and a file whose contents didn't actually change isn't
+ * recompiled at all.
+ * 
+ * Top level only, subdirectories are ignored.
+ */
+public class ScriptWatcher {
+    
+    private static final String EXTENSION = ".js";
+    
+    // How long the directory has to be quiet before we compile
+    private static final long SETTLE_MILLIS = 200;
+    
+    private final Plugin plugin;
+    private final ScriptEngine scriptEngine;
+    private final Path directory;
+    
+    // Last source that compiled, by filter name. Only the watcher
+    // writes it (or start(), before the watcher exists)
+    private final Map<String, String> loaded = new ConcurrentHashMap<>();
+    
+    private WatchService watchService;
+    private Thread watcherThread;
+    private volatile boolean running;
+    
+    public ScriptWatcher(Plugin plugin, ScriptEngine scriptEngine, File directory) {
+        this.plugin = plugin;
+        this.scriptEngine = scriptEngine;
+        this.directory = directory.toPath();
+    }
+    
+    /**
+     * Load everything that's there, then start watching.
+     * 
+     * The first load happens right here so filters bound in config
+     * have their scripts before the first packet shows up.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        Files.createDirectories(directory);
+        
+        // Register before the first scan, so nothing saved in between gets missed
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        loadAll();
+        
+        running = true;
+        watcherThread = new Thread(this::watchLoop, "Script-Watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+    
+    /**
+     * Stop watching. Loaded filters stay loaded.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        
+        try {
+            watchService.close(); // Wakes the watcher up with a ClosedWatchServiceException
+            watcherThread.join(1000);
+        } catch (IOException e) {
+            plugin.getLogger().warning("Failed to close script watcher: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public boolean isRunning() {
+        return running;
+    }
+    
+    public File getDirectory() {
+        return directory.toFile();
+    }
+    
+    /**
+     * Filters loaded from the directory.
+     */
+    public Set<String> getLoadedFilters() {
+        return new TreeSet<>(loaded.keySet());
+    }
+    
+    private void watchLoop() {
+        try {
+            while (running) {
+                WatchKey key = watchService.take();
+                
+                // Keep collecting until nothing's happened for a bit
+                Set<String> changed = new LinkedHashSet<>();
+                boolean overflow = false;
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            overflow = true;
+                            continue;
+                        }
+                        String fileName = event.context().toString();
+                        if (fileName.endsWith(EXTENSION)) {
+                            changed.add(fileName);
+                        }
+                    }
+                    if (!key.reset()) {
+                        plugin.getLogger().warning("Scripts directory " + directory + " is gone, stopped watching it");
+                        running = false;
+                        return;
+                    }
+                    key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                
+                if (overflow) {
+                    loadAll(); // Lost track of what changed, check everything
+                } else {
+                    for (String fileName : changed) {
+                        reload(fileName);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+    
+    /**
+     * Compile every script in the directory and unload the ones
+     * that aren't there anymore.
+     */
+    private void loadAll() {
+        Set<String> fileNames = new TreeSet<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                .filter(fileName -> fileName.endsWith(EXTENSION))
+                .forEach(fileNames::add);
+        } catch (IOException e) {
+            plugin.getLogger().warning("Failed to list " + directory + ": " + e.getMessage());
+            return;
+        }
+        for (String name : loaded.keySet()) {
+            fileNames.add(name + EXTENSION); // Gone ones get unloaded by reload()
+        }
+        
+        for (String fileName : fileNames) {
+            reload(fileName);
+        }
+    }
+    
+    /**
+     * Bring one filter in line with its file. Never throws, one bad
+     * script doesn't get to kill the watcher.
+     */
+    private void reload(String fileName) {
+        String name = fileName.substring(0, fileName.length() - EXTENSION.length());
+        Path file = directory.resolve(fileName);
+        
+        if (!Files.isRegularFile(file)) {
+            if (loaded.remove(name) != null) {
+                scriptEngine.removeFilter(name);
+                plugin.getLogger().info("Unloaded script filter " + name + ", its file was deleted");
+            }
+            return;
+        }
+        
+        String source;
+        try {
+            source = Files.readString(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // Locked or half-written, the next event gets it
+            plugin.getLogger().warning("Failed to read " + fileName + ": " + e.getMessage());
+            return;
+        }
+        if (source.equals(loaded.get(name))) {
+            return; // Touched, not changed
+        }
+        
+        boolean reloading = loaded.containsKey(name);
+        try {
+            scriptEngine.compileFilter(name, source);
+            loaded.put(name, source);
+            plugin.getLogger().info((reloading ? "Reloaded" : "Loaded") + " script filter " + name);
+        } catch (ScriptEngine.ScriptException e) {
+            plugin.getLogger().warning("Script filter " + name + " doesn't compile" +
+                (reloading ? ", still running the old version: " : ": ") + e.getMessage());
+        } catch (RuntimeException e) {
+            plugin.getLogger().warning("Failed to load script filter " + name + ": " + e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,386 @@
+package net.mrcappy.corelib.protocol;
+
+import net.mrcappy.corelib.protocol.packet.PacketType;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Decides what happens to rate limit violations and keeps score.
+ * 
+ * The important bit: NOTHING here logs per packet. A flood is
+ * thousands of violations a second, and printing each one just
+ * moves the DoS from the network thread to your console. Instead
+ * every player gets a record of counters, and every few seconds
+ * the dirty records get rolled up into one incident per player,
+ * logged as a single line and handed to staff if anyone asked.
+ * 
+ * Hot path per violation: a policy array read, an atomic add,
+ * and a window counter. The record hangs off the player's injector
+ * so there's no map lookup either.
+ */
+public class ViolationTracker {
+    
+    private static final PacketType[] TYPES = PacketType.values();
+    
+    public static final String NOTIFY_PERMISSION = "corelib.ratelimit.notify";
+    
+    // Past this many players in one flush, the rest get summed up
+    private static final int MAX_LOGGED_PER_FLUSH = 10;
+    
+    private final Plugin plugin;
+    
+    // Policy per PacketType ordinal, copy-on-write
+    private volatile RateLimitPolicy[] policies = new RateLimitPolicy[TYPES.length];
+    
+    // Records with something to report since the last flush
+    private final ConcurrentLinkedQueue<Record> dirty = new ConcurrentLinkedQueue<>();
+    
+    // Finished incidents, newest last. Main thread only.
+    private final ArrayDeque<Incident> recent = new ArrayDeque<>();
+    private int maxIncidents = 100;
+    
+    // Gets every incident after it's logged, e.g. the flight recorder
+    private volatile Consumer<Incident> incidentHandler;
+    
+    private int flushIntervalTicks = 100;
+    private int ticksSinceFlush = 0;
+    private long lastFlushMillis = System.currentTimeMillis();
+    
+    public ViolationTracker(Plugin plugin) {
+        this.plugin = plugin;
+        Arrays.fill(policies, RateLimitPolicy.DEFAULT);
+    }
+    
+    /**
+     * Set what happens when a type goes over its limit.
+     */
+    public synchronized void setPolicy(PacketType type, RateLimitPolicy policy) {
+        RateLimitPolicy[] updated = policies.clone();
+        updated[type.ordinal()] = policy != null ? policy : RateLimitPolicy.DEFAULT;
+        policies = updated;
+    }
+    
+    public RateLimitPolicy getPolicy(PacketType type) {
+        return policies[type.ordinal()];
+    }
+    
+    /**
+     * Record a violation and work out what to do with the packet.
+     * Called on the player's event loop.
+     */
+    public RateLimitPolicy.Action onViolation(Record record, PacketType type) {
+        int ordinal = type.ordinal();
+        RateLimitPolicy policy = policies[ordinal];
+        
+        record.counts.incrementAndGet(ordinal);
+        if (record.queued.compareAndSet(false, true)) {
+            dirty.add(record); // First one since the last flush
+        }
+        
+        if (policy.getKickThreshold() > 0 && record.countInWindow(ordinal, policy) >= policy.getKickThreshold()) {
+            kick(record, policy);
+        }
+        
+        return policy.getAction();
+    }
+    
+    /**
+     * Count a delayed packet that didn't fit in the queue and got dropped.
+     */
+    public void onDelayOverflow(Record record) {
+        record.overflowed.incrementAndGet();
+    }
+    
+    private void kick(Record record, RateLimitPolicy policy) {
+        if (!record.kickScheduled.compareAndSet(false, true)) {
+            return; // Already on their way out
+        }
+        
+        Player player = record.player;
+        plugin.getServer().getScheduler().runTask(plugin, () -> {
+            if (player.isOnline()) {
+                player.kickPlayer(policy.getKickMessage());
+            }
+        });
+    }
+    
+    /**
+     * Tick the flush clock. Main thread, once per tick.
+     */
+    public void tick() {
+        if (++ticksSinceFlush >= flushIntervalTicks) {
+            flush();
+        }
+    }
+    
+    /**
+     * Roll every dirty record up into an incident, right now.
+     */
+    public void flush() {
+        ticksSinceFlush = 0;
+        long now = System.currentTimeMillis();
+        long periodMillis = now - lastFlushMillis;
+        lastFlushMillis = now;
+        
+        List<Incident> incidents = new ArrayList<>();
+        Record record;
+        while ((record = dirty.poll()) != null) {
+            // Unmark first - a violation landing mid-snapshot re-queues
+            // the record instead of getting lost
+            record.queued.set(false);
+            
+            Incident incident = record.drain(now, periodMillis, policies);
+            if (incident != null) {
+                incidents.add(incident);
+            }
+        }
+        
+        if (incidents.isEmpty()) {
+            return;
+        }
+        
+        incidents.sort(Comparator.comparingLong(Incident::getTotal).reversed());
+        for (Incident incident : incidents) {
+            recent.addLast(incident);
+            while (recent.size() > maxIncidents) {
+                recent.removeFirst();
+            }
+        }
+        
+        report(incidents);
+        
+        Consumer<Incident> handler = incidentHandler;
+        if (handler != null) {
+            for (Incident incident : incidents) {
+                try {
+                    handler.accept(incident);
+                } catch (Exception e) {
+                    plugin.getLogger().warning("[RateLimit] Incident handler failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    /**
+     * One line per player, capped. Staff only hear about
+     * incidents involving types with notify on.
+     */
+    private void report(List<Incident> incidents) {
+        int shown = Math.min(incidents.size(), MAX_LOGGED_PER_FLUSH);
+        for (int i = 0; i < shown; i++) {
+            plugin.getLogger().warning("[RateLimit] " + incidents.get(i).getSummary());
+        }
+        if (incidents.size() > shown) {
+            long rest = 0;
+            for (int i = shown; i < incidents.size(); i++) {
+                rest += incidents.get(i).getTotal();
+            }
+            plugin.getLogger().warning("[RateLimit] ...and " + (incidents.size() - shown) +
+                " more players with " + rest + " violations");
+        }
+        
+        List<Incident> notable = new ArrayList<>();
+        for (Incident incident : incidents) {
+            if (incident.isNotify()) {
+                notable.add(incident);
+            }
+        }
+        if (notable.isEmpty()) {
+            return;
+        }
+        
+        for (Player staff : plugin.getServer().getOnlinePlayers()) {
+            if (!staff.hasPermission(NOTIFY_PERMISSION)) continue;
+            for (int i = 0; i < Math.min(notable.size(), 3); i++) {
+                staff.sendMessage("§c[RateLimit] §7" + notable.get(i).getSummary());
+            }
+            if (notable.size() > 3) {
+                staff.sendMessage("§c[RateLimit] §7...and " + (notable.size() - 3) + " more");
+            }
+        }
+    }
+    
+    /**
+     * Recent incidents, oldest first.
+     */
+    public List<Incident> getRecentIncidents() {
+        return new ArrayList<>(recent);
+    }
+    
+    /**
+     * How often incidents get rolled up. Default 100 ticks (5s).
+     */
+    public void setFlushInterval(int ticks) {
+        if (ticks <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive");
+        }
+        this.flushIntervalTicks = ticks;
+    }
+    
+    /**
+     * Hook for whatever wants to react to incidents. Main thread.
+     */
+    public void setIncidentHandler(Consumer<Incident> handler) {
+        this.incidentHandler = handler;
+    }
+    
+    public void setMaxIncidents(int max) {
+        this.maxIncidents = Math.max(1, max);
+    }
+    
+    /**
+     * Fresh record for a player. The injector keeps it.
+     */
+    public static Record newRecord(Player player) {
+        return new Record(player);
+    }
+    
+    /**
+     * One player's violation counters.
+     */
+    public static final class Record {
+        private final Player player;
+        
+        // Since the last flush, per PacketType ordinal
+        private final AtomicLongArray counts = new AtomicLongArray(TYPES.length);
+        private final AtomicLong overflowed = new AtomicLong();
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private final AtomicBoolean kickScheduled = new AtomicBoolean();
+        
+        // Kick windows. Event loop only, so plain arrays.
+        private final long[] windowStart = new long[TYPES.length];
+        private final int[] windowCount = new int[TYPES.length];
+        
+        private Record(Player player) {
+            this.player = player;
+        }
+        
+        /**
+         * Fixed window counter. Cheaper than sliding and
+         * nobody's getting kicked over the difference.
+         */
+        int countInWindow(int ordinal, RateLimitPolicy policy) {
+            long now = System.nanoTime();
+            if (windowCount[ordinal] == 0 || now - windowStart[ordinal] > policy.getKickWindowNanos()) {
+                windowStart[ordinal] = now;
+                windowCount[ordinal] = 0;
+            }
+            return ++windowCount[ordinal];
+        }
+        
+        Incident drain(long now, long periodMillis, RateLimitPolicy[] policies) {
+            Map<PacketType, Long> byType = new EnumMap<>(PacketType.class);
+            long total = 0;
+            boolean notify = false;
+            
+            for (int i = 0; i < TYPES.length; i++) {
+                long count = counts.getAndSet(i, 0);
+                if (count > 0) {
+                    byType.put(TYPES[i], count);
+                    total += count;
+                    notify |= policies[i].isNotify();
+                }
+            }
+            
+            if (total == 0) {
+                return null;
+            }
+            return new Incident(player.getName(), player.getUniqueId(), now, periodMillis,
+                byType, total, overflowed.getAndSet(0), kickScheduled.get(), notify);
+        }
+    }
+    
+    /**
+     * Everything one player did wrong in one flush period.
+     */
+    public static final class Incident {
+        private final String playerName;
+        private final UUID playerId;
+        private final long timestamp;
+        private final long periodMillis;
+        private final Map<PacketType, Long> violations;
+        private final long total;
+        private final long delayOverflow;
+        private final boolean kicked;
+        private final boolean notify;
+        
+        Incident(String playerName, UUID playerId, long timestamp, long periodMillis,
+                 Map<PacketType, Long> violations, long total, long delayOverflow,
+                 boolean kicked, boolean notify) {
+            this.playerName = playerName;
+            this.playerId = playerId;
+            this.timestamp = timestamp;
+            this.periodMillis = periodMillis;
+            this.violations = Collections.unmodifiableMap(violations);
+            this.total = total;
+            this.delayOverflow = delayOverflow;
+            this.kicked = kicked;
+            this.notify = notify;
+        }
+        
+        public String getPlayerName() {
+            return playerName;
+        }
+        
+        public UUID getPlayerId() {
+            return playerId;
+        }
+        
+        public long getTimestamp() {
+            return timestamp;
+        }
+        
+        public long getPeriodMillis() {
+            return periodMillis;
+        }
+        
+        public Map<PacketType, Long> getViolations() {
+            return violations;
+        }
+        
+        public long getTotal() {
+            return total;
+        }
+        
+        public long getDelayOverflow() {
+            return delayOverflow;
+        }
+        
+        public boolean isKicked() {
+            return kicked;
+        }
+        
+        public boolean isNotify() {
+            return notify;
+        }
+        
+        public String getSummary() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(playerName).append(": ").append(total).append(" violations in ")
+                .append(String.format("%.1fs", periodMillis / 1000.0)).append(" (");
+            
+            boolean first = true;
+            for (Map.Entry<PacketType, Long> entry : violations.entrySet()) {
+                if (!first) sb.append(", ");
+                sb.append(entry.getKey()).append(" x").append(entry.getValue());
+                first = false;
+            }
+            sb.append(')');
+            
+            if (delayOverflow > 0) {
+                sb.append(", ").append(delayOverflow).append(" dropped from full delay queue");
+            }
+            if (kicked) {
+                sb.append(" - kicked");
+            }
+            return sb.toString();
+        }
+    }
+}
\ No newline at end of file
@@ -3,14 +3,24 @@ package net.mrcappy.corelib.protocol.command;
 import net.mrcappy.corelib.CoreLibPlugin;
 import net.mrcappy.corelib.command.CommandContext;
 import net.mrcappy.corelib.command.CommandExecutor;
+import net.mrcappy.corelib.protocol.FilterMetrics;
+import net.mrcappy.corelib.protocol.PacketFilter;
+import net.mrcappy.corelib.protocol.PacketQuery;
 import net.mrcappy.corelib.protocol.ProtocolManager;
+import net.mrcappy.corelib.protocol.export.PCAPReplayer;
+import net.mrcappy.corelib.protocol.listener.FilterPacketListener;
+import net.mrcappy.corelib.protocol.listener.LatencyHistogram;
 import net.mrcappy.corelib.protocol.listener.ListenerPriority;
+import net.mrcappy.corelib.protocol.listener.ListenerProfile;
 import net.mrcappy.corelib.protocol.listener.PacketAdapter;
 import net.mrcappy.corelib.protocol.packet.PacketContainer;
 import net.mrcappy.corelib.protocol.packet.PacketType;
 import org.bukkit.entity.Player;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Commands for packet manipulation.
@@ -33,6 +43,9 @@ public class PacketCommands {
     // Active packet dumps per player
     private final Map<UUID, PacketDump> activeDumps = new HashMap<>();
     
+    // Replay in progress, one at a time. Main thread only.
+    private PCAPReplayer activeReplay;
+    
     public PacketCommands(CoreLibPlugin plugin) {
         this.plugin = plugin;
         this.protocol = plugin.getProtocolManager();
@@ -49,6 +62,8 @@ public class PacketCommands {
             .subcommand("list", this::listListeners)
             .subcommand("dump", this::toggleDump)
             .subcommand("history", this::showHistory)
+            .subcommand("query", this::queryHistory)
+            .subcommand("replay", this::replayCapture)
             .subcommand("send", this::sendPacket)
             .subcommand("filter", this::manageFilter)
             .subcommand("debug", this::toggleDebug)
@@ -57,36 +72,98 @@ public class PacketCommands {
     
     private void handlePacket(CommandContext ctx) {
         ctx.reply("§6CoreLib Packet System");
-        ctx.reply("§7/packet list - Show active listeners");
+        ctx.reply("§7/packet list [reset] - Show active listeners and their timings");
         ctx.reply("§7/packet dump - Toggle packet dumping");
         ctx.reply("§7/packet history <player> - Show packet history");
+        ctx.reply("§7/packet query [player:a,b] [type:X,Y] [dir:in|out] [since:30s] [page:N] - Search history");
+        ctx.reply("§7/packet replay <file> [max|speed] - Replay a capture through the listeners");
         ctx.reply("§7/packet send <type> <player> - Send a packet");
-        ctx.reply("§7/packet filter <add|remove|list> - Manage JS filters");
+        ctx.reply("§7/packet filter <add|remove|list> - Manage JS filters from scripts/");
+        ctx.reply("§7/packet filter block <name> <expression> - Block packets matching an expression");
+        ctx.reply("§7/packet filter stats [reset] - Script filter runs, latency and errors");
         ctx.reply("§7/packet debug - Toggle debug mode");
     }
     
     private void listListeners(CommandContext ctx) {
+        var listenerManager = protocol.getListenerManager();
+        
+        if (ctx.getString(0, "").equalsIgnoreCase("reset")) {
+            listenerManager.resetProfiles();
+            ctx.reply("§aListener timings reset.");
+            return;
+        }
+        
         ctx.reply("§6Active packet listeners:");
         
         // Get all priority levels
         for (ListenerPriority priority : ListenerPriority.values()) {
-            var listeners = protocol.getListenerManager()
-                .getListenersByPriority(priority);
+            var listeners = listenerManager.getListenersByPriority(priority);
             
             if (!listeners.isEmpty()) {
                 ctx.reply("§e" + priority.name() + ":");
                 for (var listener : listeners) {
                     String plugin = listener.getPlugin().getName();
                     String className = listener.getClass().getSimpleName();
-                    ctx.reply("  §7- " + plugin + ": " + className);
+                    String async = listener.isAsync() ? " §b[async]" : "";
+                    ctx.reply("  §7- " + plugin + ": " + className + async);
+                    
+                    ListenerProfile profile = listenerManager.getProfile(listener);
+                    long calls = profile.getTotalCount();
+                    if (calls > 0) {
+                        ctx.reply("    §8" + calls + " calls, " +
+                            formatNanos(profile.getTotalNanos()) + " total, " +
+                            "p99 " + formatNanos(profile.getPercentileNanos(99)));
+                    }
                 }
             }
         }
         
         // Show total count
-        int total = protocol.getListenerManager().getTotalListeners();
+        int total = listenerManager.getTotalListeners();
         ctx.reply("§7Total listeners: " + total);
-    }    
+        
+        // Who's eating the event loop?
+        List<ListenerProfile> profiles = listenerManager.getProfiles();
+        if (!profiles.isEmpty() && profiles.get(0).getTotalCount() > 0) {
+            ctx.reply("§6Slowest listeners (by total time):");
+            for (int i = 0; i < Math.min(5, profiles.size()); i++) {
+                ListenerProfile profile = profiles.get(i);
+                if (profile.getTotalCount() == 0) break;
+                
+                ctx.reply("§e" + (i + 1) + ". " + profile.getListener().getPlugin().getName() +
+                    ": " + profile.getListener().getClass().getSimpleName());
+                
+                // Top 3 packet types for this listener
+                var entries = profile.getEntries();
+                for (int j = 0; j < Math.min(3, entries.size()); j++) {
+                    var entry = entries.get(j);
+                    LatencyHistogram histogram = entry.getHistogram();
+                    ctx.reply("   §7" + entry.getType() + (entry.isOutgoing() ? " (out)" : " (in)") +
+                        ": " + histogram.getCount() + "x, avg " +
+                        formatNanos((long) histogram.getMeanNanos()) +
+                        ", p50 " + formatNanos(histogram.getPercentileNanos(50)) +
+                        ", p99 " + formatNanos(histogram.getPercentileNanos(99)) +
+                        ", max " + formatNanos(histogram.getMaxNanos()));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Human-readable duration. Nobody wants to read 1834211ns.
+     */
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + "ns";
+        }
+        if (nanos < 1_000_000) {
+            return String.format("%.1fµs", nanos / 1_000.0);
+        }
+        if (nanos < 1_000_000_000) {
+            return String.format("%.1fms", nanos / 1_000_000.0);
+        }
+        return String.format("%.2fs", nanos / 1_000_000_000.0);
+    }
     private void toggleDump(CommandContext ctx) {
         if (!ctx.isPlayer()) {
             ctx.reply("§cOnly players can dump packets, console peasant.");
@@ -134,6 +211,252 @@ public class PacketCommands {
         for (var entry : history.getOutgoing(10)) {
             ctx.reply("§7" + entry.getSummary());
         }
+        
+        // Save the black box while we're at it, it has way more than 10
+        var dump = protocol.dumpFlightRecorder("history-" + target.getName(), target);
+        if (dump != null) {
+            dump.whenComplete((file, error) -> plugin.getServer().getScheduler().runTask(plugin, () -> {
+                if (error != null) {
+                    ctx.reply("§cFlight recorder dump failed: " + error.getMessage());
+                } else {
+                    ctx.reply("§7Flight recorder window saved to §f" + file.getName());
+                }
+            }));
+        }
+    }
+    
+    /**
+     * /packet query player:Steve,Alex type:BLOCK_DIG dir:in since:30s page:2
+     * 
+     * Every filter is optional. Types match the full enum name or
+     * its tail, so BLOCK_DIG finds PLAY_CLIENT_BLOCK_DIG.
+     */
+    private void queryHistory(CommandContext ctx) {
+        PacketQuery query = PacketQuery.create();
+        int page = 1;
+        
+        for (String arg : ctx.getArgs()) {
+            int colon = arg.indexOf(':');
+            if (colon <= 0) {
+                ctx.reply("§cExpected key:value, got " + arg);
+                return;
+            }
+            String key = arg.substring(0, colon).toLowerCase();
+            String value = arg.substring(colon + 1);
+            
+            switch (key) {
+                case "player":
+                    List<UUID> ids = new ArrayList<>();
+                    for (String name : value.split(",")) {
+                        Player player = plugin.getServer().getPlayerExact(name);
+                        if (player == null) {
+                            ctx.reply("§cPlayer not online: " + name);
+                            return;
+                        }
+                        ids.add(player.getUniqueId());
+                    }
+                    query.playerIds(ids);
+                    break;
+                
+                case "type":
+                    for (String name : value.split(",")) {
+                        List<PacketType> types = matchTypes(name);
+                        if (types.isEmpty()) {
+                            ctx.reply("§cUnknown packet type: " + name);
+                            return;
+                        }
+                        query.types(types);
+                    }
+                    break;
+                
+                case "dir":
+                    if (value.equalsIgnoreCase("in")) {
+                        query.incoming();
+                    } else if (value.equalsIgnoreCase("out")) {
+                        query.outgoing();
+                    } else {
+                        ctx.reply("§cDirection is in or out");
+                        return;
+                    }
+                    break;
+                
+                case "since":
+                    long millis = parseDuration(value);
+                    if (millis <= 0) {
+                        ctx.reply("§cBad duration: " + value + " (try 30s, 5m, 500ms)");
+                        return;
+                    }
+                    query.since(millis, TimeUnit.MILLISECONDS);
+                    break;
+                
+                case "page":
+                    try {
+                        page = Math.max(1, Integer.parseInt(value));
+                    } catch (NumberFormatException e) {
+                        ctx.reply("§cBad page: " + value);
+                        return;
+                    }
+                    break;
+                
+                default:
+                    ctx.reply("§cUnknown filter: " + key);
+                    return;
+            }
+        }
+        
+        PacketQuery.Result result = protocol.queryHistory(query.page(page, 10));
+        ctx.reply("§6=== " + result.getTotal() + " matches, page " + result.getPage() +
+            "/" + result.getPages() + " ===");
+        if (!protocol.isDebugMode()) {
+            ctx.reply("§7(Debug mode is off, nothing new is being recorded)");
+        }
+        
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+        for (var entry : result.getEntries()) {
+            Player player = entry.getPlayerId() != null
+                ? plugin.getServer().getPlayer(entry.getPlayerId()) : null;
+            ctx.reply("§8" + time.format(new Date(entry.getTimestamp())) + " " +
+                (entry.isOutgoing() ? "§e[OUT] " : "§b[IN] ") +
+                "§f" + (player != null ? player.getName() : "?") + " §7" + entry.getSummary());
+        }
+        
+        if (result.getPage() < result.getPages()) {
+            ctx.reply("§7Next: add page:" + (result.getPage() + 1));
+        }
+    }
+    
+    private static List<PacketType> matchTypes(String name) {
+        String upper = name.toUpperCase();
+        List<PacketType> matches = new ArrayList<>();
+        for (PacketType type : PacketType.values()) {
+            if (type.name().equals(upper)) {
+                return List.of(type);
+            }
+            if (type.name().endsWith("_" + upper)) {
+                matches.add(type);
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * 500ms, 30s, 5m, 1h. Bare numbers are seconds. -1 if it's garbage.
+     */
+    private static long parseDuration(String value) {
+        String lower = value.toLowerCase();
+        long unit = 1000;
+        if (lower.endsWith("ms")) {
+            unit = 1;
+            lower = lower.substring(0, lower.length() - 2);
+        } else if (lower.endsWith("s")) {
+            lower = lower.substring(0, lower.length() - 1);
+        } else if (lower.endsWith("m")) {
+            unit = 60_000;
+            lower = lower.substring(0, lower.length() - 1);
+        } else if (lower.endsWith("h")) {
+            unit = 3_600_000;
+            lower = lower.substring(0, lower.length() - 1);
+        }
+        try {
+            return Long.parseLong(lower) * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * /packet replay capture.pcapng         - flat out
+     * /packet replay capture.pcapng 1       - recorded pace (2 = double speed)
+     * /packet replay stop
+     * 
+     * Paths are relative to the plugin folder. Runs off the main
+     * thread and reports back when it's done.
+     */
+    private void replayCapture(CommandContext ctx) {
+        String name = ctx.getString(0, null);
+        if (name == null) {
+            ctx.reply("§cUsage: /packet replay <file> [max|speed] or /packet replay stop");
+            return;
+        }
+        
+        if (name.equalsIgnoreCase("stop")) {
+            if (activeReplay == null) {
+                ctx.reply("§cNo replay running.");
+            } else {
+                activeReplay.stop();
+                ctx.reply("§aStopping replay, report incoming.");
+            }
+            return;
+        }
+        
+        if (activeReplay != null) {
+            ctx.reply("§cA replay of " + activeReplay.getFile().getName() + " is already running.");
+            return;
+        }
+        
+        File file = new File(name);
+        if (!file.isAbsolute()) {
+            file = new File(plugin.getDataFolder(), name);
+        }
+        if (!file.isFile()) {
+            ctx.reply("§cNo such capture: " + file.getPath());
+            return;
+        }
+        
+        String speedArg = ctx.getString(1, "max");
+        double speed = speedArg.equalsIgnoreCase("max") ? 0 : ctx.getDouble(1, -1);
+        if (!(speed >= 0)) { // Catches NaN too
+            ctx.reply("§cSpeed is max or a multiplier (1 = recorded pace)");
+            return;
+        }
+        
+        PCAPReplayer replayer = new PCAPReplayer(protocol.getListenerManager(), file).setSpeed(speed);
+        activeReplay = replayer;
+        ctx.reply("§aReplaying " + file.getName() + (speed == 0 ? " flat out" : " at " + speed + "x") + "...");
+        
+        replayer.start().whenComplete((report, error) -> plugin.getServer().getScheduler().runTask(plugin, () -> {
+            activeReplay = null;
+            if (error != null) {
+                ctx.reply("§cReplay failed: " + error.getMessage());
+            } else {
+                showReplayReport(ctx, report);
+            }
+        }));
+    }
+    
+    private void showReplayReport(CommandContext ctx, PCAPReplayer.Report report) {
+        ctx.reply("§6=== Replay of " + report.getFile().getName() +
+            (report.isStopped() ? " (stopped)" : report.isTruncated() ? " (file cut off)" : "") + " ===");
+        ctx.reply("§7" + report.getReplayed() + "/" + report.getRead() + " packets in " +
+            formatNanos(report.getElapsedNanos()) + String.format(" (%.0f/s), ", report.getPacketsPerSecond()) +
+            report.getCancelled() + " cancelled");
+        
+        long skipped = report.getFieldDumps() + report.getUnknownTypes() + report.getUndecodable();
+        if (skipped > 0) {
+            ctx.reply("§7Skipped: " + report.getFieldDumps() + " field dumps, " +
+                report.getUnknownTypes() + " unknown types, " + report.getUndecodable() + " undecodable");
+            if (report.getLastError() != null) {
+                ctx.reply("§8Last decode error: " + report.getLastError());
+            }
+        }
+        
+        List<ListenerProfile> profiles = report.getProfiles();
+        if (profiles.isEmpty()) {
+            ctx.reply("§7No listeners saw any of it.");
+            return;
+        }
+        
+        ctx.reply("§6Listeners (by total time):");
+        for (int i = 0; i < Math.min(10, profiles.size()); i++) {
+            ListenerProfile profile = profiles.get(i);
+            ctx.reply("§e" + (i + 1) + ". " + profile.getListener().getPlugin().getName() +
+                ": " + profile.getListener().getClass().getSimpleName());
+            ctx.reply("   §7" + profile.getTotalCount() + " calls, " +
+                formatNanos(profile.getTotalNanos()) + " total, " +
+                String.format("%.0f/s max, ", PCAPReplayer.Report.getThroughput(profile)) +
+                "p50 " + formatNanos(profile.getPercentileNanos(50)) +
+                ", p99 " + formatNanos(profile.getPercentileNanos(99)));
+        }
     }
     
     private void sendPacket(CommandContext ctx) {
@@ -176,11 +499,11 @@ public class PacketCommands {
             
             protocol.sendPacket(target, packet);
             ctx.reply("§aSent " + type + " to " + target.getName());
-            
+        
         } catch (Exception e) {
             ctx.reply("§cFailed to send packet: " + e.getMessage());
         }
-    }    
+    }
     private void manageFilter(CommandContext ctx) {
         String action = ctx.getString(0, "list");
         
@@ -188,40 +511,66 @@ public class PacketCommands {
             case "add":
                 String name = ctx.getString(1, null);
                 if (name == null) {
-                    ctx.reply("§cUsage: /packet filter add <n>");
-                    ctx.reply("§7Then paste your JavaScript code");
-                    ctx.reply("§7Example: /packet filter add nochat");
+                    ctx.reply("§cUsage: /packet filter add <n> [types...]");
+                    ctx.reply("§7Runs scripts/<n>.js, which reloads itself when you save it");
+                    ctx.reply("§7Example: /packet filter add nochat PLAY_CLIENT_CHAT");
+                    return;
+                }
+                if (!protocol.getScriptEngine().hasFilter(name)) {
+                    ctx.reply("§cNo script filter " + name + " loaded");
+                    ctx.reply("§7Put it in " + protocol.getScriptWatcher().getDirectory().getPath() + "/" + name + ".js");
                     return;
                 }
                 
-                // For demo, just add a simple filter
-                String code = """
-                    // Block chat packets example
-                    if (packet.getType().name().contains("CHAT")) {
-                        console.log("Blocked chat from " + player.getName());
-                        return false;
+                Set<PacketType> types = EnumSet.noneOf(PacketType.class);
+                for (int i = 2; i < ctx.getArgs().length; i++) {
+                    try {
+                        types.add(PacketType.valueOf(ctx.getArgs()[i].toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        ctx.reply("§cUnknown packet type: " + ctx.getArgs()[i]);
+                        return;
                     }
-                    return true;
-                    """;
+                }
+                
+                var scriptListener = new net.mrcappy.corelib.protocol.listener.JavaScriptPacketListener(
+                    plugin, protocol.getScriptEngine(), name, ListenerPriority.NORMAL,
+                    types, types // Empty = every packet
+                );
+                protocol.registerListener(scriptListener);
+                
+                ctx.reply("§aAdded filter: " + name);
+                ctx.reply("§7Runs on: " + (types.isEmpty() ? "every packet (list some types!)" : types));
+                ctx.reply("§7Bind it in config.yml under protocol.script-filters to keep it across restarts");
+                break;
+            
+            case "block":
+                String ruleName = ctx.getString(1, null);
+                String expression = ctx.joinArgs(2);
+                if (ruleName == null || expression.isEmpty()) {
+                    ctx.reply("§cUsage: /packet filter block <name> <expression>");
+                    ctx.reply("§7Example: /packet filter block spam type == CHAT && strings[0] contains \"discord.gg\"");
+                    return;
+                }
+                if (findFilterListener(ruleName) != null) {
+                    ctx.reply("§cFilter " + ruleName + " already exists, remove it first");
+                    return;
+                }
                 
                 try {
-                    protocol.getScriptEngine().compileFilter(name, code);
-                    
-                    // Register listener for this filter
-                    var listener = new net.mrcappy.corelib.protocol.listener.JavaScriptPacketListener(
-                        plugin, protocol.getScriptEngine(), name,
-                        net.mrcappy.corelib.protocol.listener.ListenerPriority.NORMAL, 
-                        Set.of(), Set.of() // Listen to all packets
-                    );
-                    protocol.registerListener(listener);
+                    PacketFilter filter = PacketFilter.compile(expression);
+                    protocol.registerListener(new FilterPacketListener(
+                        plugin, ruleName, filter, ListenerPriority.NORMAL));
                     
-                    ctx.reply("§aAdded filter: " + name);
-                    ctx.reply("§7(Demo filter that blocks chat packets)");
-                } catch (Exception e) {
-                    ctx.reply("§cFailed to add filter: " + e.getMessage());
+                    ctx.reply("§aAdded filter: " + ruleName);
+                    ctx.reply("§7Blocking: " + filter.getSource());
+                    if (!filter.getTypes().isEmpty()) {
+                        ctx.reply("§7Only checks: " + filter.getTypes());
+                    }
+                } catch (PacketFilter.FilterException e) {
+                    ctx.reply("§c" + e.getMessage());
                 }
                 break;
-                
+            
             case "remove":
                 String removeName = ctx.getString(1, null);
                 if (removeName == null) {
@@ -229,12 +578,31 @@ public class PacketCommands {
                     return;
                 }
                 
-                protocol.getScriptEngine().removeFilter(removeName);
-                ctx.reply("§aRemoved filter: " + removeName);
+                // The script stays loaded, it belongs to its file
+                int removed = 0;
+                for (ListenerPriority priority : ListenerPriority.values()) {
+                    for (var listener : protocol.getListenerManager().getListenersByPriority(priority)) {
+                        if ((listener instanceof FilterPacketListener rule && rule.getFilterName().equals(removeName))
+                                || (listener instanceof net.mrcappy.corelib.protocol.listener.JavaScriptPacketListener jsListener
+                                    && jsListener.getFilterName().equals(removeName))) {
+                            protocol.unregisterListener(listener);
+                            removed++;
+                        }
+                    }
+                }
+                if (removed == 0) {
+                    ctx.reply("§cNo filter named " + removeName);
+                } else {
+                    ctx.reply("§aRemoved filter: " + removeName);
+                }
                 break;
-                
+            
+            case "stats":
+                showFilterStats(ctx, ctx.getString(1, "").equalsIgnoreCase("reset"));
+                break;
+            
             case "list":
-                ctx.reply("§6Active JavaScript filters:");
+                ctx.reply("§6Active packet filters:");
                 
                 // Get all JS listeners
                 var allListeners = protocol.getListenerManager().getTotalListeners();
@@ -244,23 +612,76 @@ public class PacketCommands {
                     for (var listener : protocol.getListenerManager()
                             .getListenersByPriority(priority)) {
                         if (listener instanceof net.mrcappy.corelib.protocol.listener.JavaScriptPacketListener jsListener) {
-                            ctx.reply("§7- " + jsListener.getFilterName() + 
+                            ctx.reply("§7- " + jsListener.getFilterName() +
                                 " (Priority: " + priority + ")");
                             jsCount++;
+                        } else if (listener instanceof FilterPacketListener ruleListener) {
+                            ctx.reply("§7- " + ruleListener.getFilterName() + " §8blocks§7 " +
+                                ruleListener.getFilter().getSource() + " (Priority: " + priority + ")");
+                            jsCount++;
                         }
                     }
                 }
                 
                 if (jsCount == 0) {
-                    ctx.reply("§7No JavaScript filters active");
+                    ctx.reply("§7No filters active");
                 } else {
-                    ctx.reply("§7Total JS filters: " + jsCount);
+                    ctx.reply("§7Total filters: " + jsCount);
                 }
                 break;
-                
+            
             default:
-                ctx.reply("§cUsage: /packet filter <add|remove|list>");
+                ctx.reply("§cUsage: /packet filter <add|block|remove|list|stats>");
+        }
+    }
+    
+    private void showFilterStats(CommandContext ctx, boolean reset) {
+        var scriptEngine = protocol.getScriptEngine();
+        List<FilterMetrics> all = scriptEngine.getAllMetrics();
+        all.removeIf(metrics -> metrics.getName().startsWith("inline_") && metrics.getEvaluations() == 0);
+        
+        if (reset) {
+            all.forEach(FilterMetrics::reset);
+            ctx.reply("§aScript filter stats reset.");
+            return;
+        }
+        if (all.isEmpty()) {
+            ctx.reply("§7No script filters loaded. Drop some .js files in " +
+                protocol.getScriptWatcher().getDirectory().getPath());
+            return;
+        }
+        
+        ctx.reply("§6Script filters:");
+        for (FilterMetrics metrics : all) {
+            long runs = metrics.getEvaluations();
+            ctx.reply("§e" + metrics.getName() + "§7: " + runs + " runs, " + metrics.getBlocked() + " blocked" +
+                (runs > 0 ? ", avg " + formatNanos((long) metrics.getMeanNanos()) +
+                    ", p99 " + formatNanos(metrics.getPercentileNanos(99)) : ""));
+            
+            long errors = metrics.getErrors();
+            long kills = metrics.getBudgetKills();
+            long compileFailures = metrics.getCompileFailures();
+            if (errors + kills + compileFailures > 0) {
+                String lastError = metrics.getLastError();
+                ctx.reply("  §c" + errors + " errors, " + kills + " over budget, " +
+                    compileFailures + " failed reloads" + (lastError != null ? " §8(" + lastError + ")" : ""));
+            }
+            if (metrics.getCompiles() > 1) {
+                ctx.reply("  §8reloaded " + (metrics.getCompiles() - 1) + "x, last " +
+                    new SimpleDateFormat("HH:mm:ss").format(new Date(metrics.getLastCompiled())));
+            }
+        }
+    }
+    
+    private FilterPacketListener findFilterListener(String name) {
+        for (ListenerPriority priority : ListenerPriority.values()) {
+            for (var listener : protocol.getListenerManager().getListenersByPriority(priority)) {
+                if (listener instanceof FilterPacketListener rule && rule.getFilterName().equals(name)) {
+                    return rule;
+                }
+            }
         }
+        return null;
     }
     
     private void toggleDebug(CommandContext ctx) {
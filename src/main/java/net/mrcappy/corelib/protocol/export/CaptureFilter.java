@@ -0,0 +1,181 @@
+package net.mrcappy.corelib.protocol.export;
+
+import net.mrcappy.corelib.protocol.packet.PacketType;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Which packets a PCAP capture keeps.
+ * 
+ * Checked before anything gets wrapped, serialized or copied,
+ * so a capture that only wants chat can run all day on a full
+ * server. In order of cost:
+ * - Type and direction: one bitset per direction, one bit test.
+ *   Most rejections stop here.
+ * - Players: a set lookup, only for packets that passed the bits.
+ * - Sampling: keep roughly 1 in N of what's left. Random rather
+ *   than a shared counter, so event loops don't fight over a
+ *   cache line just to decide what to throw away.
+ * 
+ * Immutable, the with-style methods return a copy:
+ * CaptureFilter.all()
+ *     .types(PacketType.PLAY_CLIENT_CHAT, PacketType.PLAY_SERVER_SYSTEM_CHAT)
+ *     .players(suspect.getUniqueId())
+ *     .sample(10)
+ */
+public final class CaptureFilter {
+    
+    private static final PacketType[] TYPES = PacketType.values();
+    private static final int WORDS = (TYPES.length + 63) >>> 6;
+    
+    public static final CaptureFilter ALL = new CaptureFilter(everything(), everything(), null, 1);
+    
+    private final long[] incoming;
+    private final long[] outgoing;
+    private final Set<UUID> players; // null = everyone
+    private final int sampleEvery; // 1 = keep everything
+    private final boolean anyIncoming;
+    private final boolean anyOutgoing;
+    
+    private CaptureFilter(long[] incoming, long[] outgoing, Set<UUID> players, int sampleEvery) {
+        this.incoming = incoming;
+        this.outgoing = outgoing;
+        this.players = players;
+        this.sampleEvery = sampleEvery;
+        this.anyIncoming = any(incoming);
+        this.anyOutgoing = any(outgoing);
+    }
+    
+    /**
+     * Capture everything. Start here and narrow it down.
+     */
+    public static CaptureFilter all() {
+        return ALL;
+    }
+    
+    /**
+     * Only these types. Stacks with the direction filters.
+     */
+    public CaptureFilter types(PacketType... types) {
+        return types(Arrays.asList(types));
+    }
+    
+    public CaptureFilter types(Collection<PacketType> types) {
+        long[] mask = new long[WORDS];
+        for (PacketType type : types) {
+            set(mask, type.ordinal());
+        }
+        return new CaptureFilter(and(incoming, mask), and(outgoing, mask), players, sampleEvery);
+    }
+    
+    /**
+     * Only what the players send.
+     */
+    public CaptureFilter incomingOnly() {
+        return new CaptureFilter(incoming, new long[WORDS], players, sampleEvery);
+    }
+    
+    /**
+     * Only what the server sends.
+     */
+    public CaptureFilter outgoingOnly() {
+        return new CaptureFilter(new long[WORDS], outgoing, players, sampleEvery);
+    }
+    
+    /**
+     * Only these players. Stacks, so calling it twice means both lists.
+     */
+    public CaptureFilter players(UUID... players) {
+        return players(Arrays.asList(players));
+    }
+    
+    public CaptureFilter players(Collection<UUID> players) {
+        Set<UUID> merged = new HashSet<>(players);
+        if (this.players != null) {
+            merged.addAll(this.players);
+        }
+        return new CaptureFilter(incoming, outgoing, Collections.unmodifiableSet(merged), sampleEvery);
+    }
+    
+    /**
+     * Keep about 1 in every N packets that pass everything else.
+     * 1 turns sampling off.
+     */
+    public CaptureFilter sample(int every) {
+        if (every < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1");
+        }
+        return new CaptureFilter(incoming, outgoing, players, every);
+    }
+    
+    /**
+     * Type and direction only. The cheap check, good enough to
+     * decide whether a packet is worth wrapping at all.
+     */
+    public boolean accepts(PacketType type, boolean outgoing) {
+        int ordinal = type.ordinal();
+        long[] bits = outgoing ? this.outgoing : this.incoming;
+        return (bits[ordinal >>> 6] & (1L << ordinal)) != 0;
+    }
+    
+    /**
+     * The whole thing: type, direction, player, then the sample roll.
+     */
+    public boolean test(PacketType type, boolean outgoing, UUID player) {
+        if (!accepts(type, outgoing)) {
+            return false;
+        }
+        if (players != null && !players.contains(player)) {
+            return false;
+        }
+        return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+    
+    /**
+     * Does this let anything through in this direction?
+     */
+    public boolean acceptsAny(boolean outgoing) {
+        return outgoing ? anyOutgoing : anyIncoming;
+    }
+    
+    /**
+     * Null if every player is captured.
+     */
+    public Set<UUID> getPlayers() {
+        return players;
+    }
+    
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+    
+    private static long[] everything() {
+        long[] bits = new long[WORDS];
+        for (int i = 0; i < TYPES.length; i++) {
+            set(bits, i);
+        }
+        return bits;
+    }
+    
+    private static void set(long[] bits, int ordinal) {
+        bits[ordinal >>> 6] |= 1L << ordinal;
+    }
+    
+    private static boolean any(long[] bits) {
+        for (long word : bits) {
+            if (word != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static long[] and(long[] a, long[] b) {
+        long[] result = new long[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            result[i] = a[i] & b[i];
+        }
+        return result;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,531 @@
+package net.mrcappy.corelib.protocol.export;
+
+import io.netty.buffer.ByteBuf;
+import net.mrcappy.corelib.protocol.packet.PacketType;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Black box recorder for every packet on the server.
+ * 
+ * PacketHistory is for poking at one player while debug mode is
+ * on. This is the thing you wish you'd had running AFTER the
+ * server did something weird: the last minute or so of packets,
+ * both directions, every player, always recording.
+ * 
+ * It lives in a memory-mapped file, not on the heap. Fixed size
+ * slots, one packet each, written through a single atomic cursor
+ * like PacketHistory's ring. Memory use is the file size and
+ * never grows, the GC never sees any of it, and if the JVM dies
+ * the OS still has the pages - next startup finds the file marked
+ * dirty and dumps whatever was in it as a crash dump.
+ * 
+ * Packets bigger than a slot get truncated, same as a pcap
+ * snaplen. Chunk data in a black box is useless anyway, the
+ * interesting stuff (movement, clicks, chat, commands) fits.
+ * 
+ * Dumps are a snapshot of the window written to a gzipped file
+ * on a background thread. Recording never waits on them. Only the
+ * newest few dozen dump files are kept, older ones get deleted.
+ * 
+ * Recording copies straight out of the ByteBuf into the slot
+ * through a view made once per slot at startup, so a packet costs
+ * a copy and nothing else - no nioBuffer, no wrappers, no garbage.
+ * Inbound frames get freed by the decoder before anyone knows what
+ * packet they were, so those go in two steps: reserve() copies the
+ * bytes while the frame is still alive, commit() fills in the type
+ * once the decoded packet shows up.
+ * 
+ * Slot layout (big endian):
+ *   0  long  stamp (sequence + 1, 0 = empty, -1 = being written)
+ *   8  long  System.nanoTime()
+ *   16 long  wall clock millis
+ *   24 long  player UUID most significant bits
+ *   32 long  player UUID least significant bits
+ *   40 short PacketType ordinal
+ *   42 byte  1 = outgoing, 0 = incoming
+ *   44 int   original length
+ *   48 ...   encoded packet, packet id first, truncated to SNAPLEN
+ */
+public class FlightRecorder {
+    
+    private static final int MAGIC = 0x434c4652; // "CLFR"
+    private static final int DUMP_MAGIC = 0x434c4644; // "CLFD"
+    private static final int VERSION = 1;
+    
+    private static final int HEADER_SIZE = 4096;
+    private static final int HEADER_DIRTY = 16;
+    
+    public static final int SLOT_SIZE = 512;
+    private static final int SLOT_HEADER = 48;
+    public static final int SNAPLEN = SLOT_SIZE - SLOT_HEADER;
+    
+    // 32768 slots * 512 bytes = 16 MiB of file
+    public static final int DEFAULT_SLOTS = 1 << 15;
+    
+    private static final PacketType[] TYPES = PacketType.values();
+    
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    
+    private final File file;
+    private final File dumpDir;
+    private final FileChannel channel;
+    private final MappedByteBuffer ring;
+    private final ByteBuffer[] slotData; // Each slot's data area, reused for every copy into it
+    private final int slots;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    
+    private final ExecutorService dumper;
+    
+    // Trigger throttling, guarded by this. Cooldowns outlive the
+    // player's session on purpose - kick, reconnect, kick again
+    // shouldn't get a fresh dump every round.
+    private final Map<UUID, Long> lastTriggered = new HashMap<>();
+    private final ArrayDeque<Long> recentTriggers = new ArrayDeque<>();
+    private final CompletableFuture<File> recoveryDump;
+    
+    private volatile long windowMillis = TimeUnit.SECONDS.toMillis(60);
+    private volatile long triggerCooldownMillis = TimeUnit.SECONDS.toMillis(60);
+    private volatile int maxTriggersPerMinute = 10;
+    private volatile int maxDumpFiles = 50;
+    private volatile boolean closed = false;
+    
+    public FlightRecorder(File file) throws IOException {
+        this(file, DEFAULT_SLOTS);
+    }
+    
+    /**
+     * Open (or create) the ring file.
+     * 
+     * @param slots number of packets the ring holds, rounded up to a power of two
+     */
+    public FlightRecorder(File file, int slots) throws IOException {
+        if (slots <= 0 || slots > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE / 2) {
+            throw new IllegalArgumentException("Slot count out of range: " + slots);
+        }
+        this.file = file;
+        this.dumpDir = new File(file.getAbsoluteFile().getParentFile(), "flight-dumps");
+        this.slots = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.mask = this.slots - 1;
+        
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        
+        this.dumper = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "FlightRecorder-Dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        long size = HEADER_SIZE + (long) this.slots * SLOT_SIZE;
+        this.channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean reusable = channel.size() == size;
+            this.ring = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            
+            // Left dirty = the last run never closed it. Crash, kill -9,
+            // power cut, whatever - the pages are still there, save them.
+            if (reusable && ring.getInt(0) == MAGIC && ring.getInt(8) == SLOT_SIZE
+                    && ring.getInt(12) == this.slots && ring.getInt(HEADER_DIRTY) != 0) {
+                List<Entry> recovered = snapshot(-1, null);
+                this.recoveryDump = recovered.isEmpty() ? null
+                    : CompletableFuture.supplyAsync(() -> write("crash", recovered), dumper);
+            } else {
+                this.recoveryDump = null;
+            }
+            
+            // Fresh start. Zeroed stamps = empty slots.
+            for (int i = 0; i < this.slots; i++) {
+                ring.putLong(offset(i), 0);
+            }
+            ring.putInt(0, MAGIC);
+            ring.putInt(4, VERSION);
+            ring.putInt(8, SLOT_SIZE);
+            ring.putInt(12, this.slots);
+            ring.putInt(HEADER_DIRTY, 1);
+            
+            this.slotData = new ByteBuffer[this.slots];
+            for (int i = 0; i < this.slots; i++) {
+                slotData[i] = ring.slice(offset(i) + SLOT_HEADER, SNAPLEN);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            dumper.shutdownNow();
+            throw e;
+        }
+    }
+    
+    /**
+     * Record one encoded packet.
+     * 
+     * Copies the buffer from index 0 to its limit, ignoring its
+     * position, and never changes it. Safe from any thread. Cost is
+     * one getAndIncrement and a copy of at most SNAPLEN bytes.
+     */
+    public void record(UUID player, PacketType type, boolean outgoing, ByteBuffer data) {
+        if (closed) return;
+        
+        long seq = cursor.getAndIncrement();
+        int base = begin(seq, player, outgoing, data.limit());
+        ring.put(base + SLOT_HEADER, data, 0, Math.min(data.limit(), SNAPLEN));
+        commit(seq, type);
+    }
+    
+    /**
+     * Record one encoded packet, straight from Netty's buffer.
+     * Copies the readable bytes, doesn't touch the indexes or the
+     * refcount, allocates nothing.
+     */
+    public void record(UUID player, PacketType type, boolean outgoing, ByteBuf data) {
+        long seq = reserve(player, outgoing, data);
+        if (seq >= 0) {
+            commit(seq, type);
+        }
+    }
+    
+    /**
+     * First half of recording a packet whose type isn't known yet.
+     * Copies the bytes now, while the buffer is still alive. The slot
+     * stays invisible to dumps until commit().
+     * 
+     * @return the sequence to commit, or -1 if the recorder is closed
+     */
+    public long reserve(UUID player, boolean outgoing, ByteBuf data) {
+        if (closed) return -1;
+        
+        long seq = cursor.getAndIncrement();
+        int length = data.readableBytes();
+        begin(seq, player, outgoing, length);
+        
+        ByteBuffer target = slotData[(int) (seq & mask)];
+        target.clear().limit(Math.min(length, SNAPLEN));
+        data.getBytes(data.readerIndex(), target);
+        return seq;
+    }
+    
+    /**
+     * Second half: stamp the type and publish the slot.
+     * Every reserve() needs exactly one of these, UNKNOWN if
+     * the packet never showed up.
+     */
+    public void commit(long seq, PacketType type) {
+        int base = offset((int) (seq & mask));
+        ring.putShort(base + 40, (short) type.ordinal());
+        LONGS.setRelease(ring, base, seq + 1);
+    }
+    
+    /**
+     * Claim a slot and write everything but the type and the data.
+     */
+    private int begin(long seq, UUID player, boolean outgoing, int length) {
+        int base = offset((int) (seq & mask));
+        LONGS.setVolatile(ring, base, -1L); // Busy, keep out
+        ring.putLong(base + 8, System.nanoTime());
+        ring.putLong(base + 16, System.currentTimeMillis());
+        ring.putLong(base + 24, player.getMostSignificantBits());
+        ring.putLong(base + 32, player.getLeastSignificantBits());
+        ring.put(base + 42, (byte) (outgoing ? 1 : 0));
+        ring.putInt(base + 44, length);
+        return base;
+    }
+    
+    /**
+     * Dump the window to disk, no questions asked.
+     * 
+     * @param reason goes in the file name and header
+     * @param player only this player's packets, or null for everyone
+     * @return the dump file, once it's written
+     */
+    public CompletableFuture<File> dump(String reason, UUID player) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Flight recorder is closed"));
+        }
+        long cutoff = System.currentTimeMillis() - windowMillis;
+        return CompletableFuture.supplyAsync(() -> write(reason, snapshot(cutoff, player)), dumper);
+    }
+    
+    /**
+     * Dump for an automatic trigger (kick, rate limit incident).
+     * A flood can't turn into a disk filling exercise: a player that
+     * keeps tripping triggers (reconnecting or not) only gets one dump
+     * per cooldown, all players together only get so many a minute,
+     * and old dump files get deleted past the cap.
+     * 
+     * @return the dump, or null if this player is on cooldown or
+     *         there's been too many dumps lately
+     */
+    public CompletableFuture<File> trigger(String reason, UUID player) {
+        long now = System.currentTimeMillis();
+        long cooldown = triggerCooldownMillis;
+        synchronized (this) {
+            Long last = lastTriggered.get(player);
+            if (last != null && now - last < cooldown) {
+                return null;
+            }
+            
+            while (!recentTriggers.isEmpty() && now - recentTriggers.peekFirst() >= 60_000) {
+                recentTriggers.pollFirst();
+            }
+            if (recentTriggers.size() >= maxTriggersPerMinute) {
+                return null; // Lots of accounts tripping at once, one more dump won't tell us anything new
+            }
+            recentTriggers.addLast(now);
+            
+            // Expired cooldowns are just dead weight, don't let the map grow with every account ever
+            lastTriggered.values().removeIf(time -> now - time >= cooldown);
+            lastTriggered.put(player, now);
+        }
+        return dump(reason, player);
+    }
+    
+    /**
+     * Copy every slot in the window out of the ring, oldest first.
+     * Slots that get overwritten while we read them are skipped.
+     * 
+     * @param cutoff oldest wall clock millis to keep, or -1 for the
+     *               newest record minus the window (crash recovery,
+     *               where "now" is whenever the server died)
+     */
+    private List<Entry> snapshot(long cutoff, UUID player) {
+        List<Entry> entries = new ArrayList<>();
+        long newest = 0;
+        
+        for (int i = 0; i < slots; i++) {
+            int base = offset(i);
+            long stamp = (long) LONGS.getAcquire(ring, base);
+            if (stamp <= 0) {
+                continue; // Empty or mid-write
+            }
+            
+            long msb = ring.getLong(base + 24);
+            long lsb = ring.getLong(base + 32);
+            if (player != null && (msb != player.getMostSignificantBits()
+                    || lsb != player.getLeastSignificantBits())) {
+                continue;
+            }
+            
+            long wall = ring.getLong(base + 16);
+            int length = ring.getInt(base + 44);
+            byte[] data = new byte[Math.max(0, Math.min(length, SNAPLEN))];
+            Entry entry = new Entry(stamp, ring.getLong(base + 8), wall, msb, lsb,
+                ring.getShort(base + 40), ring.get(base + 42) != 0, length, data);
+            ring.get(base + SLOT_HEADER, data, 0, data.length);
+            
+            VarHandle.acquireFence();
+            if ((long) LONGS.getVolatile(ring, base) != stamp) {
+                continue; // Lapped while we were reading
+            }
+            
+            entries.add(entry);
+            newest = Math.max(newest, wall);
+        }
+        
+        long from = cutoff >= 0 ? cutoff : newest - windowMillis;
+        entries.removeIf(entry -> entry.wallMillis < from);
+        entries.sort(Comparator.comparingLong(entry -> entry.stamp));
+        return entries;
+    }
+    
+    /**
+     * Write a snapshot to a gzipped dump file.
+     * 
+     * Header: magic, version, created millis, reason, the PacketType
+     * name table (so ordinals still mean something next version),
+     * record count. Then per record: wall millis, nanoTime, UUID,
+     * type ordinal, direction, original length, captured length, bytes.
+     */
+    private File write(String reason, List<Entry> entries) {
+        dumpDir.mkdirs();
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        File target = new File(dumpDir, stamp + "-" + reason.replaceAll("[^A-Za-z0-9_-]", "_") + ".flight.gz");
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(target), 64 * 1024)))) {
+            out.writeInt(DUMP_MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(reason);
+            
+            out.writeShort(TYPES.length);
+            for (PacketType type : TYPES) {
+                out.writeUTF(type.name());
+            }
+            
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.wallMillis);
+                out.writeLong(entry.nanoTime);
+                out.writeLong(entry.msb);
+                out.writeLong(entry.lsb);
+                out.writeShort(entry.type);
+                out.writeBoolean(entry.outgoing);
+                out.writeInt(entry.length);
+                out.writeInt(entry.data.length);
+                out.write(entry.data);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write flight dump " + target, e);
+        }
+        pruneDumps();
+        return target;
+    }
+    
+    /**
+     * Delete the oldest dumps past maxDumpFiles. Dumper thread only.
+     * The names start with a timestamp, so name order is age order.
+     */
+    private void pruneDumps() {
+        File[] dumps = dumpDir.listFiles((dir, name) -> name.endsWith(".flight.gz"));
+        int excess = dumps == null ? 0 : dumps.length - maxDumpFiles;
+        if (excess <= 0) {
+            return;
+        }
+        Arrays.sort(dumps, Comparator.comparing(File::getName));
+        for (int i = 0; i < excess; i++) {
+            dumps[i].delete(); // Can't delete it, whatever, next dump tries again
+        }
+    }
+    
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+    
+    /**
+     * Crash dump written from the previous run's leftovers, or null
+     * if the last shutdown was clean.
+     */
+    public CompletableFuture<File> getRecoveryDump() {
+        return recoveryDump;
+    }
+    
+    /**
+     * How far back a dump reaches. Default 60 seconds. The ring
+     * size still caps it - a busy server wraps sooner than that.
+     */
+    public void setWindow(long window, TimeUnit unit) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        this.windowMillis = unit.toMillis(window);
+    }
+    
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+    
+    /**
+     * Minimum time between triggered dumps for the same player. Default 60 seconds.
+     */
+    public void setTriggerCooldown(long cooldown, TimeUnit unit) {
+        this.triggerCooldownMillis = unit.toMillis(cooldown);
+    }
+    
+    /**
+     * Most triggered dumps per minute, all players together. Default 10.
+     * Manual dumps don't count.
+     */
+    public void setMaxTriggersPerMinute(int triggers) {
+        if (triggers <= 0) {
+            throw new IllegalArgumentException("Trigger rate must be positive");
+        }
+        this.maxTriggersPerMinute = triggers;
+    }
+    
+    /**
+     * How many dump files to keep, oldest deleted first. Default 50.
+     */
+    public void setMaxDumpFiles(int files) {
+        if (files <= 0) {
+            throw new IllegalArgumentException("Dump file cap must be positive");
+        }
+        this.maxDumpFiles = files;
+    }
+    
+    /**
+     * Packets recorded since startup, including overwritten ones.
+     */
+    public long getRecorded() {
+        return cursor.get();
+    }
+    
+    public int getSlotCount() {
+        return slots;
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public File getDumpDirectory() {
+        return dumpDir;
+    }
+    
+    /**
+     * Finish pending dumps and mark the file clean.
+     * A clean file doesn't get crash-dumped on the next start.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        
+        dumper.shutdown();
+        try {
+            dumper.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        try {
+            ring.putInt(HEADER_DIRTY, 0);
+            ring.force();
+            channel.close();
+        } catch (Exception e) {
+            // Worst case we get a bogus crash dump next start
+        }
+    }
+    
+    /**
+     * One record copied out of the ring.
+     */
+    private static final class Entry {
+        final long stamp;
+        final long nanoTime;
+        final long wallMillis;
+        final long msb;
+        final long lsb;
+        final short type;
+        final boolean outgoing;
+        final int length;
+        final byte[] data;
+        
+        Entry(long stamp, long nanoTime, long wallMillis, long msb, long lsb,
+              short type, boolean outgoing, int length, byte[] data) {
+            this.stamp = stamp;
+            this.nanoTime = nanoTime;
+            this.wallMillis = wallMillis;
+            this.msb = msb;
+            this.lsb = lsb;
+            this.type = type;
+            this.outgoing = outgoing;
+            this.length = length;
+            this.data = data;
+        }
+    }
+}
\ No newline at end of file
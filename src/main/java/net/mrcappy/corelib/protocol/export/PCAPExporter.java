@@ -2,13 +2,23 @@ package net.mrcappy.corelib.protocol.export;
 
 import net.mrcappy.corelib.protocol.packet.PacketContainer;
 import net.mrcappy.corelib.protocol.packet.PacketType;
+import net.mrcappy.corelib.protocol.packet.RawPacket;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.time.Instant;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * PCAP exporter for packet logs.
@@ -25,6 +35,31 @@ import java.util.concurrent.LinkedBlockingQueue;
  * Fair warning: Minecraft packets in Wireshark look like
  * someone encrypted garbage with more garbage. But hey,
  * at least it's *professional* garbage.
+ * 
+ * Built to survive a full server: callers only ever do a bounded
+ * queue offer (full queue = packet dropped and counted, never a
+ * blocked event loop). Decoded packets do get serialized on the
+ * caller's thread - the handle is live, and whatever runs after us
+ * can change it before a writer thread gets around to it. Outgoing
+ * ones come in already encoded from the raw tap, and the capture
+ * filter keeps the inbound ones down to what you asked for. The
+ * writer drains the
+ * queue in batches into one big direct buffer and hands it to
+ * the file with a gathering write - big payloads go in as their
+ * own buffers instead of being copied again. No flush per packet,
+ * the page cache can do its job.
+ * 
+ * Files rotate by size and/or age: capture.pcap, capture-1.pcap,
+ * capture-2.pcap and so on, each a complete capture on its own.
+ * 
+ * Two formats:
+ * - PCAP: the classic one. Microsecond timestamps, and every
+ *   record drags our own header along (player, direction, type).
+ * - PCAPNG: every player gets their own interface (named after
+ *   them) the first time they show up in a file, so Wireshark can
+ *   filter on frame.interface_name. Nanosecond timestamps, the
+ *   direction in the standard flags option, the packet type as the
+ *   frame comment, and the payload is just the encoded packet.
  */
 public class PCAPExporter {
     
@@ -34,19 +69,102 @@ public class PCAPExporter {
     private static final int PCAP_SNAPLEN = 65535;
     private static final int PCAP_NETWORK = 147; // User defined
     
-    private final File outputFile;
-    private final DataOutputStream output;
+    // PCAPNG block types and option codes
+    private static final int BLOCK_SHB = 0x0A0D0D0A;
+    private static final int BLOCK_IDB = 0x00000001;
+    private static final int BLOCK_EPB = 0x00000006;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final short OPT_END = 0;
+    private static final short OPT_COMMENT = 1;
+    private static final short SHB_USERAPPL = 4;
+    private static final short IF_NAME = 2;
+    private static final short IF_TSRESOL = 9;
+    private static final short EPB_FLAGS = 2;
+    private static final int FLAG_INBOUND = 1;
+    private static final int FLAG_OUTBOUND = 2;
+    
+    /**
+     * What ends up on disk.
+     */
+    public enum Format {
+        /** Classic libpcap, microsecond timestamps, inline player/type header. */
+        PCAP,
+        /** PCAPNG, one interface per player, nanosecond timestamps. */
+        PCAPNG
+    }
+    
+    public static final int DEFAULT_QUEUE_CAPACITY = 65536;
+    
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_BATCH = 4096;
+    
+    // Payloads this big skip the copy into the write buffer
+    private static final int GATHER_THRESHOLD = 16 * 1024;
+    
+    private final File baseFile;
+    private final Format format;
+    private final Logger logger;
     private final BlockingQueue<PacketEntry> queue;
     private final Thread writerThread;
     private volatile boolean running = true;
+    private volatile String lastError;
+    
+    // Writer thread only
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private int segmentStart;
+    private FileChannel channel;
+    private File currentFile;
+    private int fileIndex;
+    private long fileBytes;
+    private long headerBytes;
+    private long fileOpenedAt;
+    
+    // PCAPNG interface id per player in the current file
+    private final Map<String, Integer> interfaces = new HashMap<>();
+    
+    // Wall clock at nanoTime precision. Anchored once, then it's
+    // nanoTime deltas - cheap, monotonic, and drifts from NTP by
+    // about as much as nobody cares about in a capture.
+    private final long clockNanos = System.currentTimeMillis() * 1_000_000L;
+    private final long clockBase = System.nanoTime();
+    
+    private volatile long rotateBytes = 0;
+    private volatile long rotateMillis = 0;
+    
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
     
     public PCAPExporter(File outputFile) throws IOException {
-        this.outputFile = outputFile;
-        this.output = new DataOutputStream(new FileOutputStream(outputFile));
-        this.queue = new LinkedBlockingQueue<>();
+        this(outputFile, Format.PCAP);
+    }
+    
+    public PCAPExporter(File outputFile, Format format) throws IOException {
+        this(outputFile, format, DEFAULT_QUEUE_CAPACITY);
+    }
+    
+    /**
+     * @param queueCapacity packets that can wait for the writer before new ones get dropped
+     */
+    public PCAPExporter(File outputFile, Format format, int queueCapacity) throws IOException {
+        this(outputFile, format, queueCapacity, Logger.getLogger(PCAPExporter.class.getName()));
+    }
+    
+    /**
+     * @param queueCapacity packets that can wait for the writer before new ones get dropped
+     * @param logger where the writer complains if it dies
+     */
+    public PCAPExporter(File outputFile, Format format, int queueCapacity, Logger logger) throws IOException {
+        this.baseFile = outputFile;
+        this.format = format;
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
         
-        // Write PCAP header
-        writePCAPHeader();
+        // Open the first file here so a bad path fails the caller, not the thread
+        openFile(outputFile);
         
         // Start writer thread
         this.writerThread = new Thread(this::writerLoop, "PCAP-Writer");
@@ -55,140 +173,495 @@ public class PCAPExporter {
     }
     
     /**
-     * Write PCAP global header.
-     * Magic numbers everywhere because that's how PCAP rolls.
+     * Rotate once a file reaches this many bytes. 0 = never.
      */
-    private void writePCAPHeader() throws IOException {
-        output.writeInt(PCAP_MAGIC);
-        output.writeShort(PCAP_VERSION_MAJOR);
-        output.writeShort(PCAP_VERSION_MINOR);
-        output.writeInt(0); // Timezone offset (GMT)
-        output.writeInt(0); // Timestamp accuracy
-        output.writeInt(PCAP_SNAPLEN); // Max packet length
-        output.writeInt(PCAP_NETWORK); // Network type
+    public void setRotateSize(long bytes) {
+        this.rotateBytes = Math.max(0, bytes);
+    }
+    
+    /**
+     * Rotate once a file is this old. 0 = never.
+     */
+    public void setRotateInterval(long interval, TimeUnit unit) {
+        this.rotateMillis = Math.max(0, unit.toMillis(interval));
     }
     
     /**
      * Add a packet to the export queue.
      * Non-blocking because we're not savages.
+     * 
+     * Serialized right here, so what gets written is the packet as
+     * it was now, not after some listener got its hands on it. Safe
+     * with pooled containers, nothing of theirs gets kept.
      */
     public void exportPacket(PacketContainer packet, boolean outgoing, String playerName) {
+        if (!running) {
+            dropped.increment();
+            return;
+        }
+        long timestamp = now();
+        
+        byte[] data;
+        boolean fieldData = false;
         try {
-            byte[] data = serializePacket(packet, outgoing, playerName);
-            queue.offer(new PacketEntry(System.currentTimeMillis(), data));
+            try {
+                data = packet.getRawBytes();
+            } catch (Exception e) {
+                data = serializeFields(packet);
+                fieldData = true;
+            }
         } catch (Exception e) {
-            // Serialization failed, oh well
+            failed.increment(); // Serialization failed, oh well
+            lastError = packet.getType() + ": " + e;
+            return;
         }
+        offer(new PacketEntry(timestamp, playerName, outgoing, packet.getType(), data, fieldData));
     }
     
     /**
-     * Serialize packet to bytes.
-     * This is where dreams go to die.
+     * Add an already encoded packet to the export queue.
+     * 
+     * The view dies when the caller returns, so this is the one
+     * copy we can't avoid - straight into an exactly sized array.
      */
-    private byte[] serializePacket(PacketContainer packet, boolean outgoing, String player) 
-            throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        
-        // Custom header for our packets
-        dos.writeUTF(player); // Player name
-        dos.writeBoolean(outgoing); // Direction
-        dos.writeUTF(packet.getType().name()); // Packet type
-        
-        // Write actual packet data
+    public void exportRaw(RawPacket packet, String playerName) {
+        offer(new PacketEntry(now(), playerName, packet.isOutgoing(),
+            packet.getType(), packet.toByteArray(), false));
+    }
+    
+    private long now() {
+        return clockNanos + (System.nanoTime() - clockBase);
+    }
+    
+    private void offer(PacketEntry entry) {
+        if (!running || !queue.offer(entry)) {
+            dropped.increment(); // Disk can't keep up, don't make the server wait for it
+        }
+    }
+    
+    /**
+     * Writer thread loop.
+     * Takes whatever's queued (up to a batch), writes it in one go.
+     * 
+     * Everything's bytes by the time it gets here. Anything that
+     * kills the loop stops the exporter for real: running
+     * goes false so callers start counting drops instead of filling
+     * a queue nobody reads, and the log says why.
+     */
+    private void writerLoop() {
+        List<PacketEntry> batch = new ArrayList<>(MAX_BATCH);
+        boolean clean = false;
         try {
-            byte[] rawData = packet.getRawBytes();
-            dos.writeInt(rawData.length);
-            dos.write(rawData);
+            while (running || !queue.isEmpty()) {
+                // Timed poll so time-based rotation happens even when it's quiet.
+                // Never interrupted - an interrupt would close the FileChannel.
+                PacketEntry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                checkRotation();
+            }
+            clean = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lastError = "writer interrupted";
         } catch (Exception e) {
-            // Fallback to field data
-            dos.writeInt(-1); // Indicate field data format
-            
-            // Write integer fields
-            var integers = packet.getIntegers().getValues();
-            dos.writeInt(integers.size());
-            for (int i : integers) {
-                dos.writeInt(i);
+            lastError = e.toString(); // RIP writing
+        } finally {
+            if (!clean) {
+                running = false;
+                int lost = queue.size(); // Plus whatever's left of the batch, too fiddly to count
+                dropped.add(lost);
+                queue.clear();
+                logger.log(Level.SEVERE, "PCAP writer for " + currentFile + " died, export stopped ("
+                    + lost + " more queued packets lost): " + lastError);
             }
-            
-            // Write string fields
-            var strings = packet.getStrings().getValues();
-            dos.writeInt(strings.size());
-            for (String s : strings) {
-                dos.writeUTF(s != null ? s : "");
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Whatever, we tried
             }
-            
-            // Write double fields
-            var doubles = packet.getDoubles().getValues();
-            dos.writeInt(doubles.size());
-            for (double d : doubles) {
-                dos.writeDouble(d);
+        }
+    }
+    
+    private void writeBatch(List<PacketEntry> batch) throws IOException {
+        for (PacketEntry entry : batch) {
+            if (format == Format.PCAPNG) {
+                writeEnhancedPacket(entry, entry.data, entry.fieldData);
+            } else {
+                writePacketRecord(entry, entry.data, entry.fieldData);
             }
+            written.increment();
+        }
+        drain();
+    }
+    
+    /**
+     * Fallback for packets that won't write themselves.
+     * This is where dreams go to die.
+     */
+    private byte[] serializeFields(PacketContainer packet) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        
+        dos.writeInt(-1); // Indicate field data format
+        
+        // Write integer fields
+        var integers = packet.getIntegers().getValues();
+        dos.writeInt(integers.size());
+        for (int i : integers) {
+            dos.writeInt(i);
+        }
+        
+        // Write string fields
+        var strings = packet.getStrings().getValues();
+        dos.writeInt(strings.size());
+        for (String s : strings) {
+            dos.writeUTF(s != null ? s : "");
+        }
+        
+        // Write double fields
+        var doubles = packet.getDoubles().getValues();
+        dos.writeInt(doubles.size());
+        for (double d : doubles) {
+            dos.writeDouble(d);
         }
         
         return baos.toByteArray();
     }
     
     /**
-     * Writer thread loop.
-     * Consumes packets and writes to file.
+     * Write a single packet record into the batch buffer.
+     * 
+     * Record payload, same layout as always: player (writeUTF),
+     * direction (boolean), type (writeUTF), then either a length
+     * and the raw bytes or -1 and the field dump.
      */
-    private void writerLoop() {
-        while (running) {
-            try {
-                PacketEntry entry = queue.take();
-                writePacketRecord(entry);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            } catch (IOException e) {
-                // RIP writing, stop the exporter
-                running = false;
-            }
+    private void writePacketRecord(PacketEntry entry, byte[] data, boolean fieldData) throws IOException {
+        byte[] player = entry.player.getBytes(StandardCharsets.UTF_8);
+        byte[] type = entry.type.name().getBytes(StandardCharsets.UTF_8);
+        
+        // Field dumps carry their own -1 marker instead of a length
+        int header = 2 + player.length + 1 + 2 + type.length + (fieldData ? 0 : 4);
+        int length = header + data.length;
+        
+        ensureSpace(16 + header);
+        
+        // Packet header
+        buffer.putInt((int) (entry.timestamp / 1_000_000_000L));
+        buffer.putInt((int) (entry.timestamp % 1_000_000_000L / 1000));
+        buffer.putInt(length); // Captured length
+        buffer.putInt(length); // Original length
+        
+        // Names and enum constants are ASCII, so UTF-8 == modified UTF-8 here
+        buffer.putShort((short) player.length).put(player);
+        buffer.put((byte) (entry.outgoing ? 1 : 0));
+        buffer.putShort((short) type.length).put(type);
+        if (!fieldData) {
+            buffer.putInt(data.length);
         }
+        
+        putPayload(data);
+        fileBytes += 16 + length;
     }
     
     /**
-     * Write a single packet record.
-     * PCAP packet format is weird but whatever.
+     * Write one Enhanced Packet Block, plus an Interface Description
+     * Block first if this player is new to the file.
+     * 
+     * EPB: type, length, interface, timestamp (high, low), captured
+     * length, original length, data padded to 4, options, length again.
      */
-    private void writePacketRecord(PacketEntry entry) throws IOException {
-        // Packet header
-        int seconds = (int)(entry.timestamp / 1000);
-        int microseconds = (int)((entry.timestamp % 1000) * 1000);
+    private void writeEnhancedPacket(PacketEntry entry, byte[] data, boolean fieldData) throws IOException {
+        Integer id = interfaces.get(entry.player);
+        if (id == null) {
+            id = interfaces.size();
+            interfaces.put(entry.player, id);
+            writeInterface(entry.player);
+        }
         
-        output.writeInt(seconds);
-        output.writeInt(microseconds);
-        output.writeInt(entry.data.length); // Captured length
-        output.writeInt(entry.data.length); // Original length
+        byte[] comment = (fieldData ? entry.type.name() + " (fields)" : entry.type.name())
+            .getBytes(StandardCharsets.UTF_8);
+        int options = 4 + 4 // Flags
+            + 4 + pad(comment.length) // Comment
+            + 4; // End
+        int total = 28 + pad(data.length) + options + 4;
         
-        // Packet data
-        output.write(entry.data);
-        output.flush();
+        ensureSpace(28);
+        buffer.putInt(BLOCK_EPB);
+        buffer.putInt(total);
+        buffer.putInt(id);
+        buffer.putInt((int) (entry.timestamp >>> 32));
+        buffer.putInt((int) entry.timestamp);
+        buffer.putInt(data.length); // Captured length
+        buffer.putInt(data.length); // Original length
+        
+        putPayload(data);
+        
+        ensureSpace(options + 4 + 3);
+        putPadding(data.length);
+        buffer.putShort(EPB_FLAGS).putShort((short) 4);
+        buffer.putInt(entry.outgoing ? FLAG_OUTBOUND : FLAG_INBOUND);
+        putOption(OPT_COMMENT, comment);
+        buffer.putShort(OPT_END).putShort((short) 0);
+        buffer.putInt(total);
+        fileBytes += total;
+    }
+    
+    /**
+     * One interface per player: link type, no snaplen, their name,
+     * and if_tsresol = 9 so timestamps are nanoseconds.
+     */
+    private void writeInterface(String player) throws IOException {
+        byte[] name = player.getBytes(StandardCharsets.UTF_8);
+        int total = 16 + 4 + pad(name.length) + 4 + 4 + 4 + 4;
+        
+        ensureSpace(total);
+        buffer.putInt(BLOCK_IDB);
+        buffer.putInt(total);
+        buffer.putShort((short) PCAP_NETWORK);
+        buffer.putShort((short) 0); // Reserved
+        buffer.putInt(0); // Snaplen, 0 = no limit
+        putOption(IF_NAME, name);
+        buffer.putShort(IF_TSRESOL).putShort((short) 1);
+        buffer.put((byte) 9).put((byte) 0).put((byte) 0).put((byte) 0);
+        buffer.putShort(OPT_END).putShort((short) 0);
+        buffer.putInt(total);
+        fileBytes += total;
+    }
+    
+    private void putOption(short code, byte[] value) {
+        buffer.putShort(code).putShort((short) value.length);
+        buffer.put(value);
+        putPadding(value.length);
+    }
+    
+    private void putPadding(int length) {
+        for (int i = length; i < pad(length); i++) {
+            buffer.put((byte) 0);
+        }
+    }
+    
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+    
+    private void putPayload(byte[] data) throws IOException {
+        if (data.length >= GATHER_THRESHOLD) {
+            // Big payload, gather it straight from the array
+            pending.add(buffer.duplicate().position(segmentStart).limit(buffer.position()));
+            pending.add(ByteBuffer.wrap(data));
+            segmentStart = buffer.position();
+        } else {
+            ensureSpace(data.length);
+            buffer.put(data);
+        }
+    }
+    
+    private void ensureSpace(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain();
+        }
+    }
+    
+    /**
+     * One gathering write for everything buffered so far.
+     */
+    private void drain() throws IOException {
+        if (buffer.position() > segmentStart) {
+            pending.add(buffer.duplicate().position(segmentStart).limit(buffer.position()));
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[0]);
+        long total = 0;
+        for (ByteBuffer b : buffers) {
+            total += b.remaining();
+        }
+        
+        long done = 0;
+        while (done < total) {
+            done += channel.write(buffers);
+        }
+        bytesWritten.add(total);
+        
+        pending.clear();
+        buffer.clear();
+        segmentStart = 0;
+    }
+    
+    private void checkRotation() throws IOException {
+        long bytes = rotateBytes;
+        long millis = rotateMillis;
+        boolean full = bytes > 0 && fileBytes >= bytes;
+        boolean old = millis > 0 && fileBytes > headerBytes // Don't rotate out empty files
+            && System.currentTimeMillis() - fileOpenedAt >= millis;
+        if (full || old) {
+            drain();
+            channel.close();
+            openFile(rotatedFile(++fileIndex));
+            rotations.increment();
+        }
+    }
+    
+    /**
+     * capture.pcap -> capture-3.pcap
+     */
+    private File rotatedFile(int index) {
+        String name = baseFile.getName();
+        int dot = name.lastIndexOf('.');
+        String rotated = dot > 0
+            ? name.substring(0, dot) + "-" + index + name.substring(dot)
+            : name + "-" + index;
+        return new File(baseFile.getAbsoluteFile().getParentFile(), rotated);
+    }
+    
+    private void openFile(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.currentFile = file;
+        this.fileOpenedAt = System.currentTimeMillis();
+        this.fileBytes = 0;
+        interfaces.clear(); // New section, players get new interfaces
+        
+        if (format == Format.PCAPNG) {
+            writeSectionHeader();
+        } else {
+            writePCAPHeader();
+        }
+        this.headerBytes = fileBytes;
+        drain();
+    }
+    
+    /**
+     * PCAPNG Section Header Block. Written big endian, the byte
+     * order magic tells readers which way round everything is.
+     */
+    private void writeSectionHeader() {
+        byte[] app = "CoreLib".getBytes(StandardCharsets.UTF_8);
+        int total = 24 + 4 + pad(app.length) + 4 + 4;
+        
+        buffer.putInt(BLOCK_SHB);
+        buffer.putInt(total);
+        buffer.putInt(BYTE_ORDER_MAGIC);
+        buffer.putShort((short) 1); // Major
+        buffer.putShort((short) 0); // Minor
+        buffer.putLong(-1); // Section length unknown
+        putOption(SHB_USERAPPL, app);
+        buffer.putShort(OPT_END).putShort((short) 0);
+        buffer.putInt(total);
+        fileBytes += total;
+    }
+    
+    /**
+     * Write PCAP global header.
+     * Magic numbers everywhere because that's how PCAP rolls.
+     */
+    private void writePCAPHeader() {
+        buffer.putInt(PCAP_MAGIC);
+        buffer.putShort(PCAP_VERSION_MAJOR);
+        buffer.putShort(PCAP_VERSION_MINOR);
+        buffer.putInt(0); // Timezone offset (GMT)
+        buffer.putInt(0); // Timestamp accuracy
+        buffer.putInt(PCAP_SNAPLEN); // Max packet length
+        buffer.putInt(PCAP_NETWORK); // Network type
+        fileBytes += 24;
+    }
+    
+    /**
+     * Packets written to disk.
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+    
+    /**
+     * Packets thrown away because the queue was full (or we're closing).
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+    
+    /**
+     * False once the exporter's closed, or the writer died.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * Why the last packet wouldn't serialize, or why the writer
+     * died. Null if nothing's gone wrong.
+     */
+    public String getLastError() {
+        return lastError;
+    }
+    
+    /**
+     * Packets that wouldn't serialize.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+    
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+    
+    public long getRotations() {
+        return rotations.sum();
+    }
+    
+    public int getQueueSize() {
+        return queue.size();
+    }
+    
+    /**
+     * File being written right now. Changes on rotation.
+     */
+    public File getCurrentFile() {
+        return currentFile;
     }
     
     /**
      * Stop exporting and close the file.
+     * Whatever's already queued still gets written.
      */
     public void close() {
         running = false;
-        writerThread.interrupt();
         
         try {
-            writerThread.join(1000);
-            output.close();
-        } catch (Exception e) {
-            // Whatever, we tried
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     
+    public Format getFormat() {
+        return format;
+    }
+    
     private static class PacketEntry {
-        final long timestamp;
+        final long timestamp; // Epoch nanos
+        final String player;
+        final boolean outgoing;
+        final PacketType type;
         final byte[] data;
+        final boolean fieldData; // Field dump instead of the encoded packet
         
-        PacketEntry(long timestamp, byte[] data) {
+        PacketEntry(long timestamp, String player, boolean outgoing,
+                    PacketType type, byte[] data, boolean fieldData) {
             this.timestamp = timestamp;
+            this.player = player;
+            this.outgoing = outgoing;
+            this.type = type;
             this.data = data;
+            this.fieldData = fieldData;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,638 @@
+package net.mrcappy.corelib.protocol.export;
+
+import net.mrcappy.corelib.protocol.listener.ListenerProfile;
+import net.mrcappy.corelib.protocol.listener.PacketListener;
+import net.mrcappy.corelib.protocol.listener.PacketListenerManager;
+import net.mrcappy.corelib.protocol.packet.PacketContainer;
+import net.mrcappy.corelib.protocol.packet.PacketType;
+import org.bukkit.entity.Player;
+
+import java.io.*;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a capture from PCAPExporter back through the listeners.
+ * 
+ * Point it at a .pcap or .pcapng we wrote, and every packet in
+ * it gets decoded back into a real NMS packet and run through
+ * every listener that wants it, sync and async, in order. Either
+ * flat out (how fast can the listeners go?) or at the recorded
+ * pace (what does last night's lag spike do to my new filter?).
+ * 
+ * Listeners get timed into their own profiles for the run, so
+ * the report is just the replay and /packet list is just the
+ * real traffic. Nothing gets sent anywhere - cancelling is
+ * counted, not acted on.
+ * 
+ * Listeners get a stand-in Player per recorded name: name and
+ * UUID work, everything else returns null/0/false. A replay
+ * has no business messaging or kicking whoever's online now.
+ * 
+ * What can't come back:
+ * - Field dumps (packets that wouldn't serialize at capture
+ *   time). There's not enough in there to rebuild the packet.
+ * - Types this version doesn't have, or bytes that won't decode
+ *   (capture from another Minecraft version, most likely).
+ * Both get counted and skipped.
+ * 
+ * One replayer, one run. Make a new one to go again.
+ */
+public class PCAPReplayer {
+    
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+    private static final int BLOCK_SHB = 0x0A0D0D0A;
+    private static final int BLOCK_IDB = 0x00000001;
+    private static final int BLOCK_EPB = 0x00000006;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int OPT_COMMENT = 1;
+    private static final int IF_NAME = 2;
+    private static final int IF_TSRESOL = 9;
+    private static final int EPB_FLAGS = 2;
+    private static final int FLAG_OUTBOUND = 2;
+    
+    // Nothing we write comes close, anything bigger is a corrupt file
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+    
+    private static final String FIELDS_SUFFIX = " (fields)";
+    
+    private final PacketListenerManager listenerManager;
+    private final File file;
+    private volatile double speed = 0;
+    private volatile boolean stopped;
+    
+    // Replay thread only
+    private final Map<String, Player> players = new HashMap<>();
+    private final Map<PacketListener, ListenerProfile> profiles = new IdentityHashMap<>();
+    private long read;
+    private long replayed;
+    private long cancelled;
+    private long fieldDumps;
+    private long unknownTypes;
+    private long undecodable;
+    private String lastError;
+    
+    public PCAPReplayer(PacketListenerManager listenerManager, File file) {
+        this.listenerManager = listenerManager;
+        this.file = file;
+    }
+    
+    /**
+     * How fast to go. 0 = as fast as the listeners can take it,
+     * 1 = the recorded pace, 2 = twice that, 0.5 = half and so on.
+     */
+    public PCAPReplayer setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("Speed can't be negative");
+        }
+        this.speed = speed;
+        return this;
+    }
+    
+    public double getSpeed() {
+        return speed;
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Run it on its own thread. Listeners normally run on Netty
+     * threads, not the main one, so neither does this.
+     */
+    public CompletableFuture<Report> start() {
+        CompletableFuture<Report> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                future.complete(run());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, "PCAP-Replay");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+    
+    /**
+     * Stop after the current packet. The report covers what ran.
+     */
+    public void stop() {
+        stopped = true;
+    }
+    
+    /**
+     * Replay the whole file on the calling thread.
+     */
+    public Report run() throws IOException {
+        boolean truncated = false;
+        long startNanos = System.nanoTime();
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            CaptureReader reader = open(in);
+            
+            long firstStamp = 0;
+            long paceStart = 0;
+            Record record;
+            while (!stopped && (record = reader.next()) != null) {
+                read++;
+                PacketContainer packet = decode(record);
+                if (packet == null) {
+                    continue;
+                }
+                
+                double speed = this.speed;
+                if (speed > 0) {
+                    if (replayed == 0) {
+                        firstStamp = record.timestamp;
+                        paceStart = System.nanoTime();
+                    }
+                    // Out of order stamps (two threads racing into the exporter) just go now
+                    long due = paceStart + (long) ((record.timestamp - firstStamp) / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0 && !stopped) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                
+                replayed++;
+                if (!listenerManager.handleReplay(player(record.player), packet, record.outgoing, profiles)) {
+                    cancelled++;
+                }
+            }
+        } catch (EOFException e) {
+            truncated = true; // Last record got cut off, probably still being written
+        }
+        
+        return new Report(this, System.nanoTime() - startNanos, truncated);
+    }
+    
+    /**
+     * Work out the format from the first four bytes.
+     */
+    private CaptureReader open(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        if (magic == PCAP_MAGIC) {
+            in.skipNBytes(20); // Rest of the global header, nothing we need
+            return () -> readPCAPRecord(in);
+        }
+        if (magic == BLOCK_SHB) {
+            PCAPNGReader reader = new PCAPNGReader(in);
+            reader.readSection();
+            return reader::next;
+        }
+        throw new IOException(file.getName() + " isn't a capture from PCAPExporter (magic " +
+            Integer.toHexString(magic) + ")");
+    }
+    
+    /**
+     * Classic PCAP record: 16 byte header, then player (UTF),
+     * direction, type (UTF), and a length or -1 for a field dump.
+     */
+    private Record readPCAPRecord(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null; // Clean end of file
+        }
+        long seconds = Integer.toUnsignedLong((first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort());
+        long micros = Integer.toUnsignedLong(in.readInt());
+        int captured = checkLength(in.readInt());
+        in.readInt(); // Original length, same thing
+        
+        byte[] body = new byte[captured];
+        in.readFully(body);
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+        
+        String player = record.readUTF();
+        boolean outgoing = record.readBoolean();
+        String type = record.readUTF();
+        int length = record.readInt();
+        if (length < 0) {
+            return new Record(seconds * 1_000_000_000L + micros * 1000, player, outgoing, type, null);
+        }
+        
+        byte[] data = new byte[length];
+        record.readFully(data);
+        return new Record(seconds * 1_000_000_000L + micros * 1000, player, outgoing, type, data);
+    }
+    
+    private int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_RECORD) {
+            throw new IOException("Corrupt record length " + length + " in " + file.getName());
+        }
+        return length;
+    }
+    
+    /**
+     * Decode a record into a packet, or count why not.
+     * 
+     * Outgoing captures come straight off the encoder, packet id
+     * in front. Incoming ones were serialized by us, no id. Try
+     * whichever the direction says first and the other one after,
+     * since exportPacket() can be called by anyone for anything.
+     */
+    private PacketContainer decode(Record record) {
+        if (record.data == null) {
+            fieldDumps++;
+            return null;
+        }
+        
+        PacketType type;
+        try {
+            type = PacketType.valueOf(record.type);
+        } catch (IllegalArgumentException e) {
+            unknownTypes++;
+            return null;
+        }
+        
+        byte[] data = record.data;
+        int idLength = varIntLength(data);
+        int first = record.outgoing && idLength > 0 ? idLength : 0;
+        int second = record.outgoing ? 0 : idLength;
+        
+        try {
+            return PacketContainer.fromRawBytes(type, data, first, data.length - first);
+        } catch (RuntimeException e) {
+            if (second != first && second >= 0) {
+                try {
+                    return PacketContainer.fromRawBytes(type, data, second, data.length - second);
+                } catch (RuntimeException ignored) {
+                    // Report the first one, it was the likelier guess
+                }
+            }
+            undecodable++;
+            lastError = type + ": " + rootCause(e);
+            return null;
+        }
+    }
+    
+    /**
+     * Bytes in the VarInt at the front, or -1 if there isn't one.
+     */
+    private static int varIntLength(byte[] data) {
+        for (int i = 0; i < Math.min(5, data.length); i++) {
+            if ((data[i] & 0x80) == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+    
+    private static String rootCause(Throwable t) {
+        while (t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t.getClass().getSimpleName() + (t.getMessage() != null ? ": " + t.getMessage() : "");
+    }
+    
+    private Player player(String name) {
+        return players.computeIfAbsent(name, PCAPReplayer::standIn);
+    }
+    
+    /**
+     * A Player that's just a name and a UUID derived from it.
+     */
+    private static Player standIn(String name) {
+        UUID id = UUID.nameUUIDFromBytes(("CoreLibReplay:" + name).getBytes(StandardCharsets.UTF_8));
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{Player.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getName":
+                    case "getDisplayName":
+                    case "getPlayerListName":
+                        return name;
+                    case "getUniqueId":
+                        return id;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return id.hashCode();
+                    case "toString":
+                        return "ReplayPlayer{" + name + "}";
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            });
+    }
+    
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) return false;
+        if (type == char.class) return '\0';
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == float.class) return 0f;
+        return 0d;
+    }
+    
+    private interface CaptureReader {
+        Record next() throws IOException;
+    }
+    
+    /**
+     * PCAPNG, as PCAPExporter writes it: big endian, one interface
+     * per player, type in the comment, direction in the flags.
+     * Blocks it doesn't know get skipped, like the spec says.
+     */
+    private final class PCAPNGReader {
+        private final DataInputStream in;
+        private final List<String> names = new ArrayList<>();
+        private final List<Long> resolutions = new ArrayList<>(); // Timestamp units per second
+        
+        PCAPNGReader(DataInputStream in) {
+            this.in = in;
+        }
+        
+        /**
+         * Rest of a Section Header Block, the type's already gone.
+         */
+        void readSection() throws IOException {
+            ByteBuffer body = readBody();
+            int order = body.getInt();
+            if (order != BYTE_ORDER_MAGIC) {
+                throw new IOException(file.getName() + " isn't big endian, not one of ours");
+            }
+            names.clear(); // Interface ids start over every section
+            resolutions.clear();
+        }
+        
+        Record next() throws IOException {
+            while (true) {
+                int first = in.read();
+                if (first < 0) {
+                    return null;
+                }
+                int type = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                
+                switch (type) {
+                    case BLOCK_SHB:
+                        readSection();
+                        break;
+                    case BLOCK_IDB:
+                        readInterface(readBody());
+                        break;
+                    case BLOCK_EPB:
+                        return readPacket(readBody());
+                    default:
+                        readBody(); // Not ours, skip it
+                        break;
+                }
+            }
+        }
+        
+        /**
+         * Block body between the two length fields.
+         */
+        private ByteBuffer readBody() throws IOException {
+            int total = checkLength(in.readInt());
+            if (total < 12 || (total & 3) != 0) {
+                throw new IOException("Corrupt block length " + total + " in " + file.getName());
+            }
+            byte[] body = new byte[total - 12];
+            in.readFully(body);
+            in.readInt(); // Trailing length
+            return ByteBuffer.wrap(body);
+        }
+        
+        private void readInterface(ByteBuffer body) {
+            body.position(8); // Link type, reserved, snaplen
+            String name = "interface-" + names.size();
+            long resolution = 1_000_000; // Spec default is microseconds
+            
+            while (body.remaining() >= 4) {
+                int code = body.getShort() & 0xFFFF;
+                int length = body.getShort() & 0xFFFF;
+                if (code == 0 || length > body.remaining()) {
+                    break;
+                }
+                byte[] value = new byte[length];
+                body.get(value);
+                body.position(Math.min(body.limit(), body.position() + pad(length) - length));
+                
+                if (code == IF_NAME) {
+                    name = new String(value, StandardCharsets.UTF_8);
+                } else if (code == IF_TSRESOL && length == 1) {
+                    // High bit set = power of two, otherwise power of ten
+                    int exponent = value[0] & 0x7F;
+                    resolution = (value[0] & 0x80) != 0 ? 1L << Math.min(exponent, 62) : pow10(exponent);
+                }
+            }
+            names.add(name);
+            resolutions.add(resolution);
+        }
+        
+        private Record readPacket(ByteBuffer body) throws IOException {
+            int id = body.getInt();
+            long stamp = (Integer.toUnsignedLong(body.getInt()) << 32) | Integer.toUnsignedLong(body.getInt());
+            int captured = body.getInt();
+            body.getInt(); // Original length
+            if (id < 0 || id >= names.size() || captured < 0 || pad(captured) > body.remaining()) {
+                throw new IOException("Corrupt packet block in " + file.getName());
+            }
+            
+            byte[] data = new byte[captured];
+            body.get(data);
+            body.position(body.position() + pad(captured) - captured);
+            
+            boolean outgoing = false;
+            String type = "";
+            while (body.remaining() >= 4) {
+                int code = body.getShort() & 0xFFFF;
+                int length = body.getShort() & 0xFFFF;
+                if (code == 0 || length > body.remaining()) {
+                    break;
+                }
+                int start = body.position();
+                if (code == EPB_FLAGS && length == 4) {
+                    outgoing = (body.getInt(start) & 3) == FLAG_OUTBOUND;
+                } else if (code == OPT_COMMENT) {
+                    type = new String(body.array(), start, length, StandardCharsets.UTF_8);
+                }
+                body.position(Math.min(body.limit(), start + pad(length)));
+            }
+            
+            boolean fields = type.endsWith(FIELDS_SUFFIX);
+            if (fields) {
+                type = type.substring(0, type.length() - FIELDS_SUFFIX.length());
+            }
+            return new Record(toNanos(stamp, resolutions.get(id)), names.get(id), outgoing, type, fields ? null : data);
+        }
+        
+        private long toNanos(long stamp, long resolution) {
+            if (resolution == 1_000_000_000L) {
+                return stamp;
+            }
+            return stamp / resolution * 1_000_000_000L + stamp % resolution * 1_000_000_000L / resolution;
+        }
+        
+        private long pow10(int exponent) {
+            long value = 1;
+            for (int i = 0; i < Math.min(exponent, 18); i++) {
+                value *= 10;
+            }
+            return value;
+        }
+    }
+    
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+    
+    /**
+     * One captured packet. Null data means a field dump.
+     */
+    private static final class Record {
+        final long timestamp; // Epoch nanos
+        final String player;
+        final boolean outgoing;
+        final String type;
+        final byte[] data;
+        
+        Record(long timestamp, String player, boolean outgoing, String type, byte[] data) {
+            this.timestamp = timestamp;
+            this.player = player;
+            this.outgoing = outgoing;
+            this.type = type;
+            this.data = data;
+        }
+    }
+    
+    /**
+     * How the run went: what got replayed, what didn't and why,
+     * and per-listener timings for just this run.
+     */
+    public static final class Report {
+        private final File file;
+        private final long read;
+        private final long replayed;
+        private final long cancelled;
+        private final long fieldDumps;
+        private final long unknownTypes;
+        private final long undecodable;
+        private final String lastError;
+        private final long elapsedNanos;
+        private final boolean truncated;
+        private final boolean stopped;
+        private final List<ListenerProfile> profiles;
+        
+        private Report(PCAPReplayer replayer, long elapsedNanos, boolean truncated) {
+            this.file = replayer.file;
+            this.read = replayer.read;
+            this.replayed = replayer.replayed;
+            this.cancelled = replayer.cancelled;
+            this.fieldDumps = replayer.fieldDumps;
+            this.unknownTypes = replayer.unknownTypes;
+            this.undecodable = replayer.undecodable;
+            this.lastError = replayer.lastError;
+            this.elapsedNanos = elapsedNanos;
+            this.truncated = truncated;
+            this.stopped = replayer.stopped;
+            
+            List<ListenerProfile> profiles = new ArrayList<>(replayer.profiles.values());
+            profiles.sort(Comparator.comparingLong(ListenerProfile::getTotalNanos).reversed());
+            this.profiles = Collections.unmodifiableList(profiles);
+        }
+        
+        public File getFile() {
+            return file;
+        }
+        
+        /**
+         * Records in the file (up to where it stopped).
+         */
+        public long getRead() {
+            return read;
+        }
+        
+        /**
+         * Packets that made it to the listeners.
+         */
+        public long getReplayed() {
+            return replayed;
+        }
+        
+        /**
+         * Packets some listener cancelled.
+         */
+        public long getCancelled() {
+            return cancelled;
+        }
+        
+        /**
+         * Skipped because they were captured as a field dump.
+         */
+        public long getFieldDumps() {
+            return fieldDumps;
+        }
+        
+        /**
+         * Skipped because this version has no such PacketType.
+         */
+        public long getUnknownTypes() {
+            return unknownTypes;
+        }
+        
+        /**
+         * Skipped because the bytes wouldn't decode.
+         */
+        public long getUndecodable() {
+            return undecodable;
+        }
+        
+        /**
+         * Why the last undecodable packet didn't decode, or null.
+         */
+        public String getLastError() {
+            return lastError;
+        }
+        
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+        
+        /**
+         * Did the file end mid-record?
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+        
+        /**
+         * Did someone call stop() before the end?
+         */
+        public boolean isStopped() {
+            return stopped;
+        }
+        
+        /**
+         * Replayed packets per second of wall time, decoding and pacing included.
+         */
+        public double getPacketsPerSecond() {
+            return elapsedNanos > 0 ? replayed * 1_000_000_000.0 / elapsedNanos : 0;
+        }
+        
+        /**
+         * Every listener that ran, most total time first.
+         */
+        public List<ListenerProfile> getProfiles() {
+            return profiles;
+        }
+        
+        /**
+         * Calls per second one listener could take if it had a thread to itself.
+         */
+        public static double getThroughput(ListenerProfile profile) {
+            long nanos = profile.getTotalNanos();
+            return nanos > 0 ? profile.getTotalCount() * 1_000_000_000.0 / nanos : 0;
+        }
+    }
+}
\ No newline at end of file
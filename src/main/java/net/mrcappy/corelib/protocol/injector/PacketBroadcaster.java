@@ -0,0 +1,430 @@
+package net.mrcappy.corelib.protocol.injector;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.MessageToByteEncoder;
+import net.mrcappy.corelib.protocol.ProtocolManager;
+import net.mrcappy.corelib.protocol.export.FlightRecorder;
+import net.mrcappy.corelib.protocol.packet.PacketContainer;
+import net.mrcappy.corelib.protocol.packet.PacketType;
+import net.mrcappy.corelib.protocol.packet.RawPacket;
+import net.mrcappy.corelib.protocol.reflect.StructureModifier;
+import org.bukkit.entity.Player;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+/**
+ * Sends one packet to a pile of players without encoding it a pile of times.
+ * 
+ * The naive way (loop, sendPacket, repeat) makes every channel run
+ * the packet through its own encoder and compressor. For a particle
+ * effect going to 200 players that's 200 identical encodes and 200
+ * identical zlib runs. Stupid.
+ * 
+ * What we do instead:
+ * 1. Encode the packet once, using the vanilla encoder from one of
+ *    the recipients' pipelines so the bytes are exactly right
+ * 2. Compress it once per compression setting (usually just once)
+ * 3. Write the same refcounted buffer into every channel right
+ *    after the compressor, so only length prefix + encryption run
+ *    per player
+ * 4. Group channels by event loop and do one task per loop that
+ *    writes and flushes all of its channels, instead of one task
+ *    per player
+ * 
+ * Anything that makes the bytes player-specific falls back to the
+ * boring per-player path: outgoing listeners on this packet type
+ * (they might modify it per player), ViaVersion rewriting packets
+ * per client version, or a pipeline we don't recognise.
+ */
+public class PacketBroadcaster {
+    
+    private static final String ENCODER = "encoder";
+    private static final String COMPRESSOR = "compress";
+    private static final String VIA_ENCODER = "via-encoder";
+    
+    // MessageToByteEncoder.encode is protected and abstract, so invoking
+    // it dispatches to whatever encoder the server actually uses
+    private static final Method ENCODE_METHOD = resolveEncode();
+    
+    
+    private final ProtocolManager manager;
+    
+    // Idle Deflaters, taken for one compress and handed back after.
+    // Not per thread - broadcasts come from the main thread, the async
+    // pool and virtual threads, and every one of those would get its
+    // own native zlib state. A handful covers the threads that actually
+    // compress at the same time, extras get ended on the way back.
+    private static final int MAX_IDLE_DEFLATERS = 4;
+    private final Deque<Deflater> deflaters = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleDeflaters = new AtomicInteger();
+    private volatile boolean shutdown;
+    
+    // Metrics
+    private final LongAdder batchedSends = new LongAdder();
+    private final LongAdder fallbackSends = new LongAdder();
+    private final LongAdder recipients = new LongAdder();
+    private final LongAdder encodedBytes = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    
+    public PacketBroadcaster(ProtocolManager manager) {
+        this.manager = manager;
+    }
+    
+    /**
+     * Send a packet to a bunch of players, sharing the encoded bytes if possible.
+     */
+    public void send(Collection<? extends Player> players, PacketContainer packet) {
+        if (players.size() < 2 || !tryBatched(players, packet)) {
+            fallbackSends.increment();
+            for (Player player : players) {
+                manager.sendPacket(player, packet);
+            }
+        }
+    }
+    
+    /**
+     * The actual batching. Returns false if we can't batch this one,
+     * in which case nothing has been sent yet.
+     */
+    private boolean tryBatched(Collection<? extends Player> players, PacketContainer packet) {
+        if (ENCODE_METHOD == null || manager.isIntercepting(packet.getType(), true)) {
+            return false; // Someone wants to see (or mess with) each send
+        }
+        
+        // Collect channels, bail on anything that isn't plain vanilla
+        List<PlayerInjector> targets = new ArrayList<>(players.size());
+        for (Player player : players) {
+            PlayerInjector injector = manager.getInjector(player);
+            if (injector == null) {
+                throw new IllegalStateException("Player not injected: " + player.getName());
+            }
+            
+            Channel channel = injector.getChannel();
+            if (channel == null || !channel.isOpen()) {
+                continue; // Left already, nothing to send
+            }
+            
+            ChannelPipeline pipeline = channel.pipeline();
+            if (pipeline.get(VIA_ENCODER) != null || pipeline.context(ENCODER) == null) {
+                return false; // Bytes differ per client, can't share them
+            }
+            targets.add(injector);
+        }
+        
+        if (targets.isEmpty()) {
+            return true; // Everyone's gone, job done
+        }
+        
+        ChannelHandlerContext encoderCtx = targets.get(0).getChannel().pipeline().context(ENCODER);
+        ByteBuf encoded = encode(encoderCtx, packet.getHandle());
+        if (encoded == null) {
+            return false;
+        }
+        
+        try {
+            int length = encoded.readableBytes();
+            recordShared(targets, packet, encoded);
+            ByteBuf raw = manager.isRawTapping() ? encoded : null;
+            
+            // Split by compression. On a normal server that's one group.
+            Map<Integer, List<PlayerInjector>> byThreshold = new HashMap<>();
+            for (PlayerInjector injector : targets) {
+                byThreshold.computeIfAbsent(compressionThreshold(injector), k -> new ArrayList<>())
+                    .add(injector);
+            }
+            
+            for (Map.Entry<Integer, List<PlayerInjector>> group : byThreshold.entrySet()) {
+                int threshold = group.getKey();
+                ByteBuf frame = threshold >= 0 ? compress(encoded, threshold) : encoded.retain();
+                try {
+                    writeShared(group.getValue(), frame, threshold >= 0, packet.getType(), raw);
+                } finally {
+                    frame.release();
+                }
+            }
+            
+            batchedSends.increment();
+            recipients.add(targets.size());
+            encodedBytes.add(length);
+            bytesSaved.add((long) length * (targets.size() - 1));
+            return true;
+        } finally {
+            encoded.release();
+        }
+    }
+    
+    /**
+     * Run the vanilla encoder on the calling thread.
+     * The encoder is stateless apart from channel attributes, so
+     * borrowing it off its event loop is fine. The compressor is
+     * NOT (it has its own Deflater), which is why we don't borrow that.
+     */
+    private ByteBuf encode(ChannelHandlerContext encoderCtx, Object handle) {
+        ByteBuf out = ByteBufAllocator.DEFAULT.ioBuffer();
+        try {
+            ENCODE_METHOD.invoke(encoderCtx.handler(), encoderCtx, handle, out);
+            return out;
+        } catch (Exception e) {
+            out.release();
+            manager.getPlugin().getLogger().log(Level.FINE,
+                "Shared encode failed, falling back to per-player sends", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Build a compressed frame the same way vanilla's compressor does:
+     * VarInt uncompressed size (0 = not compressed) followed by the data.
+     */
+    private ByteBuf compress(ByteBuf encoded, int threshold) {
+        int size = encoded.readableBytes();
+        ByteBuf frame = ByteBufAllocator.DEFAULT.ioBuffer(size + 5);
+        
+        if (size < threshold) {
+            writeVarInt(frame, 0);
+            frame.writeBytes(encoded, encoded.readerIndex(), size);
+            return frame;
+        }
+        
+        writeVarInt(frame, size);
+        
+        // Checked out while in use, so shutdown() never ends one mid-deflate
+        Deflater deflater = deflaters.poll();
+        if (deflater != null) {
+            idleDeflaters.decrementAndGet();
+        } else {
+            deflater = new Deflater();
+        }
+        try {
+            deflater.setInput(encoded.nioBuffer(encoded.readerIndex(), size));
+            deflater.finish();
+            
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                int written = deflater.deflate(chunk);
+                frame.writeBytes(chunk, 0, written);
+            }
+            return frame;
+        } finally {
+            returnDeflater(deflater);
+        }
+    }
+    
+    private void returnDeflater(Deflater deflater) {
+        if (shutdown) {
+            deflater.end();
+            return;
+        }
+        if (idleDeflaters.incrementAndGet() > MAX_IDLE_DEFLATERS) {
+            idleDeflaters.decrementAndGet();
+            deflater.end(); // Pool's full, not worth the native memory
+            return;
+        }
+        deflater.reset();
+        deflaters.push(deflater);
+        if (shutdown && deflaters.remove(deflater)) {
+            deflater.end(); // Raced shutdown(), clean up after it
+        }
+    }
+    
+    /**
+     * Write one frame into a group of channels.
+     * One task per event loop, one flush per channel.
+     * 
+     * The frame goes in past our interceptor, so it can't see it -
+     * the injector queues it behind anything the interceptor is
+     * holding for an async verdict instead, see writeShared there.
+     * 
+     * It skips the raw tap too, so raw listeners and PCAP get fed
+     * the encoded bytes (if raw isn't null) from the same task. Raw
+     * listeners are promised the event loop, this keeps it.
+     */
+    private void writeShared(List<PlayerInjector> targets, ByteBuf frame, boolean compressed,
+                             PacketType type, ByteBuf raw) {
+        Map<EventLoop, List<PlayerInjector>> byLoop = new IdentityHashMap<>();
+        for (PlayerInjector injector : targets) {
+            byLoop.computeIfAbsent(injector.getChannel().eventLoop(), k -> new ArrayList<>()).add(injector);
+        }
+        
+        for (Map.Entry<EventLoop, List<PlayerInjector>> loop : byLoop.entrySet()) {
+            List<PlayerInjector> injectors = loop.getValue();
+            
+            // Each write consumes one reference. Take them all now,
+            // before the frame can be released by the caller.
+            frame.retain(injectors.size());
+            if (raw != null) {
+                raw.retain();
+            }
+            try {
+                loop.getKey().execute(() -> {
+                    if (raw != null) {
+                        try {
+                            feedRawListeners(injectors, type, raw);
+                        } finally {
+                            raw.release();
+                        }
+                    }
+                    for (PlayerInjector injector : injectors) {
+                        ChannelHandlerContext ctx = entryContext(injector.getChannel().pipeline(), compressed);
+                        if (ctx == null) {
+                            frame.release(); // Pipeline changed under us, they'll live
+                            continue;
+                        }
+                        // Writing from this context skips the handler itself,
+                        // so the bytes go straight to prepender + encryption
+                        injector.writeShared(ctx, frame.duplicate(), type);
+                        ctx.flush();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                frame.release(injectors.size()); // Event loop's shutting down
+                if (raw != null) {
+                    raw.release();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Where a shared frame goes in. Compressed frames skip the
+     * compressor. Uncompressed ones skip our raw tap, which sits right
+     * after the encoder - writing from the encoder would run them
+     * through the tap and record them twice (feedRawListeners already
+     * did, with the right type). No tap installed, the encoder it is.
+     */
+    private static ChannelHandlerContext entryContext(ChannelPipeline pipeline, boolean compressed) {
+        if (compressed) {
+            return pipeline.context(COMPRESSOR);
+        }
+        ChannelHandlerContext tap = pipeline.context(PlayerInjector.RAW_HANDLER_NAME);
+        return tap != null ? tap : pipeline.context(ENCODER);
+    }
+    
+    /**
+     * Let the flight recorder see the shared bytes, since they skip
+     * the raw tap on the way out. It copies, so right here is fine.
+     */
+    private void recordShared(List<PlayerInjector> targets, PacketContainer packet, ByteBuf encoded) {
+        FlightRecorder recorder = manager.getFlightRecorder();
+        if (recorder != null) {
+            for (PlayerInjector injector : targets) {
+                recorder.record(injector.getPlayer().getUniqueId(), packet.getType(), true, encoded);
+            }
+        }
+    }
+    
+    /**
+     * Same for raw listeners and PCAP. Runs on the targets' event
+     * loop, right before their frames get written.
+     */
+    private void feedRawListeners(List<PlayerInjector> targets, PacketType type, ByteBuf encoded) {
+        RawPacket view = new RawPacket();
+        for (PlayerInjector injector : targets) {
+            view.wrap(
+                encoded.nioBuffer(encoded.readerIndex(), encoded.readableBytes()).asReadOnlyBuffer(),
+                type, true
+            );
+            try {
+                manager.handleRawOutgoing(injector.getPlayer(), view);
+            } catch (RuntimeException e) {
+                manager.getPlugin().getLogger().log(Level.SEVERE, "Error feeding a broadcast to raw listeners", e);
+            }
+        }
+        view.clear();
+    }
+    
+    /**
+     * Read the threshold out of a channel's compressor.
+     * -1 means no compression on this channel.
+     */
+    private static int compressionThreshold(PlayerInjector injector) {
+        ChannelHandler compressor = injector.getChannel().pipeline().get(COMPRESSOR);
+        if (compressor == null) {
+            return -1;
+        }
+        return new StructureModifier<>(compressor.getClass(), int.class, compressor).readInt(0);
+    }
+    
+    private static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+    
+    private static Method resolveEncode() {
+        try {
+            Method method = MessageToByteEncoder.class.getDeclaredMethod(
+                "encode", ChannelHandlerContext.class, Object.class, ByteBuf.class
+            );
+            method.setAccessible(true);
+            return method;
+        } catch (Exception e) {
+            return null; // Batching just won't happen
+        }
+    }
+    
+    /**
+     * Free the idle Deflaters. Native memory, the GC won't get to it
+     * any time soon. Broadcasts after this still work, they just
+     * don't keep their Deflater around.
+     */
+    public void shutdown() {
+        shutdown = true;
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+    
+    // Metrics
+    
+    /**
+     * Sends that shared one encoded buffer between players.
+     */
+    public long getBatchedSends() {
+        return batchedSends.sum();
+    }
+    
+    /**
+     * Sends that had to go player by player.
+     */
+    public long getFallbackSends() {
+        return fallbackSends.sum();
+    }
+    
+    /**
+     * Total players reached through batched sends.
+     */
+    public long getBatchedRecipients() {
+        return recipients.sum();
+    }
+    
+    /**
+     * Bytes actually encoded for batched sends.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.sum();
+    }
+    
+    /**
+     * Bytes we'd have encoded (and compressed) again without sharing.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+}
\ No newline at end of file
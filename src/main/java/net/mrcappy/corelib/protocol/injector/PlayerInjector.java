@@ -1,12 +1,31 @@
 package net.mrcappy.corelib.protocol.injector;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
 import net.mrcappy.corelib.protocol.ProtocolManager;
+import net.mrcappy.corelib.protocol.RateLimiter;
+import net.mrcappy.corelib.protocol.ViolationTracker;
+import net.mrcappy.corelib.protocol.export.FlightRecorder;
 import net.mrcappy.corelib.protocol.packet.PacketContainer;
+import net.mrcappy.corelib.protocol.packet.PacketContainerPool;
 import net.mrcappy.corelib.protocol.packet.PacketType;
+import net.mrcappy.corelib.protocol.packet.RawPacket;
 import net.mrcappy.corelib.version.ReflectionUtil;
 import org.bukkit.entity.Player;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 
 /**
  * Injects into a player's network channel to intercept packets.
@@ -20,38 +39,146 @@ import java.lang.reflect.Field;
  * 
  * Also, fuck checked exceptions. All my homies hate checked exceptions.
  * 
- * NOTE: This is a stub implementation since we can't use Netty
- * without adding it as a dependency. In a real implementation,
- * this would hook into the Netty pipeline.
+ * Netty is provided by the server at runtime, we only compile
+ * against it. The handler sits right before vanilla's
+ * "packet_handler" so we see decoded packets on the way in
+ * and unencoded packets on the way out.
+ * 
+ * The hot path is the important bit: 99% of packets (chunks,
+ * entity moves, etc) have nobody listening. Those get one class
+ * lookup and one bitset check, then pass through untouched.
+ * No PacketContainer, no reflection, no garbage.
+ * 
+ * There's a second, read-only handler right after the encoder
+ * (outbound order) that hands the encoded bytes to raw listeners
+ * and the PCAP exporter. Nobody has to serialize the packet a
+ * second time to see what went over the wire.
+ * 
+ * Flush consolidation (off by default, per player): packets sent
+ * through sendPacket() get written but not flushed, and the whole
+ * lot goes out in one flush at tick end - or earlier if enough
+ * bytes pile up. Spawning 50 fake blocks is then one syscall
+ * instead of 50.
+ * 
+ * Async listeners: a packet waiting on an async verdict is held
+ * in a per-direction FIFO, and everything behind it in the same
+ * direction waits too, even packets nobody listens to. Released
+ * strictly in arrival order, so async checks never reorder a
+ * connection.
+ * 
+ * Rate limited packets with a DELAY policy get parked here too,
+ * and replayed through the interceptor on the next tick.
+ * 
+ * For the flight recorder there's a third handler in front of
+ * the decoder. It copies the raw frame into the recorder before
+ * the decoder gets it (the decoder frees the frame before the
+ * packet comes out the other end), and the interceptor - which
+ * runs inside that same decode call - fills in the packet type.
  */
 public class PlayerInjector {
     
     private static final String HANDLER_NAME = "corelib_packet_handler";
+    static final String RAW_HANDLER_NAME = "corelib_raw_tap"; // The broadcaster writes past it
+    private static final String FRAME_HANDLER_NAME = "corelib_frame_tap";
+    private static final String VANILLA_HANDLER = "packet_handler";
+    private static final String VANILLA_ENCODER = "encoder";
+    private static final String VANILLA_DECODER = "decoder";
+    
+    // Roughly one TCP send buffer's worth. Past this, waiting
+    // for tick end doesn't buy us anything.
+    public static final int DEFAULT_FLUSH_THRESHOLD = 32 * 1024;
+    
+    // Consolidation stats across all players
+    private static final LongAdder coalescedWrites = new LongAdder();
+    private static final LongAdder tickFlushes = new LongAdder();
+    private static final LongAdder thresholdFlushes = new LongAdder();
     
     private final ProtocolManager manager;
     private final Player player;
-    private boolean injected = false;
+    private volatile Channel channel;
+    private volatile boolean injected = false;
+    
+    // Type of the packet currently going through the encoder.
+    // Only touched on the event loop, so no volatile needed.
+    private PacketType encodingType = PacketType.UNKNOWN;
+    private final RawPacket rawView = new RawPacket();
+    
+    // Flight recorder slot holding the frame currently going through
+    // the decoder. Same trick as encodingType, in the other direction.
+    private FlightRecorder decodingRecorder;
+    private long decodingSlot;
+    
+    // Flush consolidation
+    private volatile boolean flushConsolidation = false;
+    private volatile int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    
+    // Encoded bytes written since the last flush. Event loop only.
+    private int unflushedBytes;
+    
+    // Token buckets for incoming packets, one per PacketType ordinal.
+    // Dies with the injector, so there's nothing to clean up on quit.
+    private final long[] rateLimitState = RateLimiter.newState();
+    private final ViolationTracker.Record violationRecord;
+    
+    // Recycled containers for dispatch. Event loop only, dies with us.
+    private final PacketContainerPool containerPool = new PacketContainerPool();
+    
+    // Rate limited packets waiting for next tick. Event loop only.
+    private static final int MAX_DELAYED = 256;
+    private final ArrayDeque<Object> delayedIncoming = new ArrayDeque<>();
+    private final AtomicBoolean delayedPending = new AtomicBoolean();
+    private boolean replaying = false;
+    private PacketInterceptor interceptor;
+    private ChannelHandlerContext interceptorCtx;
     
     public PlayerInjector(ProtocolManager manager, Player player) {
         this.manager = manager;
         this.player = player;
+        this.violationRecord = ViolationTracker.newRecord(player);
     }
     
     /**
      * Inject into the player's network channel.
      * 
-     * STUB IMPLEMENTATION - Real version would use Netty
+     * CraftPlayer -> ServerPlayer -> ServerGamePacketListenerImpl
+     * -> Connection -> Channel. Fields are looked up by type
+     * because the names change whenever Mojang sneezes.
      */
     public void inject() throws Exception {
-        // In a real implementation, this would:
-        // 1. Get the CraftPlayer
-        // 2. Get the EntityPlayer (NMS)
-        // 3. Get the PlayerConnection
-        // 4. Get the NetworkManager
-        // 5. Get the Channel
-        // 6. Add our handler to the pipeline
-        
-        // For now, just mark as injected
+        if (injected) return;
+        
+        Channel channel = resolveChannel(player);
+        this.channel = channel;
+        
+        // Pipeline changes have to happen on the event loop,
+        // otherwise Netty gets cranky about concurrent modification
+        channel.eventLoop().submit(() -> {
+            ChannelPipeline pipeline = channel.pipeline();
+            if (pipeline.get(HANDLER_NAME) != null) {
+                return; // Already in there, probably a reload
+            }
+            
+            PacketInterceptor interceptor = new PacketInterceptor();
+            if (pipeline.get(VANILLA_HANDLER) != null) {
+                pipeline.addBefore(VANILLA_HANDLER, HANDLER_NAME, interceptor);
+            } else {
+                pipeline.addLast(HANDLER_NAME, interceptor);
+            }
+            
+            // Outbound runs tail -> head, so sitting before the encoder
+            // means we see its output before compression touches it
+            if (pipeline.get(VANILLA_ENCODER) != null) {
+                pipeline.addBefore(VANILLA_ENCODER, RAW_HANDLER_NAME, new RawTap());
+            }
+            
+            // Inbound runs head -> tail, so this sees the decompressed
+            // frame right before the decoder turns it into a packet
+            if (pipeline.get(VANILLA_DECODER) != null) {
+                pipeline.addBefore(VANILLA_DECODER, FRAME_HANDLER_NAME, new FrameTap());
+            }
+        }).syncUninterruptibly();
+        
         injected = true;
     }
     
@@ -61,11 +188,26 @@ public class PlayerInjector {
      */
     public void uninject() {
         if (!injected) return;
+        flushPending(); // Don't strand anything we held back
+        injected = false;
         
-        // In a real implementation, this would remove
-        // our handler from the Netty pipeline
+        Channel channel = this.channel;
+        if (channel == null || !channel.isOpen()) {
+            return; // Channel's already dead, nothing to clean up
+        }
         
-        injected = false;
+        channel.eventLoop().execute(() -> {
+            if (channel.pipeline().get(HANDLER_NAME) != null) {
+                channel.pipeline().remove(HANDLER_NAME);
+            }
+            if (channel.pipeline().get(RAW_HANDLER_NAME) != null) {
+                channel.pipeline().remove(RAW_HANDLER_NAME);
+            }
+            if (channel.pipeline().get(FRAME_HANDLER_NAME) != null) {
+                channel.pipeline().remove(FRAME_HANDLER_NAME);
+            }
+            containerPool.clear();
+        });
     }
     
     /**
@@ -83,18 +225,583 @@ public class PlayerInjector {
     }
     
     /**
-     * Get the channel (stub).
+     * Get the Netty channel.
+     * Null until inject() has been called.
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+    
+    /**
+     * This player's rate limit buckets. See RateLimiter.
+     */
+    public long[] getRateLimitState() {
+        return rateLimitState;
+    }
+    
+    public ViolationTracker.Record getViolationRecord() {
+        return violationRecord;
+    }
+    
+    /**
+     * This player's container pool. Only touch it on the event loop.
+     */
+    public PacketContainerPool getContainerPool() {
+        return containerPool;
+    }
+    
+    /**
+     * Park a rate limited incoming packet until next tick.
+     * Event loop only. Returns false if the queue is full and
+     * the packet should be dropped instead.
      */
-    public Object getChannel() {
-        return null; // Would return the Netty Channel
+    public boolean delayIncoming(Object handle) {
+        if (interceptorCtx == null || delayedIncoming.size() >= MAX_DELAYED) {
+            return false; // They're flooding, no free storage for them
+        }
+        delayedIncoming.add(handle);
+        delayedPending.set(true);
+        return true;
+    }
+    
+    /**
+     * Are we replaying delayed packets right now?
+     * Replayed packets already paid their rate limit dues in
+     * releaseDelayed, they don't get charged twice.
+     */
+    public boolean isReplaying() {
+        return replaying;
+    }
+    
+    /**
+     * Let delayed packets through, as many as the buckets allow.
+     * Called at tick end, hops onto the event loop to do it.
+     * 
+     * Every replayed packet takes a token like any other, so DELAY
+     * smooths a burst out instead of adding to the allowance. First
+     * one the buckets say no to stops the replay - the rest stay
+     * parked, in order, for the next tick.
+     */
+    public void releaseDelayed() {
+        if (!delayedPending.compareAndSet(true, false)) {
+            return;
+        }
+        
+        Channel channel = this.channel;
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
+        
+        channel.eventLoop().execute(() -> {
+            RateLimiter rateLimiter = manager.getRateLimiter();
+            // Snapshot the count - anything delayed during the replay waits for next tick
+            int count = delayedIncoming.size();
+            for (int i = 0; i < count; i++) {
+                Object msg = delayedIncoming.peek();
+                if (!rateLimiter.tryAcquire(rateLimitState, PacketType.fromClass(msg.getClass()))) {
+                    break; // Still over the limit, try again next tick
+                }
+                delayedIncoming.poll();
+                replaying = true;
+                try {
+                    interceptor.channelRead(interceptorCtx, msg);
+                } catch (Throwable t) {
+                    manager.getPlugin().getLogger().log(Level.SEVERE,
+                        "Error replaying delayed packet for " + player.getName(), t);
+                } finally {
+                    replaying = false;
+                }
+            }
+            if (!delayedIncoming.isEmpty()) {
+                delayedPending.set(true);
+            }
+        });
     }
     
     /**
      * Send a packet to this player.
-     * STUB - would inject into pipeline.
+     * 
+     * Goes through the whole pipeline from the tail, so our own
+     * handler (and every outgoing listener) sees it too.
+     * writeAndFlush is thread-safe, Netty hops onto the event
+     * loop for us if we're not already on it.
      */
     public void sendPacket(PacketContainer packet) {
-        // In a real implementation, this would
-        // write the packet to the Netty channel
+        Channel channel = this.channel;
+        if (channel == null || !channel.isOpen()) {
+            return; // Player's gone, nobody to send to
+        }
+        
+        if (flushConsolidation) {
+            // Flag first, then write. Both the flag and the write task
+            // are ordered before the tick-end flush, so nothing gets stuck.
+            flushPending.set(true);
+            channel.write(packet.getHandle());
+            coalescedWrites.increment();
+            return;
+        }
+        
+        channel.writeAndFlush(packet.getHandle());
+    }
+    
+    /**
+     * Write a broadcast's already encoded frame from ctx, which sits
+     * past our interceptor. Event loop only.
+     * 
+     * If the interceptor is holding outgoing packets for an async
+     * verdict, the frame waits its turn behind them like any other
+     * packet would - a broadcast doesn't get to overtake them.
+     */
+    void writeShared(ChannelHandlerContext ctx, ByteBuf frame, PacketType type) {
+        PacketInterceptor interceptor = this.interceptor;
+        if (interceptor == null || interceptor.heldOutgoing.isEmpty()) {
+            ctx.write(frame);
+            return;
+        }
+        interceptor.hold(interceptorCtx, interceptor.heldOutgoing,
+            new Held(new SharedFrame(ctx, frame), ctx.newPromise(), type, null), true);
+    }
+    
+    /**
+     * Flush whatever sendPacket() held back.
+     * ProtocolManager calls this at the end of every tick.
+     * Cheap no-op when nothing is pending.
+     */
+    public void flushPending() {
+        if (!flushPending.compareAndSet(true, false)) {
+            return;
+        }
+        
+        Channel channel = this.channel;
+        if (channel != null && channel.isOpen()) {
+            channel.flush(); // Queued behind the writes on the event loop
+            tickFlushes.increment();
+        }
+    }
+    
+    /**
+     * Turn flush consolidation on or off for this player.
+     * Turning it off flushes anything that's still pending.
+     */
+    public void setFlushConsolidation(boolean enabled) {
+        this.flushConsolidation = enabled;
+        if (!enabled) {
+            flushPending();
+        }
+    }
+    
+    public boolean isFlushConsolidation() {
+        return flushConsolidation;
+    }
+    
+    /**
+     * Flush early once this many encoded bytes are waiting.
+     */
+    public void setFlushThreshold(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Flush threshold must be positive");
+        }
+        this.flushThreshold = bytes;
+    }
+    
+    public int getFlushThreshold() {
+        return flushThreshold;
+    }
+    
+    /**
+     * Packets written without their own flush, across all players.
+     */
+    public static long getCoalescedWrites() {
+        return coalescedWrites.sum();
+    }
+    
+    /**
+     * Flushes actually issued for coalesced writes (tick end + threshold).
+     */
+    public static long getConsolidatedFlushes() {
+        return tickFlushes.sum() + thresholdFlushes.sum();
+    }
+    
+    /**
+     * Flushes triggered early by the byte threshold.
+     */
+    public static long getThresholdFlushes() {
+        return thresholdFlushes.sum();
+    }
+    
+    /**
+     * Flush syscalls we didn't make. Each flush is roughly one
+     * write()/writev() on the socket, so this is also syscalls saved.
+     */
+    public static long getFlushesSaved() {
+        return Math.max(0, getCoalescedWrites() - getConsolidatedFlushes());
+    }
+    
+    /**
+     * Walk the NMS object graph down to the Netty channel.
+     */
+    private static Channel resolveChannel(Player player) {
+        Method getHandle = ReflectionUtil.getMethod(player.getClass(), "getHandle");
+        Object serverPlayer = ReflectionUtil.invoke(getHandle, player);
+        
+        Class<?> listenerClass = ReflectionUtil.getNMSClass(
+            "server.network.ServerGamePacketListenerImpl"
+        );
+        Object listener = readFieldByType(serverPlayer, listenerClass);
+        
+        Class<?> connectionClass = ReflectionUtil.getNMSClass("network.Connection");
+        Object connection = readFieldByType(listener, connectionClass);
+        
+        Channel channel = readFieldByType(connection, Channel.class);
+        if (channel == null) {
+            throw new IllegalStateException(
+                "Player " + player.getName() + " has no network channel yet"
+            );
+        }
+        return channel;
+    }
+    
+    private static <T> T readFieldByType(Object instance, Class<?> type) {
+        if (instance == null) {
+            throw new IllegalStateException("Can't read " + type.getSimpleName() + " from null");
+        }
+        Field field = ReflectionUtil.getFieldByType(instance.getClass(), type);
+        return ReflectionUtil.getFieldValue(field, instance);
+    }
+    
+    /**
+     * The actual pipeline handler.
+     * 
+     * Runs on the channel's event loop. Every exception gets
+     * swallowed and the packet passed along untouched, because
+     * killing someone's connection over a broken listener is
+     * a shit user experience.
+     */
+    private final class PacketInterceptor extends ChannelDuplexHandler {
+        
+        // Packets waiting on (or stuck behind) an async verdict.
+        // Event loop only, like everything else in here.
+        private final ArrayDeque<Held> heldIncoming = new ArrayDeque<>();
+        private final ArrayDeque<Held> heldOutgoing = new ArrayDeque<>();
+        
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            interceptor = this;
+            interceptorCtx = ctx; // For replaying delayed packets
+        }
+        
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            // Shared frames are refcounted, don't strand them in the queue
+            for (Held held : heldOutgoing) {
+                if (held.msg instanceof SharedFrame shared) {
+                    shared.frame.release();
+                }
+            }
+            heldOutgoing.clear();
+        }
+        
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            PacketType type = PacketType.fromClass(msg.getClass());
+            
+            FlightRecorder recorder = decodingRecorder;
+            if (recorder != null) {
+                decodingRecorder = null; // One frame, one packet
+                recorder.commit(decodingSlot, type);
+            }
+            
+            // Fast path - nobody cares, don't touch it
+            if (!manager.isIntercepting(type, false)) {
+                if (heldIncoming.isEmpty()) {
+                    super.channelRead(ctx, msg);
+                } else {
+                    hold(ctx, heldIncoming, new Held(msg, null, type, null), false);
+                }
+                return;
+            }
+            
+            if (manager.hasAsyncListeners(type, false)) {
+                CompletableFuture<Boolean> verdict = null;
+                try {
+                    verdict = manager.handleIncomingAsync(PlayerInjector.this, type, msg);
+                } catch (Throwable t) {
+                    manager.getPlugin().getLogger().log(Level.SEVERE,
+                        "Error handling incoming " + type + " from " + player.getName(), t);
+                }
+                hold(ctx, heldIncoming, new Held(msg, null, type, verdict), false);
+                return;
+            }
+            
+            boolean allowed = true;
+            try {
+                allowed = manager.handleIncoming(PlayerInjector.this, type, msg);
+            } catch (Throwable t) {
+                manager.getPlugin().getLogger().log(Level.SEVERE,
+                    "Error handling incoming " + type + " from " + player.getName(), t);
+            }
+            
+            if (allowed) {
+                if (heldIncoming.isEmpty()) {
+                    super.channelRead(ctx, msg);
+                } else {
+                    hold(ctx, heldIncoming, new Held(msg, null, type, null), false);
+                }
+            }
+        }
+        
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            PacketType type = PacketType.fromClass(msg.getClass());
+            
+            if (!manager.isIntercepting(type, true)) {
+                if (heldOutgoing.isEmpty()) {
+                    forward(ctx, msg, promise, type);
+                } else {
+                    hold(ctx, heldOutgoing, new Held(msg, promise, type, null), true);
+                }
+                return;
+            }
+            
+            if (manager.hasAsyncListeners(type, true)) {
+                CompletableFuture<Boolean> verdict = null;
+                try {
+                    verdict = manager.handleOutgoingAsync(player, type, msg);
+                } catch (Throwable t) {
+                    manager.getPlugin().getLogger().log(Level.SEVERE,
+                        "Error handling outgoing " + type + " to " + player.getName(), t);
+                }
+                hold(ctx, heldOutgoing, new Held(msg, promise, type, verdict), true);
+                return;
+            }
+            
+            boolean allowed = true;
+            try {
+                allowed = manager.handleOutgoing(PlayerInjector.this, type, msg);
+            } catch (Throwable t) {
+                manager.getPlugin().getLogger().log(Level.SEVERE,
+                    "Error handling outgoing " + type + " to " + player.getName(), t);
+            }
+            
+            if (!allowed) {
+                // Cancelled - complete the promise so nobody waits forever
+                promise.trySuccess();
+            } else if (heldOutgoing.isEmpty()) {
+                forward(ctx, msg, promise, type);
+            } else {
+                hold(ctx, heldOutgoing, new Held(msg, promise, type, null), true);
+            }
+        }
+        
+        /**
+         * Queue a packet behind whatever is already held, then let out
+         * everything at the front that has its verdict.
+         */
+        private void hold(ChannelHandlerContext ctx, ArrayDeque<Held> queue, Held held, boolean outgoing) {
+            queue.add(held);
+            
+            CompletableFuture<Boolean> verdict = held.verdict;
+            if (verdict != null && !verdict.isDone()) {
+                // Verdict lands on some virtual thread, hop back onto the event loop
+                verdict.whenComplete((result, error) ->
+                    ctx.executor().execute(() -> release(ctx, queue, outgoing, true)));
+            }
+            
+            release(ctx, queue, outgoing, false);
+        }
+        
+        /**
+         * Pass on held packets from the front of the queue, in order,
+         * stopping at the first one that's still waiting.
+         * 
+         * Writes released from a verdict callback need their own flush,
+         * the flush that came with them went past long ago.
+         */
+        private void release(ChannelHandlerContext ctx, ArrayDeque<Held> queue, boolean outgoing, boolean flush) {
+            boolean wrote = false;
+            
+            Held held;
+            while ((held = queue.peek()) != null && (held.verdict == null || held.verdict.isDone())) {
+                queue.poll();
+                
+                if (!verdictOf(held)) {
+                    if (outgoing) {
+                        held.promise.trySuccess();
+                    }
+                    continue; // Cancelled
+                }
+                
+                try {
+                    if (held.msg instanceof SharedFrame shared) {
+                        shared.ctx.write(shared.frame, held.promise); // Encoded already, skip the encoder
+                        wrote = true;
+                    } else if (outgoing) {
+                        forward(ctx, held.msg, held.promise, held.type);
+                        wrote = true;
+                    } else {
+                        ctx.fireChannelRead(held.msg);
+                    }
+                } catch (Throwable t) {
+                    manager.getPlugin().getLogger().log(Level.SEVERE,
+                        "Error releasing held " + held.type + " for " + player.getName(), t);
+                }
+            }
+            
+            if (wrote && flush) {
+                ctx.flush();
+            }
+        }
+        
+        private boolean verdictOf(Held held) {
+            if (held.verdict == null) {
+                return true;
+            }
+            try {
+                return held.verdict.join();
+            } catch (Throwable t) {
+                // Async listener chain blew up, fail open like the sync path
+                manager.getPlugin().getLogger().log(Level.SEVERE,
+                    "Async verdict failed for " + held.type + " / " + player.getName(), t);
+                return true;
+            }
+        }
+        
+        /**
+         * Pass the packet on, remembering its type while the encoder
+         * runs. The encoder and the raw tap run synchronously inside
+         * this call, so the raw tap knows what it's looking at.
+         */
+        private void forward(ChannelHandlerContext ctx, Object msg, ChannelPromise promise,
+                             PacketType type) throws Exception {
+            encodingType = type;
+            try {
+                super.write(ctx, msg, promise);
+            } finally {
+                encodingType = PacketType.UNKNOWN;
+            }
+        }
+    }
+    
+    /**
+     * A broadcast frame waiting in heldOutgoing, and the context
+     * it has to be written from once it's its turn.
+     */
+    private static final class SharedFrame {
+        final ChannelHandlerContext ctx;
+        final ByteBuf frame;
+        
+        SharedFrame(ChannelHandlerContext ctx, ByteBuf frame) {
+            this.ctx = ctx;
+            this.frame = frame;
+        }
+    }
+    
+    /**
+     * A packet parked in a hold queue.
+     * Null verdict means it's already allowed, just waiting its turn.
+     */
+    private static final class Held {
+        final Object msg;
+        final ChannelPromise promise;
+        final PacketType type;
+        final CompletableFuture<Boolean> verdict;
+        
+        Held(Object msg, ChannelPromise promise, PacketType type, CompletableFuture<Boolean> verdict) {
+            this.msg = msg;
+            this.promise = promise;
+            this.type = type;
+            this.verdict = verdict;
+        }
+    }
+    
+    /**
+     * Read-only tap on the encoder's output.
+     * 
+     * The flight recorder copies straight out of the ByteBuf. For
+     * raw listeners and PCAP it wraps the ByteBuf's memory in a
+     * read-only ByteBuffer, only when one of them is actually on.
+     * Never modifies, never touches the refcount.
+     * 
+     * Also the one place that knows encoded sizes, so it does the
+     * byte counting for the flush threshold.
+     */
+    private final class RawTap extends ChannelOutboundHandlerAdapter {
+        
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf buf && buf.isReadable()) {
+                unflushedBytes += buf.readableBytes();
+                
+                FlightRecorder recorder = manager.getFlightRecorder();
+                if (recorder != null) {
+                    recorder.record(player.getUniqueId(), encodingType, true, buf);
+                }
+                
+                if (manager.isRawTapping()) {
+                    try {
+                        RawPacket view = rawView.wrap(
+                            buf.nioBuffer(buf.readerIndex(), buf.readableBytes()).asReadOnlyBuffer(),
+                            encodingType, true
+                        );
+                        manager.handleRawOutgoing(player, view);
+                    } catch (Throwable t) {
+                        manager.getPlugin().getLogger().log(Level.WARNING,
+                            "Error in raw packet tap for " + player.getName(), t);
+                    } finally {
+                        rawView.clear();
+                    }
+                }
+            }
+            
+            super.write(ctx, msg, promise);
+            
+            // Too much piled up, don't wait for tick end. The pending flag
+            // stays set - a write queued right now still needs the tick flush.
+            if (flushConsolidation && unflushedBytes >= flushThreshold && flushPending.get()) {
+                unflushedBytes = 0;
+                ctx.flush();
+                thresholdFlushes.increment();
+            }
+        }
+        
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            unflushedBytes = 0;
+            super.flush(ctx);
+        }
+    }
+    
+    /**
+     * Read-only tap on the decoder's input.
+     * 
+     * Copies the frame into a flight recorder slot right here,
+     * while it's still alive - the decoder releases it before the
+     * decoded packet comes out. It has bytes but no packet type, so
+     * the slot stays reserved until the interceptor commits it a few
+     * handlers later, still inside this call. Nothing decoded (bad
+     * frame, someone swallowed it) and it gets committed as UNKNOWN.
+     */
+    private final class FrameTap extends ChannelInboundHandlerAdapter {
+        
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            FlightRecorder recorder = manager.getFlightRecorder();
+            if (recorder != null && msg instanceof ByteBuf buf && buf.isReadable()) {
+                long slot = recorder.reserve(player.getUniqueId(), false, buf);
+                if (slot >= 0) {
+                    decodingSlot = slot;
+                    decodingRecorder = recorder;
+                }
+            }
+            try {
+                super.channelRead(ctx, msg);
+            } finally {
+                FlightRecorder pending = decodingRecorder;
+                if (pending != null) {
+                    decodingRecorder = null;
+                    pending.commit(decodingSlot, PacketType.UNKNOWN);
+                }
+            }
+        }
     }
 }
\ No newline at end of file
@@ -1,12 +1,17 @@
 package net.mrcappy.corelib.protocol.listener;
 
 import net.mrcappy.corelib.protocol.ProtocolManager;
+import net.mrcappy.corelib.protocol.ScriptEngine;
 import net.mrcappy.corelib.protocol.packet.PacketContainer;
 import net.mrcappy.corelib.protocol.packet.PacketType;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.*;
 
 /**
@@ -45,7 +50,7 @@ public class AnnotationProcessor {
             
             // Validate method signature
             Class<?>[] params = method.getParameterTypes();
-            if (params.length != 2 || params[0] != Player.class || 
+            if (params.length != 2 || params[0] != Player.class ||
                 params[1] != PacketContainer.class) {
                 plugin.getLogger().warning(
                     "Invalid @PacketHandler method signature: " + method.getName() +
@@ -64,9 +69,24 @@ public class AnnotationProcessor {
                 }
             }
             
+            // Compile the filter now, not per packet. Same source = same script.
+            String filterName = null;
+            if (!annotation.filter().isEmpty()) {
+                try {
+                    filterName = protocol.getScriptEngine().compileInline(annotation.filter());
+                } catch (ScriptEngine.ScriptException e) {
+                    plugin.getLogger().warning(
+                        "Invalid filter on @PacketHandler method " + method.getName() +
+                        ", not registering it: " + e.getMessage()
+                    );
+                    continue;
+                }
+            }
+            
             // Create listener
             PacketListener listener = new MethodPacketListener(
-                plugin, annotation, types, handler, method
+                plugin, annotation, types, handler, method,
+                protocol.getScriptEngine(), filterName
             );
             
             protocol.registerListener(listener);
@@ -93,25 +113,43 @@ public class AnnotationProcessor {
      * Internal listener that delegates to annotated methods.
      */
     private static class MethodPacketListener extends PacketListener {
-        private final Object handler;
+        // Every handler looks the same from here: (Player, PacketContainer) -> Object
+        private static final MethodType INVOKER_TYPE =
+            MethodType.methodType(Object.class, Player.class, PacketContainer.class);
+        
         private final Method method;
+        private final MethodHandle invoker;
         private final boolean sending;
         private final boolean receiving;
-        private final String filter;
+        private final ScriptEngine scriptEngine;
+        private final String filterName; // Null = no filter
         
         MethodPacketListener(Plugin plugin, PacketHandler annotation,
-                           Set<PacketType> types, Object handler, Method method) {
+                           Set<PacketType> types, Object handler, Method method,
+                           ScriptEngine scriptEngine, String filterName) {
             super(plugin, annotation.priority(), 
                   annotation.sending() ? types : Collections.emptySet(),
                   annotation.receiving() ? types : Collections.emptySet());
             
-            this.handler = handler;
             this.method = method;
             this.sending = annotation.sending();
             this.receiving = annotation.receiving();
-            this.filter = annotation.filter();
+            this.scriptEngine = scriptEngine;
+            this.filterName = filterName;
             
             method.setAccessible(true); // Fuck your access modifiers
+            
+            // Built once: bound to the handler, return boxed (void = null).
+            // invokeExact on this skips Method.invoke's checks and varargs array.
+            try {
+                MethodHandle target = MethodHandles.lookup().unreflect(method);
+                if (!Modifier.isStatic(method.getModifiers())) {
+                    target = target.bindTo(handler);
+                }
+                this.invoker = target.asType(INVOKER_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Can't get a handle on @PacketHandler method " + method.getName(), e);
+            }
         }
         
         @Override
@@ -128,24 +166,12 @@ public class AnnotationProcessor {
         
         private boolean invokeMethod(Player player, PacketContainer packet) {
             try {
-                // Apply JavaScript filter if specified
-                if (filter != null && !filter.isEmpty()) {
-                    // Execute filter inline
-                    var scriptEngine = net.mrcappy.corelib.CoreLibPlugin.getInstance()
-                        .getProtocolManager().getScriptEngine();
-                    
-                    // Create a temporary filter
-                    String tempName = "temp_" + System.nanoTime();
-                    scriptEngine.compileFilter(tempName, filter);
-                    boolean filterResult = scriptEngine.executeFilter(tempName, player, packet);
-                    scriptEngine.removeFilter(tempName);
-                    
-                    if (!filterResult) {
-                        return false; // Filter rejected the packet
-                    }
+                // Apply JavaScript filter if specified, compiled back at registration
+                if (filterName != null && !scriptEngine.executeFilter(filterName, player, packet)) {
+                    return false; // Filter rejected the packet
                 }
                 
-                Object result = method.invoke(handler, player, packet);
+                Object result = (Object) invoker.invokeExact(player, packet);
                 
                 // If method returns boolean, use it
                 if (result instanceof Boolean) {
@@ -153,11 +179,11 @@ public class AnnotationProcessor {
                 }
                 
                 return true; // Default to allow
-                
-            } catch (Exception e) {
+            
+            } catch (Throwable t) {
                 getPlugin().getLogger().severe(
                     "Error in @PacketHandler method " + method.getName() + ": " + 
-                    e.getMessage()
+                    t.getMessage()
                 );
                 return true;
             }
@@ -0,0 +1,130 @@
+package net.mrcappy.corelib.protocol.listener;
+
+import org.bukkit.entity.Player;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs async listeners off the Netty event loop.
+ * 
+ * Every player gets their own serial lane: tasks for one player
+ * run one after another in submit order, tasks for different
+ * players run in parallel. So an anti-cheat check can take 20ms
+ * without freezing the connection, and it still sees that
+ * player's packets in the order they actually arrived.
+ * 
+ * Runs on virtual threads. Blocking in an async listener is
+ * allowed (that's the whole point), it just parks a virtual
+ * thread instead of a carrier.
+ * 
+ * If a verdict takes longer than the timeout, the packet gets
+ * the fallback verdict and moves on. The listener keeps running
+ * in the background and its late answer is ignored - we can't
+ * un-send a packet. The lane still waits for it though, ordering
+ * beats liveness here.
+ */
+public class AsyncDispatcher {
+    
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<UUID, Lane> lanes = new ConcurrentHashMap<>();
+    
+    // Fail open by default. A stuck listener shouldn't eat everyone's packets.
+    private volatile long timeoutMillis = 50;
+    private volatile boolean timeoutVerdict = true;
+    
+    // Stats
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    
+    /**
+     * Queue a verdict computation on a player's lane.
+     * The returned future completes with the verdict, or with
+     * the fallback verdict if the timeout hits first.
+     */
+    public CompletableFuture<Boolean> submit(Player player, Supplier<Boolean> task) {
+        dispatched.increment();
+        CompletableFuture<Boolean> result = lanes
+            .computeIfAbsent(player.getUniqueId(), k -> new Lane())
+            .submit(task);
+        
+        // Time out a copy, not the lane itself, so the next task
+        // still waits for this one to actually finish
+        boolean fallback = timeoutVerdict;
+        return result.copy()
+            .completeOnTimeout(null, timeoutMillis, TimeUnit.MILLISECONDS)
+            .thenApply(verdict -> {
+                if (verdict == null) {
+                    timedOut.increment();
+                    return fallback;
+                }
+                return verdict;
+            });
+    }
+    
+    /**
+     * Forget a player's lane. Anything still queued runs, nobody waits for it.
+     */
+    public void removePlayer(UUID uuid) {
+        lanes.remove(uuid);
+    }
+    
+    /**
+     * How long a packet waits for async listeners before giving up.
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+    
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+    
+    /**
+     * What a timed out packet gets: true lets it through, false drops it.
+     */
+    public void setTimeoutVerdict(boolean allow) {
+        this.timeoutVerdict = allow;
+    }
+    
+    public boolean getTimeoutVerdict() {
+        return timeoutVerdict;
+    }
+    
+    public long getDispatchedCount() {
+        return dispatched.sum();
+    }
+    
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+    
+    public void shutdown() {
+        lanes.clear();
+        executor.shutdown();
+    }
+    
+    /**
+     * One player's serial queue.
+     * Each task chains onto the previous one, so they run in order
+     * even though the executor itself doesn't care about order.
+     */
+    private final class Lane {
+        private CompletableFuture<Boolean> tail = CompletableFuture.completedFuture(true);
+        
+        synchronized CompletableFuture<Boolean> submit(Supplier<Boolean> task) {
+            // handle, not thenApply - one exploding task shouldn't
+            // poison everything queued behind it
+            CompletableFuture<Boolean> next = tail.handleAsync((ignored, error) -> task.get(), executor);
+            tail = next;
+            return next;
+        }
+    }
+}
\ No newline at end of file
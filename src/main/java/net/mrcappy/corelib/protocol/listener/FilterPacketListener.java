@@ -0,0 +1,48 @@
+package net.mrcappy.corelib.protocol.listener;
+
+import net.mrcappy.corelib.protocol.PacketFilter;
+import net.mrcappy.corelib.protocol.packet.PacketContainer;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Blocks whatever matches a PacketFilter expression.
+ * 
+ * The cheap sibling of JavaScriptPacketListener. Note the
+ * flip: a JS filter returns true to allow, a filter expression
+ * describes what to block. "type == PLAY_CLIENT_CHAT && strings[0]
+ * contains "discord.gg"" reads like a rule, so it acts like one.
+ * 
+ * Only subscribes to the types the expression can match, so a
+ * chat rule never even gets called for movement packets.
+ */
+public class FilterPacketListener extends PacketListener {
+    
+    private final String filterName;
+    private final PacketFilter filter;
+    
+    public FilterPacketListener(Plugin plugin, String filterName, PacketFilter filter,
+                                ListenerPriority priority) {
+        super(plugin, priority, filter.getTypes(), filter.getTypes());
+        this.filterName = filterName;
+        this.filter = filter;
+    }
+    
+    @Override
+    public boolean onPacketSending(Player player, PacketContainer packet) {
+        return !filter.test(player, packet);
+    }
+    
+    @Override
+    public boolean onPacketReceiving(Player player, PacketContainer packet) {
+        return !filter.test(player, packet);
+    }
+    
+    public String getFilterName() {
+        return filterName;
+    }
+    
+    public PacketFilter getFilter() {
+        return filter;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+package net.mrcappy.corelib.protocol.listener;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tiny HdrHistogram knockoff for listener timings.
+ * 
+ * Log-linear buckets: every power of two is split into 8
+ * sub-buckets, so any recorded value lands in a bucket that's
+ * at most 12.5% wide. Good enough to tell 2µs from 200µs,
+ * which is the whole point.
+ * 
+ * Writers are Netty event loops hammering this from several
+ * threads at once, so the buckets are striped: each thread
+ * picks a stripe by id and only fights with the few threads
+ * that share it. Reads merge the stripes and are slow-ish,
+ * but reads come from a command, not the hot path.
+ */
+public final class LatencyHistogram {
+    
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    
+    // Anything past ~18 minutes gets clamped. If a listener takes
+    // that long you have bigger problems than histogram accuracy.
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+    
+    private static final int STRIPES = 4;
+    
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+    
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+    
+    /**
+     * Record one duration. Allocation-free.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0; // nanoTime went backwards, it happens
+        
+        int stripe = (int) (Thread.currentThread().threadId() & (STRIPES - 1));
+        stripes[stripe].incrementAndGet(bucketOf(Math.min(nanos, MAX_VALUE)));
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+    
+    public long getCount() {
+        return count.sum();
+    }
+    
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+    
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+    
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) totalNanos.sum() / n;
+    }
+    
+    /**
+     * Value at a percentile (0-100), as the upper edge of its bucket.
+     * Same rounding HdrHistogram does - never under-reports.
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] merged = merge();
+        long total = 0;
+        for (long bucket : merged) {
+            total += bucket;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        
+        long target = Math.max(1, (long) Math.ceil(total * (percentile / 100.0)));
+        long seen = 0;
+        for (int i = 0; i < merged.length; i++) {
+            seen += merged[i];
+            if (seen >= target) {
+                return Math.min(upperBound(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+    
+    /**
+     * Zero everything. Not atomic with concurrent writers,
+     * a few in-flight samples might survive. Nobody cares.
+     */
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+    
+    private long[] merge() {
+        long[] merged = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] += stripe.get(i);
+            }
+        }
+        return merged;
+    }
+    
+    /**
+     * Values below 8 get their own bucket, everything above
+     * is (power of two, top 3 bits below it).
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
\ No newline at end of file
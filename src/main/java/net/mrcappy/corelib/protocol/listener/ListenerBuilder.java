@@ -46,6 +46,7 @@ import java.util.function.Predicate;
     private Long expirationTime;
     private Integer maxPackets;
     private Runnable onExpire;
+    private boolean async;
     
     private ListenerBuilder(Plugin plugin) {
         this.plugin = plugin;
@@ -149,6 +150,15 @@ import java.util.function.Predicate;
         return this;
     }
     
+    /**
+     * Run off the Netty thread, packets held until you answer.
+     * Go nuts with slow checks, just not longer than the timeout.
+     */
+    public ListenerBuilder async() {
+        this.async = true;
+        return this;
+    }
+    
     /**
      * Build and register the listener.
      */
@@ -199,6 +209,7 @@ import java.util.function.Predicate;
             };
         }
         
+        listener.setAsync(async);
         protocol.registerListener(listener);
         return listener;
     }
@@ -0,0 +1,149 @@
+package net.mrcappy.corelib.protocol.listener;
+
+import net.mrcappy.corelib.protocol.packet.PacketType;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timing data for one listener, split by packet type and direction.
+ * 
+ * Histograms are created the first time a type actually gets
+ * dispatched to the listener, so a listener that subscribes to
+ * everything but only ever sees 5 types pays for 5 histograms.
+ * 
+ * Lives on the listener itself so the dispatch loop doesn't
+ * need a map lookup per call.
+ */
+public final class ListenerProfile {
+    
+    private static final PacketType[] TYPES = PacketType.values();
+    
+    private final PacketListener listener;
+    private final AtomicReferenceArray<LatencyHistogram> sending =
+        new AtomicReferenceArray<>(TYPES.length);
+    private final AtomicReferenceArray<LatencyHistogram> receiving =
+        new AtomicReferenceArray<>(TYPES.length);
+    
+    ListenerProfile(PacketListener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Record one call. Allocates only the first time a type shows up.
+     */
+    void record(int ordinal, boolean outgoing, long nanos) {
+        AtomicReferenceArray<LatencyHistogram> row = outgoing ? sending : receiving;
+        LatencyHistogram histogram = row.get(ordinal);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = row.compareAndExchange(ordinal, null, created);
+            if (histogram == null) {
+                histogram = created; // We won the race
+            }
+        }
+        histogram.record(nanos);
+    }
+    
+    public PacketListener getListener() {
+        return listener;
+    }
+    
+    /**
+     * Histogram for one type and direction, or null if it never ran for it.
+     */
+    public LatencyHistogram getHistogram(PacketType type, boolean outgoing) {
+        return (outgoing ? sending : receiving).get(type.ordinal());
+    }
+    
+    /**
+     * Every (type, direction) this listener has been timed for,
+     * most total time first.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < TYPES.length; i++) {
+            LatencyHistogram out = sending.get(i);
+            if (out != null) {
+                entries.add(new Entry(TYPES[i], true, out));
+            }
+            LatencyHistogram in = receiving.get(i);
+            if (in != null) {
+                entries.add(new Entry(TYPES[i], false, in));
+            }
+        }
+        entries.sort(Comparator.comparingLong((Entry e) -> e.getHistogram().getTotalNanos()).reversed());
+        return entries;
+    }
+    
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < TYPES.length; i++) {
+            total += count(sending.get(i)) + count(receiving.get(i));
+        }
+        return total;
+    }
+    
+    public long getTotalNanos() {
+        long total = 0;
+        for (int i = 0; i < TYPES.length; i++) {
+            total += nanos(sending.get(i)) + nanos(receiving.get(i));
+        }
+        return total;
+    }
+    
+    /**
+     * Worst p-th percentile across all of this listener's types.
+     */
+    public long getPercentileNanos(double percentile) {
+        long worst = 0;
+        for (Entry entry : getEntries()) {
+            worst = Math.max(worst, entry.getHistogram().getPercentileNanos(percentile));
+        }
+        return worst;
+    }
+    
+    private static long count(LatencyHistogram histogram) {
+        return histogram == null ? 0 : histogram.getCount();
+    }
+    
+    private static long nanos(LatencyHistogram histogram) {
+        return histogram == null ? 0 : histogram.getTotalNanos();
+    }
+    
+    public void reset() {
+        for (int i = 0; i < TYPES.length; i++) {
+            sending.set(i, null);
+            receiving.set(i, null);
+        }
+    }
+    
+    /**
+     * One row of a profile.
+     */
+    public static final class Entry {
+        private final PacketType type;
+        private final boolean outgoing;
+        private final LatencyHistogram histogram;
+        
+        Entry(PacketType type, boolean outgoing, LatencyHistogram histogram) {
+            this.type = type;
+            this.outgoing = outgoing;
+            this.histogram = histogram;
+        }
+        
+        public PacketType getType() {
+            return type;
+        }
+        
+        public boolean isOutgoing() {
+            return outgoing;
+        }
+        
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+}
\ No newline at end of file
@@ -74,6 +74,7 @@ public abstract class PacketAdapter extends PacketListener {
         private final Set<PacketType> receivingTypes = new HashSet<>();
         private PacketHandler sendingHandler = null;
         private PacketHandler receivingHandler = null;
+        private boolean async = false;
         
         Builder(Plugin plugin) {
             this.plugin = plugin;
@@ -104,8 +105,16 @@ public abstract class PacketAdapter extends PacketListener {
             return this;
         }
         
+        /**
+         * Run the handlers off the Netty thread. See PacketListener.setAsync.
+         */
+        public Builder async() {
+            this.async = true;
+            return this;
+        }
+        
         public PacketAdapter build() {
-            return new PacketAdapter(plugin, priority, sendingTypes, receivingTypes) {
+            PacketAdapter adapter = new PacketAdapter(plugin, priority, sendingTypes, receivingTypes) {
                 @Override
                 public boolean onPacketSending(org.bukkit.entity.Player player, 
                                               net.mrcappy.corelib.protocol.packet.PacketContainer packet) {
@@ -120,6 +129,8 @@ public abstract class PacketAdapter extends PacketListener {
                         receivingHandler.handle(player, packet) : true;
                 }
             };
+            adapter.setAsync(async);
+            return adapter;
         }
     }
     
@@ -25,6 +25,10 @@ public abstract class PacketListener implements HotReloadable {
     private final Set<PacketType> sendingTypes;
     private final Set<PacketType> receivingTypes;
     private boolean enabled = true;
+    private boolean async = false;
+    
+    // Timing data, filled in by PacketListenerManager
+    final ListenerProfile profile = new ListenerProfile(this);
     
     public PacketListener(Plugin plugin, ListenerPriority priority, 
                          Set<PacketType> sendingTypes, Set<PacketType> receivingTypes) {
@@ -93,6 +97,26 @@ public abstract class PacketListener implements HotReloadable {
         return priority;
     }
     
+    /**
+     * Run this listener off the Netty thread.
+     * 
+     * Async listeners run on virtual threads, one player at a time
+     * in packet order, after all the normal listeners are done with
+     * the packet. The packet is held back until you return, so
+     * blocking here only delays that one player's packets, not
+     * the whole event loop. Take too long and the dispatcher's
+     * timeout decides for you.
+     * 
+     * Set this BEFORE registering. It's read once at registration.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+    
+    public boolean isAsync() {
+        return async;
+    }
+    
     // HotReloadable implementation
     
     @Override
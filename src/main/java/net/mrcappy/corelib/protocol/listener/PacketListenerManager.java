@@ -6,6 +6,7 @@ import net.mrcappy.corelib.protocol.packet.PacketType;
 import org.bukkit.entity.Player;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -17,22 +18,41 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * 
  * It's thread-safe because packets come from Netty threads
  * and we don't want race conditions fucking up our day.
- * CopyOnWriteArrayList is slow as balls for writes but
- * we read way more than we write so it's fine.
+ * 
+ * The hot path reads a compiled dispatch table: one
+ * PacketListener[] per PacketType ordinal, already sorted by
+ * priority. The whole table is immutable and gets swapped in
+ * with a single volatile write, so readers never lock and
+ * never see a half-built state. Writers (register/unregister)
+ * are rare, so they copy-on-write only the rows they touch.
+ * 
+ * Async listeners live in their own rows. They run after the
+ * sync ones, on the AsyncDispatcher, while the injector holds
+ * the packet back.
+ * 
+ * Every listener call is timed (two nanoTime calls, one striped
+ * histogram bump) so a slow listener shows up in /packet list
+ * instead of just silently eating event loop time.
  */
 public class PacketListenerManager {
     
+    private static final PacketType[] TYPES = PacketType.values();
+    private static final PacketListener[] NONE = new PacketListener[0];
+    
     private final ProtocolManager manager;
     
     // Listeners sorted by priority
-    private final Map<ListenerPriority, List<PacketListener>> listenersByPriority = 
+    private final Map<ListenerPriority, List<PacketListener>> listenersByPriority =
         new ConcurrentHashMap<>();
     
-    // Quick lookup for packet types
-    private final Map<PacketType, List<PacketListener>> sendingListeners = 
-        new ConcurrentHashMap<>();
-    private final Map<PacketType, List<PacketListener>> receivingListeners = 
-        new ConcurrentHashMap<>();
+    // Compiled dispatch table, indexed by PacketType.ordinal()
+    private volatile DispatchTable table = DispatchTable.EMPTY;
+    
+    // Off-thread execution for async listeners
+    private final AsyncDispatcher asyncDispatcher = new AsyncDispatcher();
+    
+    // Per-listener timing, on unless someone's counting nanoseconds
+    private volatile boolean profiling = true;
     
     public PacketListenerManager(ProtocolManager manager) {
         this.manager = manager;
@@ -46,12 +66,34 @@ public class PacketListenerManager {
     /**
      * Register a packet listener.
      * 
-     * This rebuilds the entire lookup cache because I'm too
-     * lazy to implement incremental updates. Sue me.
+     * Only the rows for the packet types this listener cares
+     * about get copied. Everything else is shared with the
+     * previous table.
      */
-    public void register(PacketListener listener) {
+    public synchronized void register(PacketListener listener) {
         listenersByPriority.get(listener.getPriority()).add(listener);
-        rebuildCache();
+        
+        DispatchTable current = table;
+        PacketListener[][] sending = current.sending.clone();
+        PacketListener[][] receiving = current.receiving.clone();
+        PacketListener[][] asyncSending = current.asyncSending.clone();
+        PacketListener[][] asyncReceiving = current.asyncReceiving.clone();
+        
+        // Which rows it lands in is decided now, once
+        PacketListener[][] sendRows = listener.isAsync() ? asyncSending : sending;
+        PacketListener[][] receiveRows = listener.isAsync() ? asyncReceiving : receiving;
+        
+        for (PacketType type : TYPES) {
+            int ordinal = type.ordinal();
+            if (listener.isListeningForSending(type)) {
+                sendRows[ordinal] = insert(sendRows[ordinal], listener);
+            }
+            if (listener.isListeningForReceiving(type)) {
+                receiveRows[ordinal] = insert(receiveRows[ordinal], listener);
+            }
+        }
+        
+        table = new DispatchTable(sending, receiving, asyncSending, asyncReceiving);
     }
     
     /**
@@ -61,19 +103,34 @@ public class PacketListenerManager {
      * keep processing packets even after your plugin is
      * disabled. Don't be that plugin.
      */
-    public void unregister(PacketListener listener) {
-        listenersByPriority.get(listener.getPriority()).remove(listener);
-        rebuildCache();
+    public synchronized void unregister(PacketListener listener) {
+        if (!listenersByPriority.get(listener.getPriority()).remove(listener)) {
+            return; // Never registered, nothing to do
+        }
+        
+        DispatchTable current = table;
+        PacketListener[][] sending = current.sending.clone();
+        PacketListener[][] receiving = current.receiving.clone();
+        PacketListener[][] asyncSending = current.asyncSending.clone();
+        PacketListener[][] asyncReceiving = current.asyncReceiving.clone();
+        
+        for (int i = 0; i < TYPES.length; i++) {
+            sending[i] = remove(sending[i], listener);
+            receiving[i] = remove(receiving[i], listener);
+            asyncSending[i] = remove(asyncSending[i], listener);
+            asyncReceiving[i] = remove(asyncReceiving[i], listener);
+        }
+        
+        table = new DispatchTable(sending, receiving, asyncSending, asyncReceiving);
     }
     
     /**
      * Clear all listeners.
      * Nuclear option for shutdown.
      */
-    public void clear() {
+    public synchronized void clear() {
         listenersByPriority.values().forEach(List::clear);
-        sendingListeners.clear();
-        receivingListeners.clear();
+        table = DispatchTable.EMPTY;
     }
     
     /**
@@ -91,34 +148,126 @@ public class PacketListenerManager {
         return listenersByPriority.values().stream()
             .mapToInt(List::size)
             .sum();
-    }    
+    }
+    
     /**
-     * Rebuild the packet type lookup cache.
-     * 
-     * This is O(n*m) where n is listeners and m is packet types,
-     * but it only runs when listeners are registered/unregistered
-     * so who gives a fuck.
+     * Is anyone listening for this outgoing packet type?
+     * Lock-free and allocation-free, safe to hammer from Netty threads.
+     */
+    public boolean hasSendingListeners(PacketType type) {
+        DispatchTable table = this.table;
+        int ordinal = type.ordinal();
+        return table.sending[ordinal].length != 0 || table.asyncSending[ordinal].length != 0;
+    }
+    
+    /**
+     * Is anyone listening for this incoming packet type?
+     */
+    public boolean hasReceivingListeners(PacketType type) {
+        DispatchTable table = this.table;
+        int ordinal = type.ordinal();
+        return table.receiving[ordinal].length != 0 || table.asyncReceiving[ordinal].length != 0;
+    }
+    
+    /**
+     * Does this outgoing type need to be held for an async verdict?
+     */
+    public boolean hasAsyncSendingListeners(PacketType type) {
+        return table.asyncSending[type.ordinal()].length != 0;
+    }
+    
+    /**
+     * Does this incoming type need to be held for an async verdict?
+     */
+    public boolean hasAsyncReceivingListeners(PacketType type) {
+        return table.asyncReceiving[type.ordinal()].length != 0;
+    }
+    
+    public AsyncDispatcher getAsyncDispatcher() {
+        return asyncDispatcher;
+    }
+    
+    /**
+     * Turn listener timing on or off.
+     * Off saves two nanoTime calls per listener call. That's it.
+     */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+    
+    public boolean isProfiling() {
+        return profiling;
+    }
+    
+    /**
+     * Timing data for one listener.
+     */
+    public ListenerProfile getProfile(PacketListener listener) {
+        return listener.profile;
+    }
+    
+    /**
+     * Timing data for every registered listener, biggest time hog first.
+     * Go here when the event loop is slow and you want names.
+     */
+    public List<ListenerProfile> getProfiles() {
+        List<ListenerProfile> profiles = new ArrayList<>();
+        for (List<PacketListener> listeners : listenersByPriority.values()) {
+            for (PacketListener listener : listeners) {
+                profiles.add(listener.profile);
+            }
+        }
+        profiles.sort(Comparator.comparingLong(ListenerProfile::getTotalNanos).reversed());
+        return profiles;
+    }
+    
+    /**
+     * Start counting from zero again.
+     */
+    public void resetProfiles() {
+        for (List<PacketListener> listeners : listenersByPriority.values()) {
+            for (PacketListener listener : listeners) {
+                listener.profile.reset();
+            }
+        }
+    }
+    
+    /**
+     * Insert a listener into a row, after everything with the
+     * same or lower priority. Keeps registration order stable
+     * within a priority level, same as the old rebuild did.
      */
-    private void rebuildCache() {
-        sendingListeners.clear();
-        receivingListeners.clear();
+    private static PacketListener[] insert(PacketListener[] row, PacketListener listener) {
+        int value = listener.getPriority().getValue();
+        int index = row.length;
+        while (index > 0 && row[index - 1].getPriority().getValue() > value) {
+            index--;
+        }
         
-        // Go through all listeners by priority order
-        for (ListenerPriority priority : ListenerPriority.values()) {
-            for (PacketListener listener : listenersByPriority.get(priority)) {
-                // Add to sending cache
-                for (PacketType type : PacketType.values()) {
-                    if (listener.isListeningForSending(type)) {
-                        sendingListeners.computeIfAbsent(type, k -> new ArrayList<>())
-                            .add(listener);
-                    }
-                    if (listener.isListeningForReceiving(type)) {
-                        receivingListeners.computeIfAbsent(type, k -> new ArrayList<>())
-                            .add(listener);
-                    }
+        PacketListener[] result = new PacketListener[row.length + 1];
+        System.arraycopy(row, 0, result, 0, index);
+        result[index] = listener;
+        System.arraycopy(row, index, result, index + 1, row.length - index);
+        return result;
+    }
+    
+    /**
+     * Remove a listener from a row.
+     * Returns the same array if it wasn't in there.
+     */
+    private static PacketListener[] remove(PacketListener[] row, PacketListener listener) {
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] == listener) {
+                if (row.length == 1) {
+                    return NONE;
                 }
+                PacketListener[] result = new PacketListener[row.length - 1];
+                System.arraycopy(row, 0, result, 0, i);
+                System.arraycopy(row, i + 1, result, i, row.length - i - 1);
+                return result;
             }
         }
+        return row;
     }
     
     /**
@@ -130,25 +279,31 @@ public class PacketListenerManager {
      * @return true to allow packet, false to cancel
      */
     public boolean handleIncoming(Player player, PacketContainer packet) {
-        List<PacketListener> listeners = receivingListeners.get(packet.getType());
-        if (listeners == null || listeners.isEmpty()) {
-            return true; // No one cares about this packet
-        }
+        int ordinal = packet.getType().ordinal();
+        PacketListener[] listeners = table.receiving[ordinal];
+        boolean profiling = this.profiling;
         
         // Call listeners in order
-        for (PacketListener listener : listeners) {
+        for (int i = 0; i < listeners.length; i++) {
+            PacketListener listener = listeners[i];
+            boolean allowed = true;
+            long start = profiling ? System.nanoTime() : 0L;
             try {
-                if (!listener.onPacketReceiving(player, packet)) {
-                    return false; // Cancelled
-                }
+                allowed = listener.onPacketReceiving(player, packet);
             } catch (Exception e) {
                 // Listener fucked up, log and continue
                 manager.getPlugin().getLogger().severe(
-                    "Error in packet listener " + listener.getClass().getName() + 
+                    "Error in packet listener " + listener.getClass().getName() +
                     ": " + e.getMessage()
                 );
                 e.printStackTrace();
             }
+            if (profiling) {
+                listener.profile.record(ordinal, false, System.nanoTime() - start);
+            }
+            if (!allowed) {
+                return false; // Cancelled
+            }
         }
         
         return true;
@@ -162,27 +317,149 @@ public class PacketListenerManager {
      * @return true to allow packet, false to cancel
      */
     public boolean handleOutgoing(Player player, PacketContainer packet) {
-        List<PacketListener> listeners = sendingListeners.get(packet.getType());
-        if (listeners == null || listeners.isEmpty()) {
-            return true;
-        }
+        int ordinal = packet.getType().ordinal();
+        PacketListener[] listeners = table.sending[ordinal];
+        boolean profiling = this.profiling;
         
         // Call listeners in order
-        for (PacketListener listener : listeners) {
+        for (int i = 0; i < listeners.length; i++) {
+            PacketListener listener = listeners[i];
+            boolean allowed = true;
+            long start = profiling ? System.nanoTime() : 0L;
             try {
-                if (!listener.onPacketSending(player, packet)) {
-                    return false; // Cancelled
-                }
+                allowed = listener.onPacketSending(player, packet);
             } catch (Exception e) {
                 // Another one bites the dust
                 manager.getPlugin().getLogger().severe(
-                    "Error in packet listener " + listener.getClass().getName() + 
+                    "Error in packet listener " + listener.getClass().getName() +
                     ": " + e.getMessage()
                 );
                 e.printStackTrace();
             }
+            if (profiling) {
+                listener.profile.record(ordinal, true, System.nanoTime() - start);
+            }
+            if (!allowed) {
+                return false; // Cancelled
+            }
         }
         
         return true;
     }
+    
+    /**
+     * Run the async listeners for a packet on the player's lane.
+     * 
+     * The packet must not be pooled - it outlives the injector's
+     * call. Completes with false as soon as one listener cancels.
+     */
+    public CompletableFuture<Boolean> dispatchAsync(Player player, PacketContainer packet, boolean outgoing) {
+        DispatchTable table = this.table;
+        int ordinal = packet.getType().ordinal();
+        PacketListener[] listeners = outgoing ? table.asyncSending[ordinal] : table.asyncReceiving[ordinal];
+        
+        return asyncDispatcher.submit(player, () -> {
+            boolean profiling = this.profiling;
+            for (int i = 0; i < listeners.length; i++) {
+                PacketListener listener = listeners[i];
+                boolean allowed = true;
+                long start = profiling ? System.nanoTime() : 0L;
+                try {
+                    allowed = outgoing
+                        ? listener.onPacketSending(player, packet)
+                        : listener.onPacketReceiving(player, packet);
+                } catch (Exception e) {
+                    // Same deal as the sync path, log and keep going
+                    manager.getPlugin().getLogger().severe(
+                        "Error in async packet listener " + listener.getClass().getName() +
+                        ": " + e.getMessage()
+                    );
+                    e.printStackTrace();
+                }
+                if (profiling) {
+                    listener.profile.record(ordinal, outgoing, System.nanoTime() - start);
+                }
+                if (!allowed) {
+                    return false; // Cancelled
+                }
+            }
+            return true;
+        });
+    }
+    
+    /**
+     * Run a packet through every listener for it, sync then async,
+     * inline on the calling thread. For replays and load tests.
+     * 
+     * Timings go into the given profiles (one per listener, created
+     * as needed) instead of the live ones, so a replay doesn't get
+     * mixed up with real traffic in /packet list. The map isn't
+     * synchronized - one replay, one thread, one map.
+     * 
+     * @return true if nobody cancelled it
+     */
+    public boolean handleReplay(Player player, PacketContainer packet, boolean outgoing,
+                                Map<PacketListener, ListenerProfile> profiles) {
+        DispatchTable table = this.table;
+        int ordinal = packet.getType().ordinal();
+        
+        if (!replay(player, packet, outgoing, profiles, outgoing ? table.sending[ordinal] : table.receiving[ordinal])) {
+            return false;
+        }
+        return replay(player, packet, outgoing, profiles, outgoing ? table.asyncSending[ordinal] : table.asyncReceiving[ordinal]);
+    }
+    
+    private boolean replay(Player player, PacketContainer packet, boolean outgoing,
+                           Map<PacketListener, ListenerProfile> profiles, PacketListener[] listeners) {
+        int ordinal = packet.getType().ordinal();
+        for (int i = 0; i < listeners.length; i++) {
+            PacketListener listener = listeners[i];
+            boolean allowed = true;
+            long start = System.nanoTime();
+            try {
+                allowed = outgoing
+                    ? listener.onPacketSending(player, packet)
+                    : listener.onPacketReceiving(player, packet);
+            } catch (Exception e) {
+                // Replays hit weird data, keep the log to one line
+                manager.getPlugin().getLogger().warning(
+                    "Error in packet listener " + listener.getClass().getName() +
+                    " during replay: " + e
+                );
+            }
+            long elapsed = System.nanoTime() - start;
+            profiles.computeIfAbsent(listener, ListenerProfile::new).record(ordinal, outgoing, elapsed);
+            if (!allowed) {
+                return false; // Cancelled
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Immutable snapshot of who listens to what.
+     * Never modified after construction - writers build a new one.
+     */
+    private static final class DispatchTable {
+        static final DispatchTable EMPTY = new DispatchTable(emptyRows(), emptyRows(), emptyRows(), emptyRows());
+        
+        final PacketListener[][] sending;
+        final PacketListener[][] receiving;
+        final PacketListener[][] asyncSending;
+        final PacketListener[][] asyncReceiving;
+        
+        DispatchTable(PacketListener[][] sending, PacketListener[][] receiving,
+                      PacketListener[][] asyncSending, PacketListener[][] asyncReceiving) {
+            this.sending = sending;
+            this.receiving = receiving;
+            this.asyncSending = asyncSending;
+            this.asyncReceiving = asyncReceiving;
+        }
+        
+        private static PacketListener[][] emptyRows() {
+            PacketListener[][] rows = new PacketListener[TYPES.length][];
+            Arrays.fill(rows, NONE);
+            return rows;
+        }
+    }
 }
\ No newline at end of file
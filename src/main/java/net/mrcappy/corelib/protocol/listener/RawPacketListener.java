@@ -0,0 +1,21 @@
+package net.mrcappy.corelib.protocol.listener;
+
+import net.mrcappy.corelib.protocol.packet.RawPacket;
+import org.bukkit.entity.Player;
+
+/**
+ * Observer for encoded outgoing packets.
+ * 
+ * Gets called at the encoder stage with the bytes that are
+ * about to hit the wire. Read-only - you can't cancel or
+ * modify anything here, use a normal PacketListener for that.
+ * 
+ * Runs on the player's Netty event loop - broadcasts too, they
+ * hop over there before feeding you - and the RawPacket is only
+ * valid until you return. Copy what you need, don't block.
+ */
+@FunctionalInterface
+public interface RawPacketListener {
+    
+    void onRawPacket(Player player, RawPacket packet);
+}
\ No newline at end of file
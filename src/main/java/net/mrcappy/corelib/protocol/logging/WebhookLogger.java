@@ -4,14 +4,20 @@ import com.google.gson.Gson;
 import net.mrcappy.corelib.protocol.packet.PacketContainer;
 import org.bukkit.entity.Player;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Webhook logger for packet events.
@@ -25,83 +31,299 @@ import java.util.concurrent.Executors;
  * 
  * Uses async HTTP because blocking the packet thread for
  * network I/O is how you turn your server into PowerPoint.
+ * 
+ * One request per packet was a great way to get rate limited
+ * by Discord in about four seconds, so events get batched: up
+ * to batchSize of them, or whatever showed up within flushMillis
+ * of the first one, POSTed as one JSON array over a single
+ * keep-alive HttpClient.
+ * 
+ * The packet gets read on the caller's thread, right when it's
+ * logged - by the time the sender gets to it the packet's been
+ * sent, mutated or recycled. The queue is bounded: if the webhook
+ * can't keep up, new events get dropped and counted instead of
+ * piling up until the heap gives out. A failed batch is retried
+ * with exponential backoff (or whatever Retry-After says), and
+ * while it waits the queue fills up and starts dropping. That's
+ * the back-pressure.
  */
 public class WebhookLogger {
     
-    private final String webhookUrl;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
-        Thread t = new Thread(r, "Webhook-Logger");
-        t.setDaemon(true);
-        return t;
-    });
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final long DEFAULT_FLUSH_MILLIS = 2000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+    
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    private static final int MAX_ATTEMPTS = 5;
+    
+    // Longest the sender waits on the queue before checking for shutdown
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    
+    private final URI webhookUri;
+    private final int batchSize;
+    private final long flushMillis;
+    private final BlockingQueue<Map<String, Object>> queue;
+    private final HttpClient client = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(5))
+        .build();
     private final Gson gson = new Gson();
+    private final Thread senderThread;
+    private volatile boolean running = true;
+    
+    // Sender thread only
+    private long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder retries = new LongAdder();
     
     public WebhookLogger(String webhookUrl) {
-        this.webhookUrl = webhookUrl;
+        this(webhookUrl, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_MILLIS, DEFAULT_QUEUE_CAPACITY);
+    }
+    
+    /**
+     * @param batchSize most events per request
+     * @param flushMillis longest an event waits for its batch to fill up
+     * @param queueCapacity events that can wait for the sender before new ones get dropped
+     */
+    public WebhookLogger(String webhookUrl, int batchSize, long flushMillis, int queueCapacity) {
+        if (batchSize < 1 || flushMillis < 0 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Batch size and queue capacity must be positive");
+        }
+        this.webhookUri = URI.create(webhookUrl);
+        this.batchSize = batchSize;
+        this.flushMillis = flushMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        
+        this.senderThread = new Thread(this::senderLoop, "Webhook-Logger");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
     }
     
     /**
      * Log a packet event to webhook.
      * Fire and forget because we don't care if it fails.
+     * 
+     * Reads the packet right here, on the caller's thread. The
+     * packet can be pooled, it's not needed after this returns.
      */
     public void logPacket(Player player, PacketContainer packet, boolean outgoing) {
-        executor.submit(() -> {
-            try {
-                Map<String, Object> payload = new HashMap<>();
-                payload.put("player", player.getName());
-                payload.put("uuid", player.getUniqueId().toString());
-                payload.put("packet_type", packet.getType().name());
-                payload.put("direction", outgoing ? "OUTGOING" : "INCOMING");
-                payload.put("timestamp", System.currentTimeMillis());
+        if (!running) {
+            dropped.increment();
+            return;
+        }
+        
+        Map<String, Object> payload;
+        try {
+            payload = new HashMap<>();
+            payload.put("player", player.getName());
+            payload.put("uuid", player.getUniqueId().toString());
+            payload.put("packet_type", packet.getType().name());
+            payload.put("direction", outgoing ? "OUTGOING" : "INCOMING");
+            payload.put("timestamp", System.currentTimeMillis());
+            
+            // Add some packet data. getValues() copies, so this is a snapshot.
+            Map<String, Object> packetData = new HashMap<>();
+            if (packet.getIntegers().size() > 0) {
+                packetData.put("integers", packet.getIntegers().getValues());
+            }
+            if (packet.getStrings().size() > 0) {
+                packetData.put("strings", packet.getStrings().getValues());
+            }
+            payload.put("data", packetData);
+        } catch (Exception e) {
+            failed.increment(); // Packet wouldn't read, oh well
+            return;
+        }
+        log(payload);
+    }
+    
+    /**
+     * Queue an event that's already been read. logPacket ends up
+     * here, tests go straight to it.
+     */
+    void log(Map<String, Object> event) {
+        if (!running || !queue.offer(event)) {
+            dropped.increment(); // Webhook can't keep up, don't make the server wait for it
+        }
+    }
+    
+    /**
+     * Sender thread loop.
+     * Waits for one event, then gives the batch flushMillis to fill up.
+     */
+    private void senderLoop() {
+        List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                Map<String, Object> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
                 
-                // Add some packet data
-                Map<String, Object> packetData = new HashMap<>();
-                if (packet.getIntegers().size() > 0) {
-                    packetData.put("integers", packet.getIntegers().getValues());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushMillis);
+                while (batch.size() < batchSize && running) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    // Short polls, so shutdown() doesn't wait out the whole flush window
+                    Map<String, Object> next = queue.poll(Math.min(wait, POLL_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                        queue.drainTo(batch, batchSize - batch.size());
+                    }
                 }
-                if (packet.getStrings().size() > 0) {
-                    packetData.put("strings", packet.getStrings().getValues());
+                if (!running) {
+                    queue.drainTo(batch, batchSize - batch.size()); // Shutting down, no waiting around
                 }
-                payload.put("data", packetData);
                 
-                sendWebhook(payload);
-            } catch (Exception e) {
-                // Webhook failed, oh no! Anyway...
+                deliver(batch);
+                batch.clear();
             }
-        });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
     
     /**
-     * Actually send the HTTP request.
-     * This is why we use async - HTTP is slow as balls.
+     * Send one batch, backing off and retrying on failure.
+     * On shutdown it gets one try, nobody wants to wait a minute to stop.
      */
-    private void sendWebhook(Map<String, Object> payload) throws Exception {
-        URL url = new URL(webhookUrl);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("User-Agent", "CoreLib-PacketLogger/1.0");
-        conn.setDoOutput(true);
-        conn.setConnectTimeout(5000);
-        conn.setReadTimeout(5000);
+    private void deliver(List<Map<String, Object>> batch) throws InterruptedException {
+        String json = gson.toJson(batch);
         
-        String json = gson.toJson(payload);
+        for (int attempt = 1; ; attempt++) {
+            long retryAfter = send(json);
+            if (retryAfter == 0) {
+                sent.add(batch.size());
+                batches.increment();
+                backoffMillis = INITIAL_BACKOFF_MILLIS;
+                return;
+            }
+            if (retryAfter < 0 || attempt >= MAX_ATTEMPTS || !running) {
+                failed.add(batch.size());
+                return;
+            }
+            
+            retries.increment();
+            long wait = Math.max(retryAfter, backoffMillis);
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            sleep(wait);
+        }
+    }
+    
+    /**
+     * Actually send the HTTP request.
+     * 
+     * @return 0 on success, -1 if retrying won't help, otherwise
+     *         how long the server wants us to wait (1 if it didn't say)
+     */
+    private long send(String json) throws InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(webhookUri)
+            .timeout(Duration.ofSeconds(10))
+            .header("Content-Type", "application/json")
+            .header("User-Agent", "CoreLib-PacketLogger/1.0")
+            .POST(HttpRequest.BodyPublishers.ofString(json))
+            .build();
         
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(json.getBytes(StandardCharsets.UTF_8));
+        HttpResponse<Void> response;
+        try {
+            // We don't care about the body
+            response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        } catch (IOException e) {
+            return 1; // Connection trouble, try again later
         }
         
-        // We don't care about the response
-        conn.getResponseCode();
-        conn.disconnect();
+        int status = response.statusCode();
+        if (status < 300) {
+            return 0;
+        }
+        if (status == 429 || status >= 500) {
+            return response.headers().firstValue("Retry-After")
+                .map(WebhookLogger::parseRetryAfter)
+                .orElse(1L);
+        }
+        return -1; // 4xx, the payload or the URL is wrong and will stay wrong
+    }
+    
+    /**
+     * Retry-After in seconds. Discord sends fractions, HTTP dates we don't bother with.
+     */
+    private static long parseRetryAfter(String value) {
+        try {
+            return Math.max(1, Math.min((long) (Double.parseDouble(value) * 1000), MAX_BACKOFF_MILLIS));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+    
+    /**
+     * Sleep, but wake up early if we're shutting down.
+     */
+    private void sleep(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (running) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return;
+            }
+            Thread.sleep(Math.min(left, 100));
+        }
+    }
+    
+    /**
+     * Events delivered.
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+    
+    /**
+     * Events thrown away because the queue was full (or we're closing).
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+    
+    /**
+     * Events that wouldn't read, or whose batch ran out of retries.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+    
+    /**
+     * Requests that went through.
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+    
+    public long getRetries() {
+        return retries.sum();
+    }
+    
+    public int getQueueSize() {
+        return queue.size();
     }
     
     /**
      * Shutdown the webhook logger.
-     * Waits for pending webhooks because we're polite.
+     * Whatever's queued gets one shot at going out, then we're gone.
      */
     public void shutdown() {
-        executor.shutdown();
+        running = false;
+        
+        try {
+            senderThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
\ No newline at end of file
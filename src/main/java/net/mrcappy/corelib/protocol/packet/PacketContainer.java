@@ -1,7 +1,10 @@
 package net.mrcappy.corelib.protocol.packet;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import net.mrcappy.corelib.protocol.reflect.FieldAccessor;
 import net.mrcappy.corelib.protocol.reflect.StructureModifier;
+import net.mrcappy.corelib.protocol.reflect.StructureTemplate;
 import net.mrcappy.corelib.version.ReflectionUtil;
 
 import java.lang.reflect.Constructor;
@@ -18,14 +21,27 @@ import java.util.UUID;
  * The StructureModifier system is inspired by ProtocolLib
  * but built from scratch. It's slower than direct field
  * access but way more convenient and version-independent.
+ * 
+ * All the field layouts live in a StructureTemplate shared by
+ * every packet of the same class, so creating a container is
+ * just two lookups and one object. Nothing gets scanned here.
  */
 public class PacketContainer {
     
-    private final Object handle; // The actual NMS packet
-    private final PacketType type;
+    // Not final because pooled containers get reset and reused.
+    // See PacketContainerPool before you touch any of this.
+    private Object handle; // The actual NMS packet
+    private PacketType type;
+    private StructureTemplate template; // Shared per packet class
     private final boolean cancelled;
     
-    // Structure modifiers for different field types
+    // Pooling state, only ever touched by the owning thread
+    boolean pooled;
+    boolean retained;
+    
+    // Structure modifiers for different field types.
+    // Built lazily from the template, so wrapping costs nothing
+    // until someone actually reads a field.
     private StructureModifier<Byte> bytes;
     private StructureModifier<Short> shorts;
     private StructureModifier<Integer> integers;
@@ -40,19 +56,75 @@ public class PacketContainer {
     private StructureModifier<Object> modifier;
     
     public PacketContainer(Object handle) {
-        this.handle = handle;
-        this.type = PacketType.fromPacket(handle);
-        this.cancelled = false;
-        
-        // Initialize base modifier
-        this.modifier = new StructureModifier<>(handle.getClass(), Object.class);
+        this(PacketType.fromPacket(handle), handle);
     }
     
     public PacketContainer(PacketType type, Object handle) {
         this.handle = handle;
         this.type = type;
+        this.template = StructureTemplate.forClass(handle.getClass());
         this.cancelled = false;
-        this.modifier = new StructureModifier<>(handle.getClass(), Object.class);
+    }
+    
+    /**
+     * Point a pooled container at a new packet.
+     * Drops the cached modifiers since they're bound to the old handle.
+     */
+    void reset(PacketType type, Object handle) {
+        this.handle = handle;
+        this.type = type;
+        this.template = handle != null ? StructureTemplate.forClass(handle.getClass()) : null;
+        this.retained = false;
+        
+        bytes = null;
+        shorts = null;
+        integers = null;
+        longs = null;
+        floats = null;
+        doubles = null;
+        strings = null;
+        booleans = null;
+        uuids = null;
+        byteArrays = null;
+        intArrays = null;
+        modifier = null;
+    }
+    
+    /**
+     * Keep this container alive past the listener callback.
+     * 
+     * If the injector is running with container pooling, the
+     * container you get in onPacketReceiving/Sending goes back
+     * into the pool the moment dispatch finishes. Stash it in
+     * a field without calling this and you'll be reading some
+     * random other packet later. Have fun debugging that.
+     * 
+     * No-op for containers that aren't pooled.
+     */
+    public PacketContainer retain() {
+        retained = true;
+        return this;
+    }
+    
+    /**
+     * Get a standalone container for the same packet.
+     * 
+     * Unlike retain(), this leaves the pooled container alone
+     * and gives you a fresh one you can keep as long as you want.
+     * Returns this if the container isn't pooled in the first place.
+     */
+    public PacketContainer detach() {
+        if (!pooled || retained) {
+            return this;
+        }
+        return new PacketContainer(type, handle);
+    }
+    
+    /**
+     * Is this container owned by a pool?
+     */
+    public boolean isPooled() {
+        return pooled && !retained;
     }
     
     /**
@@ -75,7 +147,7 @@ public class PacketContainer {
                 "Failed to create packet of type: " + type, e
             );
         }
-    }    
+    }
     /**
      * Get the packet class path for a type.
      * This is version-specific bullshit.
@@ -109,6 +181,13 @@ public class PacketContainer {
         return type;
     }
     
+    /**
+     * Get the shared structure template for this packet's class.
+     */
+    public StructureTemplate getTemplate() {
+        return template;
+    }
+    
     /**
      * Clone this packet.
      * Creates a deep copy using serialization.
@@ -120,9 +199,7 @@ public class PacketContainer {
             
             // Copy all fields
             StructureModifier<Object> source = getModifier();
-            StructureModifier<Object> target = new StructureModifier<>(
-                cloned.getClass(), Object.class
-            );
+            StructureModifier<Object> target = template.modifier(Object.class, cloned);
             
             for (int i = 0; i < source.size(); i++) {
                 target.write(i, source.read(i));
@@ -138,76 +215,76 @@ public class PacketContainer {
     
     public StructureModifier<Byte> getBytes() {
         if (bytes == null) {
-            bytes = modifier.withType(byte.class);
+            bytes = template.modifier(byte.class, handle);
         }
         return bytes;
     }
     
     public StructureModifier<Short> getShorts() {
         if (shorts == null) {
-            shorts = modifier.withType(short.class);
+            shorts = template.modifier(short.class, handle);
         }
         return shorts;
-    }    
+    }
     public StructureModifier<Integer> getIntegers() {
         if (integers == null) {
-            integers = modifier.withType(int.class);
+            integers = template.modifier(int.class, handle);
         }
         return integers;
     }
     
     public StructureModifier<Long> getLongs() {
         if (longs == null) {
-            longs = modifier.withType(long.class);
+            longs = template.modifier(long.class, handle);
         }
         return longs;
     }
     
     public StructureModifier<Float> getFloats() {
         if (floats == null) {
-            floats = modifier.withType(float.class);
+            floats = template.modifier(float.class, handle);
         }
         return floats;
     }
     
     public StructureModifier<Double> getDoubles() {
         if (doubles == null) {
-            doubles = modifier.withType(double.class);
+            doubles = template.modifier(double.class, handle);
         }
         return doubles;
     }
     
     public StructureModifier<String> getStrings() {
         if (strings == null) {
-            strings = modifier.withType(String.class);
+            strings = template.modifier(String.class, handle);
         }
         return strings;
     }
     
     public StructureModifier<Boolean> getBooleans() {
         if (booleans == null) {
-            booleans = modifier.withType(boolean.class);
+            booleans = template.modifier(boolean.class, handle);
         }
         return booleans;
     }
     
     public StructureModifier<UUID> getUUIDs() {
         if (uuids == null) {
-            uuids = modifier.withType(UUID.class);
+            uuids = template.modifier(UUID.class, handle);
         }
         return uuids;
     }
     
     public StructureModifier<byte[]> getByteArrays() {
         if (byteArrays == null) {
-            byteArrays = modifier.withType(byte[].class);
+            byteArrays = template.modifier(byte[].class, handle);
         }
         return byteArrays;
     }
     
     public StructureModifier<int[]> getIntArrays() {
         if (intArrays == null) {
-            intArrays = modifier.withType(int[].class);
+            intArrays = template.modifier(int[].class, handle);
         }
         return intArrays;
     }
@@ -216,15 +293,17 @@ public class PacketContainer {
      * Get the base modifier for custom types.
      */
     public StructureModifier<Object> getModifier() {
+        if (modifier == null) {
+            modifier = template.modifier(Object.class, handle);
+        }
         return modifier;
     }
     
     /**
      * Get a specific modifier for a type.
      */
-    @SuppressWarnings("unchecked")
     public <T> StructureModifier<T> getSpecificModifier(Class<T> type) {
-        return (StructureModifier<T>) modifier.withType(type);
+        return template.modifier(type, handle);
     }
     
     // Convenience methods for common operations
@@ -248,7 +327,7 @@ public class PacketContainer {
      * Works for both legacy string and component chat.
      */
     public String getMessage() {
-        if (type == PacketType.PLAY_CLIENT_CHAT || 
+        if (type == PacketType.PLAY_CLIENT_CHAT ||
             type == PacketType.PLAY_SERVER_CHAT) {
             return getStrings().read(0);
         }
@@ -261,7 +340,7 @@ public class PacketContainer {
      * Set chat message.
      */
     public void setMessage(String message) {
-        if (type == PacketType.PLAY_CLIENT_CHAT || 
+        if (type == PacketType.PLAY_CLIENT_CHAT ||
             type == PacketType.PLAY_SERVER_CHAT) {
             getStrings().write(0, message);
         } else {
@@ -291,40 +370,72 @@ public class PacketContainer {
     /**
      * Get raw bytes for low-level manipulation.
      * Here be dragons.
+     * 
+     * This serializes the packet all over again, so don't call
+     * it on a hot path. If you just want to see what went over
+     * the wire, register a RawPacketListener - it gets the
+     * encoder's output for free.
      */
     public byte[] getRawBytes() {
+        ByteBuf byteBuf = Unpooled.buffer();
         try {
-            // Get the packet serializer
-            Class<?> packetDataSerializerClass = ReflectionUtil.getNMSClass("network.FriendlyByteBuf");
-            Class<?> unpooledClass = ReflectionUtil.getClass("io.netty.buffer.Unpooled");
-            
-            // Create a new buffer
-            Method buffer = ReflectionUtil.getMethod(unpooledClass, "buffer");
-            Object byteBuf = ReflectionUtil.invoke(buffer, null);
-            
-            // Create packet data serializer
-            Constructor<?> serializerConstructor = ReflectionUtil.getConstructor(
-                packetDataSerializerClass, byteBuf.getClass()
-            );
-            Object serializer = ReflectionUtil.newInstance(serializerConstructor, byteBuf);
-            
-            // Write packet to buffer
-            Method writeMethod = ReflectionUtil.getMethod(
-                handle.getClass(), "write", packetDataSerializerClass
-            );
-            ReflectionUtil.invoke(writeMethod, handle, serializer);
-            
-            // Read bytes from buffer
-            Method readableBytes = ReflectionUtil.getMethod(byteBuf.getClass(), "readableBytes");
-            int length = ReflectionUtil.invoke(readableBytes, byteBuf);
-            
-            byte[] data = new byte[length];
-            Method readBytes = ReflectionUtil.getMethod(byteBuf.getClass(), "readBytes", byte[].class);
-            ReflectionUtil.invoke(readBytes, byteBuf, data);
+            // Wrap in a FriendlyByteBuf and let the packet write itself
+            Object serializer = ReflectionUtil.newInstance(Serializer.CONSTRUCTOR, byteBuf);
+            ReflectionUtil.invoke(Serializer.WRITE_METHODS.get(handle.getClass()), handle, serializer);
             
+            byte[] data = new byte[byteBuf.readableBytes()];
+            byteBuf.readBytes(data);
             return data;
         } catch (Exception e) {
             throw new RuntimeException("Failed to serialize packet to bytes", e);
+        } finally {
+            byteBuf.release();
+        }
+    }
+    
+    /**
+     * The other direction: build a packet from its encoded body,
+     * the way the vanilla decoder does. No packet id in front.
+     * 
+     * Leftover bytes count as a failure, same as vanilla - it
+     * almost always means the bytes weren't what you thought.
+     */
+    public static PacketContainer fromRawBytes(PacketType type, byte[] data, int offset, int length) {
+        ByteBuf byteBuf = Unpooled.wrappedBuffer(data, offset, length);
+        try {
+            Class<?> packetClass = ReflectionUtil.getNMSClass(getPacketPath(type));
+            Object serializer = ReflectionUtil.newInstance(Serializer.CONSTRUCTOR, byteBuf);
+            Object packet = ReflectionUtil.newInstance(Serializer.READ_CONSTRUCTORS.get(packetClass), serializer);
+            
+            if (byteBuf.isReadable()) {
+                throw new IllegalStateException(byteBuf.readableBytes() + " bytes left over after reading " + type);
+            }
+            return new PacketContainer(type, packet);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to read packet of type " + type + " from bytes", e);
+        } finally {
+            byteBuf.release();
         }
     }
+    
+    /**
+     * Reflection for getRawBytes and fromRawBytes, resolved once instead of every call.
+     * Lazy holder so nothing gets resolved until someone needs it.
+     */
+    private static final class Serializer {
+        static final Class<?> FRIENDLY_BYTE_BUF = ReflectionUtil.getNMSClass("network.FriendlyByteBuf");
+        static final Constructor<?> CONSTRUCTOR = ReflectionUtil.getConstructor(FRIENDLY_BYTE_BUF, ByteBuf.class);
+        static final ClassValue<Method> WRITE_METHODS = new ClassValue<>() {
+            @Override
+            protected Method computeValue(Class<?> type) {
+                return ReflectionUtil.getMethod(type, "write", FRIENDLY_BYTE_BUF);
+            }
+        };
+        static final ClassValue<Constructor<?>> READ_CONSTRUCTORS = new ClassValue<>() {
+            @Override
+            protected Constructor<?> computeValue(Class<?> type) {
+                return ReflectionUtil.getConstructor(type, FRIENDLY_BYTE_BUF);
+            }
+        };
+    }
 }
\ No newline at end of file
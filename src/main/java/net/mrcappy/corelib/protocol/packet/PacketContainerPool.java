@@ -0,0 +1,94 @@
+package net.mrcappy.corelib.protocol.packet;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of recyclable PacketContainers, one per player injector.
+ * 
+ * The injector wraps every watched packet on Netty's event
+ * loop threads. On a busy server that's tens of thousands of
+ * short-lived containers per second, all of which die young
+ * and keep the GC busy for no reason.
+ * 
+ * Each channel only ever dispatches on its own event loop, so a
+ * pool owned by its injector gets zero contention without a
+ * ThreadLocal. Those would stay on Netty's threads after a plugin
+ * reload, pinning the classloader and every pooled container. This
+ * one dies with the injector. Dispatch is synchronous, so a pool
+ * only ever needs a handful.
+ * 
+ * Containers that got retain()ed are never put back - they
+ * belong to whoever retained them now and the GC cleans them
+ * up like any other object.
+ */
+public final class PacketContainerPool {
+    
+    // Dispatch rarely nests more than once or twice (listeners
+    // sending packets from inside a listener), so keep it small
+    private static final int MAX_POOLED = 16;
+    
+    // Stats across every pool - striped so event loops don't fight over a cache line
+    private static final LongAdder created = new LongAdder();
+    private static final LongAdder reused = new LongAdder();
+    
+    // Owning channel's event loop only
+    private final PacketContainer[] items = new PacketContainer[MAX_POOLED];
+    private int size;
+    
+    /**
+     * Get a container for a packet, reusing one if there's any spare.
+     * Must be handed back with release() once dispatch is done.
+     */
+    public PacketContainer acquire(PacketType type, Object handle) {
+        if (size > 0) {
+            PacketContainer container = items[--size];
+            items[size] = null;
+            container.reset(type, handle);
+            reused.increment();
+            return container;
+        }
+        
+        PacketContainer container = new PacketContainer(type, handle);
+        container.pooled = true;
+        created.increment();
+        return container;
+    }
+    
+    /**
+     * Give a container back to the pool.
+     * Retained, non-pooled and already released containers are ignored.
+     */
+    public void release(PacketContainer container) {
+        if (!container.pooled || container.retained || container.getHandle() == null) {
+            return; // Not ours, kept by someone, or already released
+        }
+        
+        if (size < MAX_POOLED) {
+            container.reset(null, null); // Don't keep the NMS packet alive
+            items[size++] = container;
+        }
+    }
+    
+    /**
+     * Drop everything pooled. Owning event loop only.
+     */
+    public void clear() {
+        Arrays.fill(items, null);
+        size = 0;
+    }
+    
+    /**
+     * How many containers the pools had to allocate.
+     */
+    public static long getCreatedCount() {
+        return created.sum();
+    }
+    
+    /**
+     * How many acquires were served from a pool instead of allocating.
+     */
+    public static long getReusedCount() {
+        return reused.sum();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,233 @@
+package net.mrcappy.corelib.protocol.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Read-only view over an already encoded packet.
+ * 
+ * This is the bytes exactly as the encoder spat them out:
+ * packet id VarInt first, then the payload. No length prefix,
+ * no compression, no encryption - those happen further down
+ * the pipeline.
+ * 
+ * ZERO COPY. The buffer points straight into Netty's memory,
+ * which means it's only valid during the callback that handed
+ * it to you. The instant you return, Netty frees or reuses it.
+ * Need the bytes later? Call toByteArray() and eat the copy.
+ * 
+ * The read methods work off an internal cursor that starts
+ * right after the packet id, so you can decode fields in
+ * order like the client would.
+ */
+public final class RawPacket {
+    
+    private ByteBuffer buffer;
+    private PacketType type;
+    private boolean outgoing;
+    private int packetId;
+    private int payloadStart;
+    
+    /**
+     * Point this view at a new encoded packet.
+     * The injector reuses one instance per channel.
+     */
+    public RawPacket wrap(ByteBuffer buffer, PacketType type, boolean outgoing) {
+        this.buffer = buffer;
+        this.type = type;
+        this.outgoing = outgoing;
+        
+        buffer.position(0);
+        this.packetId = readVarInt(buffer);
+        this.payloadStart = buffer.position();
+        return this;
+    }
+    
+    /**
+     * Drop the buffer reference once the callback is done.
+     */
+    public void clear() {
+        this.buffer = null;
+        this.type = null;
+    }
+    
+    /**
+     * The encoded bytes, read-only, position at the start of the payload.
+     * Don't hold on to this past the callback.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+    
+    public PacketType getType() {
+        return type;
+    }
+    
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+    
+    public int getPacketId() {
+        return packetId;
+    }
+    
+    /**
+     * Total encoded length including the packet id.
+     */
+    public int length() {
+        return buffer.limit();
+    }
+    
+    /**
+     * Move the cursor back to the start of the payload.
+     */
+    public RawPacket rewind() {
+        buffer.position(payloadStart);
+        return this;
+    }
+    
+    /**
+     * Copy the whole encoded packet out.
+     * This is the one method here that allocates.
+     */
+    public byte[] toByteArray() {
+        byte[] data = new byte[buffer.limit()];
+        buffer.get(0, data);
+        return data;
+    }
+    
+    /**
+     * Copy the whole encoded packet into another buffer.
+     * Doesn't touch this view's cursor.
+     */
+    public void copyTo(ByteBuffer target) {
+        target.put(buffer.duplicate().position(0));
+    }
+    
+    // Cursor-based decode helpers, same wire format as FriendlyByteBuf
+    
+    public int readVarInt() {
+        return readVarInt(buffer);
+    }
+    
+    public long readVarLong() {
+        return readVarLong(buffer);
+    }
+    
+    public String readString() {
+        return readString(buffer);
+    }
+    
+    public long readPosition() {
+        return buffer.getLong();
+    }
+    
+    public UUID readUUID() {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+    
+    public boolean readBoolean() {
+        return buffer.get() != 0;
+    }
+    
+    public byte readByte() {
+        return buffer.get();
+    }
+    
+    public short readShort() {
+        return buffer.getShort();
+    }
+    
+    public int readInt() {
+        return buffer.getInt();
+    }
+    
+    public long readLong() {
+        return buffer.getLong();
+    }
+    
+    public float readFloat() {
+        return buffer.getFloat();
+    }
+    
+    public double readDouble() {
+        return buffer.getDouble();
+    }
+    
+    // Static versions for anyone holding a plain ByteBuffer
+    
+    /**
+     * Read a Minecraft VarInt. Max 5 bytes, or the client is lying.
+     */
+    public static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            if (shift >= 35) {
+                throw new IllegalStateException("VarInt too big");
+            }
+            current = in.get();
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+    
+    /**
+     * Read a Minecraft VarLong. Max 10 bytes.
+     */
+    public static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            if (shift >= 70) {
+                throw new IllegalStateException("VarLong too big");
+            }
+            current = in.get();
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+    
+    /**
+     * Read a VarInt-prefixed UTF-8 string.
+     */
+    public static String readString(ByteBuffer in) {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalStateException(
+                "String length " + length + " exceeds remaining " + in.remaining()
+            );
+        }
+        
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(in.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+    
+    /**
+     * Unpack a block position long (1.14+ layout: x 26 bits, z 26 bits, y 12 bits).
+     */
+    public static int positionX(long packed) {
+        return (int) (packed >> 38);
+    }
+    
+    public static int positionY(long packed) {
+        return (int) (packed << 52 >> 52);
+    }
+    
+    public static int positionZ(long packed) {
+        return (int) (packed << 26 >> 38);
+    }
+}
\ No newline at end of file
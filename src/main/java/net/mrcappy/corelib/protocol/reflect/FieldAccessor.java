@@ -1,5 +1,8 @@
 package net.mrcappy.corelib.protocol.reflect;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 
 /**
@@ -7,14 +10,83 @@ import java.lang.reflect.Field;
  * 
  * Because raw reflection is ugly and throws checked
  * exceptions everywhere. This makes it cleaner.
+ * 
+ * Under the hood this uses MethodHandles instead of
+ * Field.get/set. Two flavours per field:
+ * - generic handles typed (Object)Object for get/set, which box
+ * - exact handles typed (Object)fieldType for getInt/setDouble/etc,
+ *   which don't box at all when the field is a primitive
+ * 
+ * Use the primitive methods in hot listeners. Reading three
+ * doubles out of a movement packet shouldn't allocate three
+ * Double objects 20 times a second per player.
+ * 
+ * Record components (and fields of hidden classes) are final
+ * for real - setAccessible doesn't get you a setter for those,
+ * so the accessor comes out read-only. Reads work like normal,
+ * set* throws. Half the packets are records now, so making the
+ * whole accessor blow up over it would break everything.
  */
 public class FieldAccessor<T> {
     
+    private static final MethodType GENERIC_GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType GENERIC_SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+    
     private final Field field;
     
+    // Boxing handles: (Object)Object and (Object, Object)void
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    
+    // Exact handles: (Object)fieldType and (Object, fieldType)void
+    private final MethodHandle exactGetter;
+    private final MethodHandle exactSetter;
+    
+    // Both setters are null if the field can't be written
+    private final boolean writable;
+    
     public FieldAccessor(Field field) {
         this.field = field;
         field.setAccessible(true);
+        
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle rawGetter = lookup.unreflectGetter(field);
+            
+            Class<?> type = unwrap(field.getType()); // Integer fields still get an int handle
+            this.exactGetter = rawGetter.asType(MethodType.methodType(type, Object.class));
+            this.getter = rawGetter.asType(GENERIC_GETTER);
+            
+            MethodHandle rawSetter = unreflectSetter(lookup, field);
+            this.writable = rawSetter != null;
+            this.exactSetter = writable ? rawSetter.asType(MethodType.methodType(void.class, Object.class, type)) : null;
+            this.setter = writable ? rawSetter.asType(GENERIC_SETTER) : null;
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(
+                "Can't create accessor for field " + field.getName() + " in " +
+                field.getDeclaringClass().getName(), e
+            );
+        }
+    }
+    
+    /**
+     * Setter for the field, or null if it's a record component or
+     * some other final setAccessible can't crack. Ordinary finals
+     * work fine thanks to setAccessible.
+     */
+    private static MethodHandle unreflectSetter(MethodHandles.Lookup lookup, Field field) {
+        try {
+            return lookup.unreflectSetter(field);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Can this field be written? False for record components.
+     */
+    public boolean isWritable() {
+        return writable;
     }
     
     /**
@@ -23,12 +95,9 @@ public class FieldAccessor<T> {
     @SuppressWarnings("unchecked")
     public T get(Object target) {
         try {
-            return (T) field.get(target);
-        } catch (Exception e) {
-            throw new RuntimeException(
-                "Failed to read field " + field.getName() + " from " + 
-                (target != null ? target.getClass().getName() : "null"), e
-            );
+            return (T) (Object) getter.invokeExact(target);
+        } catch (Throwable e) {
+            throw readFailed(target, e);
         }
     }
     
@@ -36,16 +105,185 @@ public class FieldAccessor<T> {
      * Set field value on target.
      */
     public void set(Object target, T value) {
+        if (!writable) {
+            throw readOnly(target);
+        }
         try {
-            field.set(target, value);
-        } catch (Exception e) {
-            throw new RuntimeException(
-                "Failed to write field " + field.getName() + " on " + 
-                (target != null ? target.getClass().getName() : "null"), e
-            );
+            setter.invokeExact(target, (Object) value);
+        } catch (Throwable e) {
+            throw writeFailed(target, e);
+        }
+    }
+    
+    // Primitive accessors - no boxing, but the field has to
+    // actually be that primitive type or you get an exception
+    
+    public int getInt(Object target) {
+        try {
+            return (int) exactGetter.invokeExact(target);
+        } catch (Throwable e) {
+            throw readFailed(target, e);
+        }
+    }
+    
+    public void setInt(Object target, int value) {
+        if (!writable) {
+            throw readOnly(target);
+        }
+        try {
+            exactSetter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw writeFailed(target, e);
+        }
+    }
+    
+    public long getLong(Object target) {
+        try {
+            return (long) exactGetter.invokeExact(target);
+        } catch (Throwable e) {
+            throw readFailed(target, e);
+        }
+    }
+    
+    public void setLong(Object target, long value) {
+        if (!writable) {
+            throw readOnly(target);
+        }
+        try {
+            exactSetter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw writeFailed(target, e);
+        }
+    }
+    
+    public double getDouble(Object target) {
+        try {
+            return (double) exactGetter.invokeExact(target);
+        } catch (Throwable e) {
+            throw readFailed(target, e);
         }
     }
     
+    public void setDouble(Object target, double value) {
+        if (!writable) {
+            throw readOnly(target);
+        }
+        try {
+            exactSetter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw writeFailed(target, e);
+        }
+    }
+    
+    public float getFloat(Object target) {
+        try {
+            return (float) exactGetter.invokeExact(target);
+        } catch (Throwable e) {
+            throw readFailed(target, e);
+        }
+    }
+    
+    public void setFloat(Object target, float value) {
+        if (!writable) {
+            throw readOnly(target);
+        }
+        try {
+            exactSetter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw writeFailed(target, e);
+        }
+    }
+    
+    public short getShort(Object target) {
+        try {
+            return (short) exactGetter.invokeExact(target);
+        } catch (Throwable e) {
+            throw readFailed(target, e);
+        }
+    }
+    
+    public void setShort(Object target, short value) {
+        if (!writable) {
+            throw readOnly(target);
+        }
+        try {
+            exactSetter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw writeFailed(target, e);
+        }
+    }
+    
+    public byte getByte(Object target) {
+        try {
+            return (byte) exactGetter.invokeExact(target);
+        } catch (Throwable e) {
+            throw readFailed(target, e);
+        }
+    }
+    
+    public void setByte(Object target, byte value) {
+        if (!writable) {
+            throw readOnly(target);
+        }
+        try {
+            exactSetter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw writeFailed(target, e);
+        }
+    }
+    
+    public boolean getBoolean(Object target) {
+        try {
+            return (boolean) exactGetter.invokeExact(target);
+        } catch (Throwable e) {
+            throw readFailed(target, e);
+        }
+    }
+    
+    public void setBoolean(Object target, boolean value) {
+        if (!writable) {
+            throw readOnly(target);
+        }
+        try {
+            exactSetter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw writeFailed(target, e);
+        }
+    }
+    
+    private static Class<?> unwrap(Class<?> type) {
+        if (type == Integer.class) return int.class;
+        if (type == Long.class) return long.class;
+        if (type == Double.class) return double.class;
+        if (type == Float.class) return float.class;
+        if (type == Short.class) return short.class;
+        if (type == Byte.class) return byte.class;
+        if (type == Boolean.class) return boolean.class;
+        return type;
+    }
+    
+    private RuntimeException readFailed(Object target, Throwable cause) {
+        return new RuntimeException(
+            "Failed to read field " + field.getName() + " from " +
+            (target != null ? target.getClass().getName() : "null"), cause
+        );
+    }
+    
+    private RuntimeException readOnly(Object target) {
+        return new UnsupportedOperationException(
+            "Field " + field.getName() + " on " +
+            (target != null ? target.getClass().getName() : "null") +
+            " is a record component or otherwise truly final, it can't be written"
+        );
+    }
+    
+    private RuntimeException writeFailed(Object target, Throwable cause) {
+        return new RuntimeException(
+            "Failed to write field " + field.getName() + " on " +
+            (target != null ? target.getClass().getName() : "null"), cause
+        );
+    }
+    
     /**
      * Get the underlying field.
      */
@@ -17,42 +17,61 @@ import java.util.concurrent.ConcurrentHashMap;
  * names are obfuscated to hell and back. "a", "b", "c" - 
  * real descriptive, Mojang. Thanks for that.
  * 
- * Performance is about as good as you'd expect from something
- * that uses reflection for literally everything. But hey,
- * at least it's cached! *cries in milliseconds*
+ * Performance used to be about as good as you'd expect from
+ * something that uses reflection for literally everything.
+ * Now the accessors are MethodHandles, the layouts are built
+ * once per (class, field type) while we're loaded, and the
+ * readInt/readDouble/etc methods don't box. Still not as fast
+ * as a direct field read, but close enough to stop crying.
  */
 public class StructureModifier<T> {
     
     private final Class<?> targetClass;
     private final Class<T> fieldType;
-    private final List<FieldAccessor<T>> accessors;
+    private final FieldAccessor<T>[] accessors;
     private final Object target;
     
-    // Cache for field lists
-    private static final Map<String, List<Field>> FIELD_CACHE = new ConcurrentHashMap<>();
+    // Accessor layouts per (class, field type), shared by everyone.
+    // Keyed by Class so we never build a string key on the lookup path,
+    // and the arrays are never mutated so everyone can share them.
+    // Not a ClassValue: that would stash our FieldAccessors inside the
+    // NMS class, pinning this plugin's classloader across every reload.
+    // A plain map we own dies with the plugin, clearCache() or not.
+    private static final Map<Class<?>, Map<Class<?>, FieldAccessor<?>[]>> LAYOUTS =
+        new ConcurrentHashMap<>();
     
     public StructureModifier(Class<?> targetClass, Class<T> fieldType) {
         this(targetClass, fieldType, null);
     }
     
     public StructureModifier(Class<?> targetClass, Class<T> fieldType, Object target) {
+        this(targetClass, fieldType,
+             StructureTemplate.forClass(targetClass).accessors(fieldType), target);
+    }
+    
+    /**
+     * Build a modifier from an already resolved layout.
+     * StructureTemplate uses this so nothing gets looked up twice.
+     */
+    StructureModifier(Class<?> targetClass, Class<T> fieldType,
+                      FieldAccessor<T>[] accessors, Object target) {
         this.targetClass = targetClass;
         this.fieldType = fieldType;
+        this.accessors = accessors;
         this.target = target;
-        this.accessors = new ArrayList<>();
-        
-        // Find and cache fields
-        initializeFields();
     }
     
     /**
-     * Initialize field accessors.
-     * Scans the class hierarchy for matching fields.
+     * Get the cached accessor layout for a class and field type.
+     * Scans the class hierarchy for matching fields the first time,
+     * after that it's two map lookups.
      */
-    private void initializeFields() {
-        String cacheKey = targetClass.getName() + "#" + fieldType.getName();
-        List<Field> fields = FIELD_CACHE.computeIfAbsent(cacheKey, k -> {
-            List<Field> result = new ArrayList<>();
+    @SuppressWarnings("unchecked")
+    static <T> FieldAccessor<T>[] layout(Class<?> targetClass, Class<T> fieldType) {
+        Map<Class<?>, FieldAccessor<?>[]> layouts =
+            LAYOUTS.computeIfAbsent(targetClass, k -> new ConcurrentHashMap<>());
+        return (FieldAccessor<T>[]) layouts.computeIfAbsent(fieldType, k -> {
+            List<FieldAccessor<?>> result = new ArrayList<>();
             
             // Scan class hierarchy
             Class<?> current = targetClass;
@@ -65,26 +84,28 @@ public class StructureModifier<T> {
                     
                     // Check if field type matches
                     if (isCompatible(field.getType(), fieldType)) {
-                        field.setAccessible(true);
-                        result.add(field);
+                        result.add(new FieldAccessor<>(field));
                     }
                 }
                 current = current.getSuperclass();
             }
             
-            return result;
+            return result.toArray(new FieldAccessor<?>[0]);
         });
-        
-        // Create accessors
-        for (Field field : fields) {
-            accessors.add(new FieldAccessor<>(field));
-        }
-    }    
+    }
+    
+    /**
+     * Drop every cached layout. ProtocolManager calls this on shutdown
+     * so nothing of ours is left hanging off the server's classes.
+     */
+    public static void clearCache() {
+        LAYOUTS.clear();
+    }
     /**
      * Check if a field type is compatible with our target type.
      * Handles primitive/wrapper conversion.
      */
-    private boolean isCompatible(Class<?> fieldType, Class<?> targetType) {
+    private static boolean isCompatible(Class<?> fieldType, Class<?> targetType) {
         if (targetType.isAssignableFrom(fieldType)) {
             return true;
         }
@@ -106,14 +127,14 @@ public class StructureModifier<T> {
         return false;
     }
     
-    private boolean isPrimitiveWrapper(Class<?> type) {
+    private static boolean isPrimitiveWrapper(Class<?> type) {
         return type == Boolean.class || type == Byte.class ||
                type == Character.class || type == Short.class ||
                type == Integer.class || type == Long.class ||
                type == Float.class || type == Double.class;
     }
     
-    private Class<?> getPrimitive(Class<?> wrapper) {
+    private static Class<?> getPrimitive(Class<?> wrapper) {
         if (wrapper == Boolean.class) return boolean.class;
         if (wrapper == Byte.class) return byte.class;
         if (wrapper == Character.class) return char.class;
@@ -128,49 +149,105 @@ public class StructureModifier<T> {
     /**
      * Read a field value by index.
      */
-    @SuppressWarnings("unchecked")
     public T read(int index) {
-        if (index < 0 || index >= accessors.size()) {
-            throw new IndexOutOfBoundsException(
-                "Index " + index + " is out of bounds for " + accessors.size() + " fields"
-            );
-        }
-        
-        return accessors.get(index).get(target);
+        return accessor(index).get(target);
     }
     
     /**
      * Write a field value by index.
      */
     public void write(int index, T value) {
-        if (index < 0 || index >= accessors.size()) {
+        accessor(index).set(target, value);
+    }
+    
+    // Primitive reads and writes. These skip boxing entirely, so use
+    // them in hot listeners: getDoubles().readDouble(0) instead of read(0)
+    
+    public int readInt(int index) {
+        return accessor(index).getInt(target);
+    }
+    
+    public void writeInt(int index, int value) {
+        accessor(index).setInt(target, value);
+    }
+    
+    public long readLong(int index) {
+        return accessor(index).getLong(target);
+    }
+    
+    public void writeLong(int index, long value) {
+        accessor(index).setLong(target, value);
+    }
+    
+    public double readDouble(int index) {
+        return accessor(index).getDouble(target);
+    }
+    
+    public void writeDouble(int index, double value) {
+        accessor(index).setDouble(target, value);
+    }
+    
+    public float readFloat(int index) {
+        return accessor(index).getFloat(target);
+    }
+    
+    public void writeFloat(int index, float value) {
+        accessor(index).setFloat(target, value);
+    }
+    
+    public short readShort(int index) {
+        return accessor(index).getShort(target);
+    }
+    
+    public void writeShort(int index, short value) {
+        accessor(index).setShort(target, value);
+    }
+    
+    public byte readByte(int index) {
+        return accessor(index).getByte(target);
+    }
+    
+    public void writeByte(int index, byte value) {
+        accessor(index).setByte(target, value);
+    }
+    
+    public boolean readBoolean(int index) {
+        return accessor(index).getBoolean(target);
+    }
+    
+    public void writeBoolean(int index, boolean value) {
+        accessor(index).setBoolean(target, value);
+    }
+    
+    private FieldAccessor<T> accessor(int index) {
+        if (index < 0 || index >= accessors.length) {
             throw new IndexOutOfBoundsException(
-                "Index " + index + " is out of bounds for " + accessors.size() + " fields"
+                "Index " + index + " is out of bounds for " + accessors.length + " fields"
             );
         }
-        
-        accessors.get(index).set(target, value);
-    }    
+        return accessors[index];
+    }
+    
     /**
      * Get the number of fields.
      */
     public int size() {
-        return accessors.size();
+        return accessors.length;
     }
     
     /**
      * Create a new modifier with a different field type.
+     * Cheap - the accessor layout comes from the shared cache.
      */
-    @SuppressWarnings("unchecked")
     public <V> StructureModifier<V> withType(Class<V> newType) {
-        return new StructureModifier<>(targetClass, newType, target);
+        return StructureTemplate.forClass(targetClass).modifier(newType, target);
     }
     
     /**
      * Create a new modifier with a specific target instance.
      */
     public StructureModifier<T> withTarget(Object newTarget) {
-        return new StructureModifier<>(targetClass, fieldType, newTarget);
+        return new StructureModifier<>(targetClass, fieldType, accessors, newTarget);
     }
     
     /**
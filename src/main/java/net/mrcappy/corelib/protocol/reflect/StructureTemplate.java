@@ -0,0 +1,100 @@
+package net.mrcappy.corelib.protocol.reflect;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed field layouts for one packet class.
+ * 
+ * Every packet class gets exactly one of these while we're
+ * loaded. It holds the accessor arrays for all the common
+ * field types up front, so wrapping a packet doesn't have to
+ * scan, look up or allocate anything - a PacketContainer is just
+ * (template, handle) and the typed modifiers are built straight
+ * from the arrays in here.
+ * 
+ * Immutable after construction, so any thread can share it.
+ */
+public final class StructureTemplate {
+    
+    // The field types PacketContainer has getters for.
+    // Index in this array = index in layouts.
+    private static final Class<?>[] STANDARD_TYPES = {
+        Object.class,
+        byte.class,
+        short.class,
+        int.class,
+        long.class,
+        float.class,
+        double.class,
+        String.class,
+        boolean.class,
+        UUID.class,
+        byte[].class,
+        int[].class
+    };
+    
+    // Our own map, not a ClassValue - same reason as StructureModifier's layouts
+    private static final Map<Class<?>, StructureTemplate> TEMPLATES = new ConcurrentHashMap<>();
+    
+    private final Class<?> targetClass;
+    private final FieldAccessor<?>[][] layouts;
+    
+    private StructureTemplate(Class<?> targetClass) {
+        this.targetClass = targetClass;
+        this.layouts = new FieldAccessor<?>[STANDARD_TYPES.length][];
+        
+        for (int i = 0; i < STANDARD_TYPES.length; i++) {
+            layouts[i] = StructureModifier.layout(targetClass, STANDARD_TYPES[i]);
+        }
+    }
+    
+    /**
+     * Get the template for a packet class.
+     * Built on first use, a map hit after that.
+     */
+    public static StructureTemplate forClass(Class<?> targetClass) {
+        StructureTemplate template = TEMPLATES.get(targetClass);
+        if (template == null) {
+            template = TEMPLATES.computeIfAbsent(targetClass, StructureTemplate::new);
+        }
+        return template;
+    }
+    
+    /**
+     * Drop every template, and the layouts they were built from.
+     * Called on shutdown so a reload starts from nothing.
+     */
+    public static void clearCache() {
+        TEMPLATES.clear();
+        StructureModifier.clearCache();
+    }
+    
+    /**
+     * Build a modifier for a field type bound to a packet instance.
+     * Standard types come straight out of the precomputed arrays,
+     * anything else falls back to the shared layout cache.
+     */
+    public <T> StructureModifier<T> modifier(Class<T> fieldType, Object target) {
+        return new StructureModifier<>(targetClass, fieldType, accessors(fieldType), target);
+    }
+    
+    /**
+     * Get the raw accessor array for a field type.
+     * Shared and immutable - don't you dare write into it.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> FieldAccessor<T>[] accessors(Class<T> fieldType) {
+        for (int i = 0; i < STANDARD_TYPES.length; i++) {
+            if (STANDARD_TYPES[i] == fieldType) {
+                return (FieldAccessor<T>[]) layouts[i];
+            }
+        }
+        return StructureModifier.layout(targetClass, fieldType);
+    }
+    
+    public Class<?> getTargetClass() {
+        return targetClass;
+    }
+}
\ No newline at end of file
@@ -127,6 +127,33 @@ public class ReflectionUtil {
         });
     }
     
+    /**
+     * Get the first instance field whose type is assignable to the given type.
+     * For when field names are obfuscated garbage but the types aren't.
+     */
+    public static Field getFieldByType(Class<?> clazz, Class<?> fieldType) {
+        String key = clazz.getName() + "#<type>" + fieldType.getName();
+        
+        return FIELD_CACHE.computeIfAbsent(key, k -> {
+            Class<?> current = clazz;
+            while (current != null && current != Object.class) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (java.lang.reflect.Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    if (fieldType.isAssignableFrom(field.getType())) {
+                        field.setAccessible(true);
+                        return field;
+                    }
+                }
+                current = current.getSuperclass();
+            }
+            throw new RuntimeException(
+                "Can't find field of type " + fieldType.getName() + " in " + clazz.getName()
+            );
+        });
+    }
+    
     /**
      * Get a constructor. Because sometimes you need to
      * instantiate shit that wasn't meant to be instantiated.
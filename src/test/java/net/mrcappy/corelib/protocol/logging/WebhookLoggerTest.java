@@ -0,0 +1,240 @@
+package net.mrcappy.corelib.protocol.logging;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * WebhookLogger against a real (tiny) HTTP server on localhost.
+ * 
+ * The stub answers with whatever statuses the test lined up, 200
+ * once it runs out, and remembers every batch it got. Events go in
+ * through log() - building them from a live packet needs a server,
+ * and the batching doesn't care where they came from.
+ */
+class WebhookLoggerTest {
+    
+    private HttpServer server;
+    private String url;
+    private WebhookLogger logger;
+    
+    // What the stub answers, in order. Empty = 200.
+    private final Deque<Response> responses = new ConcurrentLinkedDeque<>();
+    private final List<List<Map<String, Object>>> received = new CopyOnWriteArrayList<>();
+    private final List<Long> requestTimes = new CopyOnWriteArrayList<>();
+    private volatile CountDownLatch gate; // Non-null = requests hang until it opens
+    
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/hook", this::handle);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/hook";
+    }
+    
+    @AfterEach
+    void stopServer() {
+        CountDownLatch gate = this.gate;
+        if (gate != null) {
+            gate.countDown();
+        }
+        if (logger != null) {
+            logger.shutdown();
+        }
+        server.stop(0);
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        requestTimes.add(System.nanoTime());
+        try (InputStream in = exchange.getRequestBody()) {
+            String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            received.add(new Gson().fromJson(body, new TypeToken<List<Map<String, Object>>>() {}.getType()));
+        }
+        
+        CountDownLatch gate = this.gate;
+        if (gate != null) {
+            try {
+                gate.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        Response response = responses.poll();
+        if (response == null) {
+            response = new Response(200, null);
+        }
+        if (response.retryAfter != null) {
+            exchange.getResponseHeaders().add("Retry-After", response.retryAfter);
+        }
+        exchange.sendResponseHeaders(response.status, -1);
+        exchange.close();
+    }
+    
+    private static Map<String, Object> event(int id) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("id", id);
+        event.put("packet_type", "PLAY_CLIENT_POSITION");
+        return event;
+    }
+    
+    private static void await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting");
+            }
+            Thread.sleep(10);
+        }
+    }
+    
+    private int receivedEvents() {
+        int total = 0;
+        for (List<Map<String, Object>> batch : received) {
+            total += batch.size();
+        }
+        return total;
+    }
+    
+    @Test
+    void fullBatchGoesOutWithoutWaitingForTheTimer() throws Exception {
+        // Flush timer way past the test timeout, so only the size can trigger it
+        logger = new WebhookLogger(url, 5, 60_000, 100);
+        for (int i = 0; i < 10; i++) {
+            logger.log(event(i));
+        }
+        
+        await(() -> logger.getSent() == 10, 5000);
+        assertEquals(2, received.size());
+        assertEquals(5, received.get(0).size());
+        assertEquals(5, received.get(1).size());
+        assertEquals(0.0, received.get(0).get(0).get("id")); // Gson reads numbers as doubles
+        assertEquals(2, logger.getBatches());
+    }
+    
+    @Test
+    void partialBatchGoesOutWhenTheTimerRunsOut() throws Exception {
+        logger = new WebhookLogger(url, 50, 200, 100);
+        long start = System.nanoTime();
+        logger.log(event(1));
+        logger.log(event(2));
+        logger.log(event(3));
+        
+        await(() -> logger.getSent() == 3, 5000);
+        assertEquals(1, received.size());
+        assertEquals(3, received.get(0).size());
+        assertTrue(requestTimes.get(0) - start >= TimeUnit.MILLISECONDS.toNanos(200),
+            "Sent before the flush window was up");
+    }
+    
+    @Test
+    void fullQueueDropsInsteadOfBlocking() throws Exception {
+        gate = new CountDownLatch(1); // Sender gets stuck on the first request
+        logger = new WebhookLogger(url, 1, 0, 3);
+        logger.log(event(0));
+        await(() -> received.size() == 1, 5000);
+        
+        long start = System.nanoTime();
+        for (int i = 1; i <= 10; i++) {
+            logger.log(event(i));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1), "log() blocked");
+        assertEquals(3, logger.getQueueSize());
+        assertEquals(7, logger.getDropped());
+        
+        gate.countDown();
+        await(() -> logger.getSent() == 4, 5000);
+        assertEquals(7, logger.getDropped());
+    }
+    
+    @Test
+    void tooManyRequestsWaitsForRetryAfter() throws Exception {
+        responses.add(new Response(429, "2"));
+        logger = new WebhookLogger(url, 1, 0, 100);
+        logger.log(event(1));
+        
+        await(() -> logger.getSent() == 1, 10_000);
+        assertEquals(2, requestTimes.size());
+        assertEquals(1, logger.getRetries());
+        assertTrue(requestTimes.get(1) - requestTimes.get(0) >= TimeUnit.MILLISECONDS.toNanos(2000),
+            "Retried before Retry-After was up");
+        assertEquals(received.get(0), received.get(1)); // Same batch again
+    }
+    
+    @Test
+    void serverErrorsBackOffExponentially() throws Exception {
+        responses.add(new Response(503, null));
+        responses.add(new Response(500, null));
+        logger = new WebhookLogger(url, 1, 0, 100);
+        logger.log(event(1));
+        
+        await(() -> logger.getSent() == 1, 10_000);
+        assertEquals(3, requestTimes.size());
+        assertEquals(2, logger.getRetries());
+        long first = requestTimes.get(1) - requestTimes.get(0);
+        long second = requestTimes.get(2) - requestTimes.get(1);
+        assertTrue(first >= TimeUnit.MILLISECONDS.toNanos(1000), "First retry too early");
+        assertTrue(second >= TimeUnit.MILLISECONDS.toNanos(2000), "Backoff didn't double");
+        assertEquals(0, logger.getFailed());
+    }
+    
+    @Test
+    void clientErrorsAreNotRetried() throws Exception {
+        responses.add(new Response(400, null));
+        logger = new WebhookLogger(url, 1, 0, 100);
+        logger.log(event(1));
+        
+        await(() -> logger.getFailed() == 1, 5000);
+        Thread.sleep(1500); // Longer than the first backoff, a retry would have shown up by now
+        assertEquals(1, requestTimes.size());
+        assertEquals(0, logger.getRetries());
+        assertEquals(0, logger.getSent());
+    }
+    
+    @Test
+    void shutdownDrainsWhatsQueued() throws Exception {
+        // Nothing would go out for a minute on its own
+        logger = new WebhookLogger(url, 4, 60_000, 100);
+        for (int i = 0; i < 10; i++) {
+            logger.log(event(i));
+        }
+        await(() -> logger.getSent() == 8, 5000);
+        Thread.sleep(200); // Sender's sitting on the last two, waiting for the batch to fill
+        
+        long start = System.nanoTime();
+        logger.shutdown();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "Shutdown waited out the flush window");
+        
+        assertEquals(10, logger.getSent());
+        assertEquals(10, receivedEvents());
+        
+        logger.log(event(99));
+        assertEquals(1, logger.getDropped()); // Closed, nothing new gets in
+    }
+    
+    private static final class Response {
+        final int status;
+        final String retryAfter;
+        
+        Response(int status, String retryAfter) {
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+    }
+}
\ No newline at end of file